@@ -0,0 +1,41 @@
+#!/usr/bin/env bash
+# Builds and runs the JMH benchmarks in bench/src against the plugin, with
+# no Arduino IDE and no toolchain: the logs are synthetic, the ELF is
+# generated and gdb is the StubGdb replaying recorded answers.
+#
+#   bench/bench.sh                        every benchmark
+#   bench/bench.sh ParseBenchmark -p kind=esp32 -f 1
+#
+# Everything after the script name goes to JMH. The jars are looked up in
+# the local Maven repository, or set JMH_CP (jmh-core, jmh-generator-
+# annprocess, jopt-simple, commons-math3) and CODEC_JAR.
+
+set -e
+cd "$(dirname "$0")/.."
+
+find_jar() {
+    find "$HOME/.m2/repository" -name "$1" 2>/dev/null | sort | tail -n 1
+}
+
+if [[ -z "$JMH_CP" ]]; then
+    JMH_CP="$(find_jar 'jmh-core-*.jar'):$(find_jar 'jmh-generator-annprocess-*.jar'):$(find_jar 'jopt-simple-*.jar'):$(find_jar 'commons-math3-*.jar')"
+fi
+if [[ -z "$CODEC_JAR" ]]; then
+    CODEC_JAR="$(find_jar 'commons-codec-*.jar')"
+fi
+if [[ "$JMH_CP" == *"::"* || "$JMH_CP" == :* || "$JMH_CP" == *: || -z "$CODEC_JAR" ]]; then
+    echo "JMH or commons-codec not found, set JMH_CP and CODEC_JAR"
+    exit 1
+fi
+echo "JMH_CP: $JMH_CP"
+echo "CODEC_JAR: $CODEC_JAR"
+
+# The plugin without its IDE entry point, plus the benchmarks
+rm -rf bench/bin
+mkdir -p bench/bin
+sources=$(ls src/*.java | grep -v EspExceptionDecoder.java)
+javac -source 1.8 -target 1.8 -nowarn -cp "$JMH_CP:$CODEC_JAR" -d bench/bin $sources bench/src/*.java
+
+# stub-gdb runs StubGdb from the same classes
+export BENCH_CP="$PWD/bench/bin:$CODEC_JAR"
+java -cp "$BENCH_CP:$JMH_CP" -Dbench.gdb="$PWD/bench/stub-gdb" org.openjdk.jmh.Main "$@"
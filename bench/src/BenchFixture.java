@@ -0,0 +1,144 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.List;
+
+// The reference ELF the benchmarks decode against, written once per JVM
+// into a temporary folder: an Xtensa ELF32 with the code sections of both
+// the ESP8266, ESP32 and ESP32-C3 memory maps and a function symbol every 64
+// bytes. Next to it goes what gdb answered for every function, which the
+// StubGdb replays.
+class BenchFixture {
+  static final long[][] CODE = {
+    { 0x40100000L, 0x8000 },  // .iram0.text, ESP8266
+    { 0x40201010L, 0x40000 }, // .irom0.text, ESP8266
+    { 0x40080000L, 0x10000 }, // .iram0.text, ESP32
+    { 0x400d0020L, 0x2ff00 }, // .flash.text, ESP32
+    { 0x42000020L, 0x20000 }, // .flash.text, ESP32-C3
+  };
+  static final String[] SECTIONS = { ".iram0.text", ".irom0.text", ".iram0.text", ".flash.text", ".flash.text" };
+  static final int FUNCTION_SIZE = 64;
+  static final String RECORDING = ".gdb.txt";
+
+  private static File elf;
+
+  // The fixture ELF, the recording is the same path plus RECORDING
+  static synchronized File getElf() throws IOException {
+    if (elf == null) {
+      File dir = Files.createTempDirectory("espbench").toFile();
+      File build = new File(dir, "build");
+      build.mkdirs();
+      elf = new File(build, "fixture.ino.elf");
+      write(elf);
+    }
+    return elf;
+  }
+
+  // Every symbol address of the fixture, in order
+  static long[] getFunctions() {
+    int n = 0;
+    for (long[] c : CODE) n += (int) (c[1] / FUNCTION_SIZE);
+    long[] f = new long[n];
+    int i = 0;
+    for (long[] c : CODE) {
+      for (long a = c[0]; a < c[0] + c[1]; a += FUNCTION_SIZE) f[i++] = a;
+    }
+    return f;
+  }
+
+  static String functionName(int i) {
+    return "module" + (i / 100) + "::function" + (i % 100) + "(int)";
+  }
+
+  private static void write(File file) throws IOException {
+    long[] functions = getFunctions();
+
+    ByteArrayOutputStream shstrtab = new ByteArrayOutputStream();
+    shstrtab.write(0);
+    int[] sectionName = new int[CODE.length + 3];
+    List<String> names = new ArrayList<String>(Arrays.asList(SECTIONS));
+    names.addAll(Arrays.asList(".symtab", ".strtab", ".shstrtab"));
+    for (int i = 0; i < names.size(); i++) {
+      sectionName[i] = shstrtab.size();
+      shstrtab.write(names.get(i).getBytes(StandardCharsets.UTF_8));
+      shstrtab.write(0);
+    }
+
+    ByteArrayOutputStream strtab = new ByteArrayOutputStream();
+    strtab.write(0);
+    ByteBuffer symtab = ByteBuffer.allocate((functions.length + 1) * 16).order(ByteOrder.LITTLE_ENDIAN);
+    symtab.position(16);
+    StringBuilder recording = new StringBuilder();
+    int f = 0;
+    for (int s = 0; s < CODE.length; s++) {
+      for (long a = CODE[s][0]; a < CODE[s][0] + CODE[s][1]; a += FUNCTION_SIZE, f++) {
+        symtab.putInt(strtab.size());
+        symtab.putInt((int) a);
+        symtab.putInt(FUNCTION_SIZE);
+        symtab.put((byte) ((1 << 4) | ElfFile.STT_FUNC)); // global function
+        symtab.put((byte) 0);
+        symtab.putShort((short) (s + 1));
+        String name = functionName(f);
+        strtab.write(name.getBytes(StandardCharsets.UTF_8));
+        strtab.write(0);
+        recording.append(String.format("0x%08x is in %s (/home/user/Arduino/fixture/module%d.cpp:%d).\n",
+                                       a, name, f / 100, 10 + (f % 100) * 3));
+      }
+    }
+
+    // Header, then the tables, then the section headers
+    int symtabOffset = 52;
+    int strtabOffset = symtabOffset + symtab.capacity();
+    int shstrtabOffset = strtabOffset + strtab.size();
+    int shoff = (shstrtabOffset + shstrtab.size() + 3) & ~3;
+    int shnum = names.size() + 1;
+    ByteBuffer b = ByteBuffer.allocate(shoff + shnum * 40).order(ByteOrder.LITTLE_ENDIAN);
+    b.putInt(0x464c457f).put((byte) 1).put((byte) 1).put((byte) 1);
+    b.position(16);
+    b.putShort((short) 2).putShort((short) 94).putInt(1); // executable, Xtensa
+    b.putInt((int) CODE[1][0]).putInt(0).putInt(shoff).putInt(0);
+    b.putShort((short) 52).putShort((short) 32).putShort((short) 0);
+    b.putShort((short) 40).putShort((short) shnum).putShort((short) (shnum - 1));
+    b.position(symtabOffset);
+    b.put(symtab.array()).put(strtab.toByteArray()).put(shstrtab.toByteArray());
+
+    b.position(shoff + 40);
+    for (int s = 0; s < CODE.length; s++) {
+      sectionHeader(b, sectionName[s], ElfFile.SHT_NOBITS, ElfFile.SHF_ALLOC | ElfFile.SHF_EXECINSTR,
+                    CODE[s][0], shoff, CODE[s][1], 0, 0);
+    }
+    sectionHeader(b, sectionName[CODE.length], ElfFile.SHT_SYMTAB, 0, 0, symtabOffset, symtab.capacity(), CODE.length + 2, 16);
+    sectionHeader(b, sectionName[CODE.length + 1], 3, 0, 0, strtabOffset, strtab.size(), 0, 0);
+    sectionHeader(b, sectionName[CODE.length + 2], 3, 0, 0, shstrtabOffset, shstrtab.size(), 0, 0);
+
+    Files.write(file.toPath(), b.array());
+    Files.write(new File(file.getPath() + RECORDING).toPath(), recording.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void sectionHeader(ByteBuffer b, int name, int type, int flags, long addr, int offset,
+                                    long size, int link, int entsize) {
+    b.putInt(name).putInt(type).putInt(flags).putInt((int) addr).putInt(offset).putInt((int) size);
+    b.putInt(link).putInt(0).putInt(4).putInt(entsize);
+  }
+}
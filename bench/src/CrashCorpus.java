@@ -0,0 +1,119 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.util.*;
+
+// Synthetic crash logs shaped like the real ones, with code addresses
+// inside the BenchFixture ELF. The same kind always gives the same log.
+class CrashCorpus {
+  static final String ESP8266 = "esp8266";
+  static final String ESP32 = "esp32";
+  static final String MULTITASK = "multitask";
+  static final String RISCV = "riscv";
+
+  // Where the code addresses of each chip are drawn from
+  private static final long[] ESP8266_CODE = { 0x40100000L, 0x40300000L };
+  private static final long[] ESP8266_IROM = { 0x40200000L, 0x40300000L };
+  private static final long[] ESP32_CODE = { 0x40080000L, 0x40100000L };
+  private static final long[] RISCV_CODE = { 0x42000000L, 0x43000000L };
+
+  private final Random random = new Random(42);
+  private final long[] functions = BenchFixture.getFunctions();
+
+  static String get(String kind) {
+    CrashCorpus c = new CrashCorpus();
+    if (kind.equals(ESP8266)) return c.esp8266(64);
+    if (kind.equals(ESP32)) return c.esp32(1);
+    if (kind.equals(MULTITASK)) return c.esp32(24) + c.esp8266(1024);
+    if (kind.equals(RISCV)) return c.riscv(64);
+    throw new IllegalArgumentException("unknown corpus " + kind);
+  }
+
+  // An ESP8266 exception with a stack dump of the given number of lines,
+  // about one word in four pointing into the code
+  private String esp8266(int lines) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("\n Exception (28):\n");
+    sb.append(String.format("epc1=0x%08x epc2=0x00000000 epc3=0x00000000 excvaddr=0x00000010 depc=0x00000000%n%n",
+                            code(ESP8266_IROM)));
+    sb.append(">>>stack>>>\n\nctx: cont\n");
+    long sp = 0x3fffffc0L - lines * 16;
+    sb.append(String.format("sp: %08x end: 3fffffc0 offset: 01a0%n", sp));
+    for (int i = 0; i < lines; i++) {
+      sb.append(String.format("%08x:  %08x %08x %08x %08x%n", sp + i * 16, word(), word(), word(), word()));
+    }
+    sb.append("<<<stack<<<\n\n");
+    sb.append(String.format("last failed alloc call: %08X(1500)%n", code(ESP8266_IROM)));
+    return sb.toString();
+  }
+
+  // ESP32 panics with a register dump and a backtrace each
+  private String esp32(int tasks) {
+    StringBuilder sb = new StringBuilder();
+    for (int t = 0; t < tasks; t++) {
+      sb.append("Guru Meditation Error: Core  ").append(t % 2).append(" panic'ed (LoadProhibited). Exception was unhandled.\n");
+      sb.append("Core ").append(t % 2).append(" register dump:\n");
+      sb.append(String.format("PC      : 0x%08x  PS      : 0x00060030  A0      : 0x%08x  A1      : 0x3ffb1f80%n",
+                              code(ESP32_CODE), 0x80000000L | (code(ESP32_CODE) & 0x3fffffffL)));
+      sb.append("A2      : 0x00000000  A3      : 0x3ffc0c38  A4      : 0x00000001  A5      : 0x3ffb1f60\n");
+      sb.append("EXCVADDR: 0x00000000  LBEG    : 0x4000c2e0  LEND    : 0x4000c2f6  LCOUNT  : 0x00000000\n\n");
+      sb.append("Backtrace:");
+      long sp = 0x3ffb1f80L;
+      for (int i = 0; i < 16; i++, sp += 0x20) {
+        sb.append(String.format(" 0x%08x:0x%08x", code(ESP32_CODE), sp));
+      }
+      sb.append("\n\nELF file SHA256: 0000000000000000\n\n");
+    }
+    return sb.toString();
+  }
+
+  // An ESP32-C3 panic: registers and the raw stack memory, eight words a
+  // line, about one in four pointing into the code
+  private String riscv(int lines) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Guru Meditation Error: Core  0 panic'ed (Load access fault). Exception was unhandled.\n\n");
+    sb.append("Core  0 register dump:\n");
+    sb.append(String.format("MEPC    : 0x%08x  RA      : 0x%08x  SP      : 0x3fc98e10  GP      : 0x3fc8e600%n",
+                            code(RISCV_CODE), code(RISCV_CODE)));
+    sb.append("MSTATUS : 0x00001881  MTVEC   : 0x40380001  MCAUSE  : 0x00000005  MTVAL   : 0x00000000\n\n");
+    sb.append("Stack memory:\n");
+    long sp = 0x3fc98e10L;
+    for (int i = 0; i < lines; i++) {
+      sb.append(String.format("%08x:", sp + i * 32));
+      for (int w = 0; w < 8; w++) {
+        long v = random.nextInt(4) == 0 ? code(RISCV_CODE) : 0x3fc80000L + random.nextInt(0x20000);
+        sb.append(String.format(" 0x%08x", v));
+      }
+      sb.append('\n');
+    }
+    sb.append("\n\nELF file SHA256: 0000000000000000\n\n");
+    return sb.toString();
+  }
+
+  private long word() {
+    return random.nextInt(4) == 0 ? code(ESP8266_CODE) : 0x3ffe0000L + random.nextInt(0x20000);
+  }
+
+  // A return address inside one of the fixture's functions in the range
+  private long code(long[] range) {
+    while (true) {
+      long f = functions[random.nextInt(functions.length)];
+      if (f >= range[0] && f < range[1]) return f + 3 + random.nextInt(BenchFixture.FUNCTION_SIZE - 4);
+    }
+  }
+}
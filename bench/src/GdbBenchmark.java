@@ -0,0 +1,73 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Talking to gdb: building the MI commands, and a round trip of a batch of
+// lookups through a GdbSession. The session runs the StubGdb named by the
+// bench.gdb property (bench.sh points it at bench/stub-gdb), so no
+// toolchain is needed.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GdbBenchmark {
+  @Param({ "1", "64" })
+  public int batch;
+
+  private final List<String> addresses = new ArrayList<String>();
+  private GdbSession session;
+
+  @Setup
+  public void setup() throws IOException {
+    long[] functions = BenchFixture.getFunctions();
+    for (int i = 0; i < batch; i++) {
+      addresses.add(Long.toHexString(functions[(int) ((i * 7919L) % functions.length)] + 7));
+    }
+    session = GdbSession.get(new File(System.getProperty("bench.gdb", "bench/stub-gdb")), BenchFixture.getElf());
+  }
+
+  @TearDown
+  public void tearDown() {
+    GdbSession.closeAll();
+  }
+
+  @Benchmark
+  public void listCommand(Blackhole bh) {
+    for (int i = 0; i < addresses.size(); i++) {
+      bh.consume(GdbSession.listCommand(i, addresses.get(i)));
+    }
+  }
+
+  @Benchmark
+  public void roundTrip(Blackhole bh) throws InterruptedException {
+    List<GdbSession.Query> queries = session.listAll(addresses, null);
+    GdbSession.waitAll(queries);
+    for (GdbSession.Query q : queries) {
+      bh.consume(q.getLines());
+    }
+  }
+}
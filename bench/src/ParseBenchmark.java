@@ -0,0 +1,74 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Reading the crash logs: the tokenizer alone, and the whole decode with
+// the built-in symbolizer and a warm address cache.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+  @Param({ CrashCorpus.ESP8266, CrashCorpus.ESP32, CrashCorpus.MULTITASK, CrashCorpus.RISCV })
+  public String kind;
+
+  private String log;
+  private CrashDecoder decoder;
+
+  @Setup
+  public void setup() throws IOException {
+    log = CrashCorpus.get(kind);
+    decoder = new CrashDecoder(null, BenchFixture.getElf());
+    decoder.preload();
+    decoder.decode(new CrashDecoder.Decode(log));
+  }
+
+  @Benchmark
+  public void tokenize(final Blackhole bh) {
+    CrashLogTokenizer.tokenize(log, new CrashLogTokenizer.Adapter() {
+      public void exceptionCause(int cause) {
+        bh.consume(cause);
+      }
+      public void register(String name, long value) {
+        bh.consume(value);
+      }
+      public void allocFailure(long address, int size) {
+        bh.consume(address);
+      }
+      public void stackWord(long value) {
+        bh.consume(value);
+      }
+      public void backtraceFrame(long pc, long sp) {
+        bh.consume(pc);
+      }
+    });
+  }
+
+  @Benchmark
+  public CrashReport decode() {
+    CrashDecoder.Decode d = new CrashDecoder.Decode(log);
+    decoder.decode(d);
+    return d.report;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Putting the decoded crash together for the window, the command line and
+// the server: the html lines the window appends, plain text and JSON.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+  @Param({ CrashCorpus.ESP8266, CrashCorpus.ESP32, CrashCorpus.MULTITASK, CrashCorpus.RISCV })
+  public String kind;
+
+  private CrashReport report;
+
+  @Setup
+  public void setup() throws IOException {
+    CrashDecoder decoder = new CrashDecoder(null, BenchFixture.getElf());
+    CrashDecoder.Decode d = new CrashDecoder.Decode(CrashCorpus.get(kind));
+    decoder.decode(d);
+    report = d.report;
+  }
+
+  @Benchmark
+  public String html() {
+    CrashDecoder.Decode d = new CrashDecoder.Decode("");
+    d.printLogLine("Decoding stack results", "green");
+    for (SourceLocation l : report.stack) {
+      if (!l.isUnknown()) d.print(CrashDecoder.prettyPrintLocation(l) + "\n");
+    }
+    return d.takeOutput();
+  }
+
+  @Benchmark
+  public String text() {
+    return report.toText();
+  }
+
+  @Benchmark
+  public String json() {
+    return report.toJson("bench");
+  }
+}
@@ -0,0 +1,85 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Stands in for gdb --interpreter=mi2, so the benchmarks run without a
+// toolchain. The answers to "list *0x..." are replayed from the recording
+// next to the ELF (ELF + ".gdb.txt"): lines as gdb prints them, like
+// "0x40201234 is in loop() (/path/sketch.ino:12).". An address gets the
+// line recorded for the nearest address at or below it; anything before
+// the first one gets gdb's error. Every other command is just acknowledged.
+public class StubGdb {
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("usage: StubGdb [gdb options] ELF");
+      System.exit(2);
+    }
+    TreeMap<Long, String> recorded = read(new File(args[args.length - 1] + BenchFixture.RECORDING));
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    PrintStream out = new PrintStream(new BufferedOutputStream(System.out), false, "UTF-8");
+    out.print("~\"Reading symbols from " + args[args.length - 1] + "...\\n\"\n(gdb) \n");
+    out.flush();
+    String command;
+    while ((command = in.readLine()) != null) {
+      int digits = 0;
+      while (digits < command.length() && Character.isDigit(command.charAt(digits))) digits++;
+      String token = command.substring(0, digits);
+      int list = command.indexOf("list *0x");
+      if (command.startsWith("-gdb-exit", digits)) {
+        out.print("^exit\n");
+        out.flush();
+        return;
+      } else if (list != -1) {
+        int end = command.indexOf('"', list);
+        long address = Long.parseLong(command.substring(list + 8, end), 16);
+        Map.Entry<Long, String> e = recorded.floorEntry(address);
+        if (e == null) {
+          out.print("&\"No line number information available for address 0x" + Long.toHexString(address) + "\\n\"\n");
+          out.print(token + "^error,msg=\"No line number information available for address 0x" + Long.toHexString(address) + "\"\n");
+        } else {
+          out.print("~\"" + String.format("0x%08x", address) + e.getValue() + "\\n\"\n");
+          out.print(token + "^done\n");
+        }
+      } else {
+        out.print(token + "^done\n");
+      }
+      out.print("(gdb) \n");
+      out.flush();
+    }
+  }
+
+  // Address -> the rest of the recorded line after the address
+  private static TreeMap<Long, String> read(File recording) throws IOException {
+    TreeMap<Long, String> recorded = new TreeMap<Long, String>();
+    BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(recording), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = r.readLine()) != null) {
+        int space = line.indexOf(' ');
+        if (!line.startsWith("0x") || space == -1) continue;
+        recorded.put(Long.parseLong(line.substring(2, space), 16), line.substring(space).replace("\\", "\\\\").replace("\"", "\\\""));
+      }
+    } finally {
+      r.close();
+    }
+    return recorded;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Turning addresses into locations and locations into html: the built-in
+// symbolizer, parsing gdb's answers and pretty printing the results.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SymbolizeBenchmark {
+  private static final int ADDRESSES = 256;
+
+  private ElfSymbolizer symbolizer;
+  private final long[] addresses = new long[ADDRESSES];
+  private final String[] gdbLines = new String[ADDRESSES];
+  private final SourceLocation[] locations = new SourceLocation[ADDRESSES];
+
+  @Setup
+  public void setup() throws IOException {
+    symbolizer = new ElfSymbolizer(BenchFixture.getElf());
+    long[] functions = BenchFixture.getFunctions();
+    List<String> recorded = Files.readAllLines(
+      new java.io.File(BenchFixture.getElf().getPath() + BenchFixture.RECORDING).toPath(), StandardCharsets.UTF_8);
+    for (int i = 0; i < ADDRESSES; i++) {
+      int f = (int) ((i * 7919L) % functions.length);
+      addresses[i] = functions[f] + 7;
+      gdbLines[i] = recorded.get(f);
+      locations[i] = SourceLocation.parseGDBLine(gdbLines[i]);
+    }
+  }
+
+  @Benchmark
+  public void lookup(Blackhole bh) {
+    for (long a : addresses) {
+      bh.consume(symbolizer.lookup(a));
+    }
+  }
+
+  @Benchmark
+  public void parseGdbLine(Blackhole bh) {
+    for (String line : gdbLines) {
+      bh.consume(SourceLocation.parseGDBLine(line));
+    }
+  }
+
+  @Benchmark
+  public void prettyPrint(Blackhole bh) {
+    for (SourceLocation l : locations) {
+      bh.consume(CrashDecoder.prettyPrintLocation(l));
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.apache.commons.codec.digest.DigestUtils;
+
+// Remembers what addresses resolved to, per ELF content hash, so the same
+// build never has to ask gdb twice about the same address. Recently used
+// entries are kept in memory; everything is appended to a file in the
+// cache folder, of which only the address -> file offset index is loaded.
+class AddressCache {
+  private static final int MEMORY_ENTRIES = 4096;
+  private static final long MAX_FILE_BYTES = 8L * 1024 * 1024;
+  private static final long MAX_FOLDER_BYTES = 64L * 1024 * 1024;
+  private static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+  final File elf;
+  final String hash;
+  private final long elfModified;
+  private final long elfLength;
+  private final File file;
+
+  private final LinkedHashMap<Long, SourceLocation> memory =
+    new LinkedHashMap<Long, SourceLocation>(256, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Long, SourceLocation> eldest) {
+        return size() > MEMORY_ENTRIES;
+      }
+    };
+
+  // Where each address is in the cache file, sorted by address, plus
+  // the entries appended since the file was opened
+  private long[] diskAddr = new long[0];
+  private long[] diskOffset = new long[0];
+  private final Map<Long, Long> appended = new HashMap<Long, Long>();
+  private long fileLength;
+
+  private int memoryHits;
+  private int diskHits;
+  private int misses;
+
+  private AddressCache(File elf, File folder) throws IOException {
+    this.elf = elf;
+    this.elfModified = elf.lastModified();
+    this.elfLength = elf.length();
+    InputStream in = new FileInputStream(elf);
+    try {
+      hash = DigestUtils.sha256Hex(in);
+    } finally {
+      in.close();
+    }
+    file = new File(folder, hash + ".cache");
+    if (file.exists()) {
+      file.setLastModified(System.currentTimeMillis());
+      readIndex();
+    }
+  }
+
+  // Open the cache for the ELF, cleaning up old entries of the folder first
+  static AddressCache open(File elf, File folder) throws IOException {
+    if (!folder.isDirectory() && !folder.mkdirs()) {
+      throw new IOException("can't create " + folder);
+    }
+    evict(folder);
+    return new AddressCache(elf, folder);
+  }
+
+  // The cache folder lives next to the build folder the ELF is in
+  static File folderFor(File elf) {
+    File build = elf.getAbsoluteFile().getParentFile();
+    File parent = build.getParentFile();
+    return new File(parent != null ? parent : build, "EspExceptionDecoder-cache");
+  }
+
+  boolean isFor(File elf) {
+    return this.elf.equals(elf) && elf.lastModified() == elfModified && elf.length() == elfLength;
+  }
+
+  // The cached location, a location with nothing known if an earlier
+  // lookup failed, or null if the address was never looked up
+  synchronized SourceLocation get(long address) {
+    SourceLocation location = memory.get(address);
+    if (location != null) {
+      memoryHits++;
+      return location;
+    }
+    Long offset = appended.get(address);
+    if (offset == null) {
+      int i = Arrays.binarySearch(diskAddr, address);
+      if (i >= 0) offset = diskOffset[i];
+    }
+    if (offset != null) {
+      location = readEntry(offset);
+      if (location != null) {
+        diskHits++;
+        memory.put(address, location);
+        return location;
+      }
+    }
+    misses++;
+    return null;
+  }
+
+  synchronized void put(SourceLocation location) {
+    if (memory.containsKey(location.address)) return;
+    memory.put(location.address, location);
+    if (appended.containsKey(location.address) || Arrays.binarySearch(diskAddr, location.address) >= 0) return;
+    if (fileLength >= MAX_FILE_BYTES) return;
+    String entry = Long.toHexString(location.address) + "\t" +
+                   (location.function == null ? "" : location.function) + "\t" +
+                   (location.file == null ? "" : location.file) + "\t" +
+                   location.line + "\n";
+    try {
+      OutputStream out = new FileOutputStream(file, true);
+      try {
+        out.write(entry.getBytes(StandardCharsets.UTF_8));
+      } finally {
+        out.close();
+      }
+      appended.put(location.address, fileLength);
+      fileLength = file.length();
+    } catch (IOException e) {
+      System.err.println("Cache Write Exception: "+e.getMessage());
+    }
+  }
+
+  synchronized String getStats() {
+    return "cache hits: " + (memoryHits + diskHits) + " (" + diskHits + " from disk), misses: " + misses;
+  }
+
+  private void readIndex() throws IOException {
+    long[] addr = new long[1024];
+    long[] offs = new long[1024];
+    int n = 0;
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      long offset = 0, start = 0, value = 0;
+      boolean inAddress = true;
+      int c;
+      while ((c = in.read()) != -1) {
+        offset++;
+        if (c == '\n') {
+          if (n == addr.length) {
+            addr = Arrays.copyOf(addr, n * 2);
+            offs = Arrays.copyOf(offs, n * 2);
+          }
+          addr[n] = value;
+          offs[n] = start;
+          n++;
+          start = offset;
+          value = 0;
+          inAddress = true;
+        } else if (inAddress) {
+          int d = Character.digit(c, 16);
+          if (d >= 0) value = (value << 4) | d;
+          else inAddress = false;
+        }
+      }
+      fileLength = start;
+    } finally {
+      in.close();
+    }
+    if (file.length() != fileLength) {
+      // Cut off a half written last entry
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(fileLength);
+      } finally {
+        raf.close();
+      }
+    }
+
+    // Sort the index by address so lookups can binary search it
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) order[i] = i;
+    final long[] keys = addr;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Long.compare(keys[a], keys[b]);
+      }
+    });
+    diskAddr = new long[n];
+    diskOffset = new long[n];
+    for (int i = 0; i < n; i++) {
+      diskAddr[i] = addr[order[i]];
+      diskOffset[i] = offs[order[i]];
+    }
+  }
+
+  private SourceLocation readEntry(long offset) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        raf.seek(offset);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int c;
+        while ((c = raf.read()) != -1 && c != '\n') {
+          line.write(c);
+        }
+        String[] parts = new String(line.toByteArray(), StandardCharsets.UTF_8).split("\t", -1);
+        if (parts.length != 4) return null;
+        return new SourceLocation(Long.parseLong(parts[0], 16),
+                                  parts[1].length() == 0 ? null : parts[1],
+                                  parts[2].length() == 0 ? null : parts[2],
+                                  Integer.parseInt(parts[3]));
+      } finally {
+        raf.close();
+      }
+    } catch (Exception e) {
+      System.err.println("Cache Read Exception: "+e.getMessage());
+      return null;
+    }
+  }
+
+  // Drop cache files not used for a long time, then the least recently
+  // used ones until the folder is small enough
+  private static void evict(File folder) {
+    File[] files = folder.listFiles();
+    if (files == null) return;
+    long now = System.currentTimeMillis();
+    List<File> kept = new ArrayList<File>();
+    long total = 0;
+    for (File f : files) {
+      if (!f.getName().endsWith(".cache")) continue;
+      if (now - f.lastModified() > MAX_AGE) {
+        f.delete();
+      } else {
+        kept.add(f);
+        total += f.length();
+      }
+    }
+    Collections.sort(kept, new Comparator<File>() {
+      public int compare(File a, File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    for (File f : kept) {
+      if (total <= MAX_FOLDER_BYTES) break;
+      total -= f.length();
+      f.delete();
+    }
+  }
+}
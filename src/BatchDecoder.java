@@ -0,0 +1,361 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Decodes a pile of crash logs from the command line, without the IDE:
+//
+//   java -cp EspExceptionDecoder.jar:commons-codec.jar com.ficeto.esp.BatchDecoder \
+//     --elf sketch.ino.elf [--gdb xtensa-lx106-elf-gdb [--gdb-workers N]] \
+//     [--jobs N] [--out DIR | --jsonl FILE|-] LOG|DIR|GLOB...
+//   ... BatchDecoder --elf sketch.ino.elf [--gdb ...] [--jsonl FILE|-] \
+//     --follow LOG [--from-start]
+//   ... BatchDecoder --index DIR --top K
+//   ... BatchDecoder --elf sketch.ino.elf --write-symbols
+//
+// Instead of --elf, --builds DIR (given once or more) picks the ELF of
+// every log from a BuildRegistry of the ELFs in the folders.
+// Every log gets a LOG.decoded.txt next to it or in the --out folder, or
+// one line in the --jsonl stream. The logs are decoded in parallel by a
+// bounded pool, all sharing the symbols, the cache and the gdb sessions.
+// What is too big for one gdb is spread over up to --gdb-workers of them
+// per ELF, one per core by default.
+// With --follow the log is tailed and every crash written to it is
+// decoded as soon as it is complete, to stdout or the --jsonl stream.
+// With --index every crash is counted by its fingerprint in the CrashIndex
+// in DIR, and --top lists the K seen most often once the logs are done.
+// --stats writes the stage timings and counters of DecodeStats as JSON
+// when the logs are done. --write-symbols writes the SymbolIndex of the
+// ELF next to it, for a CI to ship with the build.
+public class BatchDecoder {
+  private static final String SUFFIX = ".decoded.txt";
+  private static final long POLL_MILLIS = 250;
+  private static final String USAGE =
+    "usage: BatchDecoder --elf FILE|--builds DIR [--gdb PATH [--gdb-workers N]] [--jobs N] [--out DIR | --jsonl FILE|-] LOG|DIR|GLOB...\n" +
+    "       BatchDecoder --elf FILE|--builds DIR [--gdb PATH] [--jsonl FILE|-] --follow LOG [--from-start]\n" +
+    "       with [--index DIR] to count the crashes, and [--top K] to list the most frequent,\n" +
+    "       [--stats FILE|-] to write the timings and counters as JSON\n" +
+    "       BatchDecoder --elf FILE --write-symbols";
+
+  private static final int POOL_SIZE = 4;
+
+  // One of them is null
+  private final CrashDecoder decoder;
+  private final BuildRegistry registry;
+  private final File out;
+  private final Writer stream;
+  private final AtomicInteger failed = new AtomicInteger();
+  private CrashIndex index;
+
+  private BatchDecoder(CrashDecoder decoder, BuildRegistry registry, File out, Writer stream) {
+    this.decoder = decoder;
+    this.registry = registry;
+    this.out = out;
+    this.stream = stream;
+  }
+
+  public static void main(String[] args) throws Exception {
+    File elf = null, gdb = null, out = null, follow = null, indexFolder = null;
+    boolean fromStart = false;
+    int top = 0;
+    boolean query = false;
+    boolean writeSymbols = false;
+    String jsonl = null;
+    String stats = null;
+    int jobs = Runtime.getRuntime().availableProcessors();
+    List<String> inputs = new ArrayList<String>();
+    List<File> buildFolders = new ArrayList<File>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String a = args[i];
+        if (a.equals("--elf")) elf = new File(args[++i]);
+        else if (a.equals("--builds")) buildFolders.add(new File(args[++i]));
+        else if (a.equals("--gdb")) gdb = new File(args[++i]);
+        else if (a.equals("--out")) out = new File(args[++i]);
+        else if (a.equals("--jsonl")) jsonl = args[++i];
+        else if (a.equals("--jobs")) jobs = Integer.parseInt(args[++i]);
+        else if (a.equals("--gdb-workers")) GdbSession.setMaxWorkers(Integer.parseInt(args[++i]));
+        else if (a.equals("--follow")) follow = new File(args[++i]);
+        else if (a.equals("--from-start")) fromStart = true;
+        else if (a.equals("--index")) indexFolder = new File(args[++i]);
+        else if (a.equals("--top")) top = Integer.parseInt(args[++i]);
+        else if (a.equals("--stats")) stats = args[++i];
+        else if (a.equals("--write-symbols")) writeSymbols = true;
+        else if (a.startsWith("--")) throw new IllegalArgumentException("unknown option " + a);
+        else inputs.add(a);
+      }
+      query = indexFolder != null && top > 0 && follow == null && inputs.isEmpty();
+      if (writeSymbols && (elf == null || !inputs.isEmpty() || follow != null)) {
+        throw new IllegalArgumentException("--write-symbols needs --elf and nothing to decode");
+      }
+      boolean logs = follow == null ? !inputs.isEmpty() : inputs.isEmpty() && out == null;
+      if (!query && !writeSymbols && ((elf == null) == buildFolders.isEmpty() || !logs || jobs < 1 || (out != null && jsonl != null) || (top > 0 && indexFolder == null))) {
+        throw new IllegalArgumentException("missing arguments");
+      }
+    } catch (RuntimeException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    if (query) {
+      CrashIndex index = new CrashIndex(indexFolder);
+      printTop(index, top);
+      index.close();
+      return;
+    }
+    if (elf != null && !elf.isFile()) {
+      System.err.println("ERROR: " + elf + " not found");
+      System.exit(2);
+    }
+    if (writeSymbols) {
+      long start = System.currentTimeMillis();
+      File file = SymbolIndex.write(new ElfSymbolizer(elf));
+      System.err.println("Wrote " + file + " in " + (System.currentTimeMillis() - start) + "ms");
+      return;
+    }
+    if (gdb != null && !gdb.isFile()) {
+      System.err.println("WARNING: " + gdb + " not found, using the built-in symbolizer only");
+      gdb = null;
+    }
+    if (out != null && !out.isDirectory() && !out.mkdirs()) {
+      System.err.println("ERROR: can't create " + out);
+      System.exit(2);
+    }
+    BuildRegistry registry = null;
+    if (elf == null) {
+      registry = new BuildRegistry(buildFolders, gdb, POOL_SIZE);
+      registry.scan();
+      System.err.println("Found " + registry.getBuilds().size() + " builds");
+    }
+    CrashDecoder decoder = elf == null ? null : new CrashDecoder(gdb, elf);
+
+    Writer writer = null;
+    if (jsonl != null) {
+      OutputStream os = jsonl.equals("-") ? System.out : new FileOutputStream(jsonl, follow != null);
+      writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+    }
+    if (follow != null) {
+      if (writer == null) {
+        writer = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+      }
+      BatchDecoder batch = new BatchDecoder(decoder, registry, null, writer);
+      if (indexFolder != null) batch.index = new CrashIndex(indexFolder);
+      batch.follow(follow, fromStart, jsonl != null);
+      return;
+    }
+
+    Map<File, Path> logs = findLogs(inputs);
+    BatchDecoder batch = new BatchDecoder(decoder, registry, out, writer);
+    if (indexFolder != null) batch.index = new CrashIndex(indexFolder);
+    long start = System.currentTimeMillis();
+    try {
+      batch.run(logs, jobs);
+    } finally {
+      if (writer != null) writer.flush();
+      if (writer != null && !jsonl.equals("-")) writer.close();
+      GdbSession.closeAll();
+    }
+    System.err.println("Decoded " + logs.size() + " logs in " + (System.currentTimeMillis() - start) + "ms" +
+                       ", " + batch.failed.get() + " failed" + (decoder == null ? "" : decoder.getCacheStats()));
+    if (batch.index != null) {
+      if (top > 0) printTop(batch.index, top);
+      batch.index.close();
+    }
+    if (stats != null) {
+      String json = DecodeStats.get().toJson() + "\n";
+      if (stats.equals("-")) System.out.print(json);
+      else Files.write(Paths.get(stats), json.getBytes(StandardCharsets.UTF_8));
+    }
+    System.exit(batch.failed.get() == 0 ? 0 : 1);
+  }
+
+  // Files, folders (walked) and globs like "logs/**/*.txt", each log mapped
+  // to the folder its output path is taken relative to
+  private static Map<File, Path> findLogs(List<String> inputs) throws IOException {
+    final Map<File, Path> logs = new LinkedHashMap<File, Path>();
+    for (String input : inputs) {
+      int glob = firstGlobChar(input);
+      if (glob == -1) {
+        final Path p = Paths.get(input);
+        if (Files.isDirectory(p)) {
+          walk(p, null, logs);
+        } else if (Files.isRegularFile(p)) {
+          logs.put(p.toFile(), p.toAbsolutePath().getParent());
+        } else {
+          System.err.println("WARNING: " + input + " not found");
+        }
+      } else {
+        int slash = Math.max(input.lastIndexOf('/', glob), input.lastIndexOf(File.separatorChar, glob));
+        Path base = Paths.get(slash == -1 ? "." : input.substring(0, slash + 1));
+        String pattern = input.substring(slash + 1);
+        walk(base, FileSystems.getDefault().getPathMatcher("glob:" + pattern), logs);
+      }
+    }
+    return logs;
+  }
+
+  private static void walk(final Path base, final PathMatcher matcher, final Map<File, Path> logs) throws IOException {
+    Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (!attrs.isRegularFile() || file.getFileName().toString().endsWith(SUFFIX)) {
+          return FileVisitResult.CONTINUE;
+        }
+        if (matcher == null || matcher.matches(base.relativize(file))) {
+          logs.put(file.toFile(), base.toAbsolutePath());
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private static int firstGlobChar(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '*' || c == '?' || c == '[' || c == '{') return i;
+    }
+    return -1;
+  }
+
+  // Decode on a pool as wide as asked, with a short queue so a huge
+  // folder is not read into memory all at once
+  private void run(Map<File, Path> logs, int jobs) throws InterruptedException {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(jobs * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+    for (final Map.Entry<File, Path> log : logs.entrySet()) {
+      pool.execute(new Runnable() {
+        public void run() {
+          decode(log.getKey(), log.getValue());
+        }
+      });
+    }
+    pool.shutdown();
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  // Decode the crashes of a growing log until killed. The blocks are decoded
+  // one after another on a worker, the tail only waits for it when it
+  // falls far behind.
+  private void follow(final File log, boolean fromStart, final boolean json) throws IOException {
+    final ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(16), new ThreadPoolExecutor.CallerRunsPolicy());
+    System.err.println("Following " + log);
+    LogTail tail = new LogTail(log.toPath(), fromStart, new LogTail.Listener() {
+      public void crashBlock(final String block, final long offset) {
+        worker.execute(new Runnable() {
+          public void run() {
+            CrashDecoder.Decode d = decode(block);
+            String source = log.getPath() + "@" + offset;
+            try {
+              record(d.report, System.currentTimeMillis());
+              synchronized (stream) {
+                if (json) {
+                  stream.write(d.report.toJson(source));
+                  stream.write('\n');
+                } else {
+                  stream.write("==== " + source + " ====\n");
+                  stream.write(d.report.toText());
+                  stream.write('\n');
+                }
+                stream.flush();
+              }
+            } catch (IOException e) {
+              System.err.println("Write Exception: "+e.getMessage());
+            }
+          }
+        });
+      }
+    });
+    tail.run(POLL_MILLIS);
+  }
+
+  private void decode(File log, Path base) {
+    try {
+      String content = new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8);
+      CrashDecoder.Decode d = decode(content);
+      if (d.report.error != null) {
+        failed.incrementAndGet();
+      }
+      record(d.report, log.lastModified());
+      if (stream != null) {
+        String line = d.report.toJson(log.getPath());
+        synchronized (stream) {
+          stream.write(line);
+          stream.write('\n');
+        }
+      } else {
+        File target;
+        if (out == null) {
+          target = new File(log.getPath() + SUFFIX);
+        } else {
+          target = new File(out, base.relativize(log.toPath().toAbsolutePath()).toString() + SUFFIX);
+          target.getParentFile().mkdirs();
+        }
+        Files.write(target.toPath(), d.report.toText().getBytes(StandardCharsets.UTF_8));
+      }
+    } catch (Exception e) {
+      failed.incrementAndGet();
+      System.err.println(log + ": " + e);
+    }
+  }
+
+  // Decode with the ELF, or the build of the registry the crash came from
+  private CrashDecoder.Decode decode(String content) {
+    CrashDecoder.Decode d = new CrashDecoder.Decode(content);
+    if (decoder != null) {
+      decoder.decode(d);
+      return d;
+    }
+    BuildRegistry.Build b = registry.match(content);
+    if (b == null) {
+      d.printError("No build matches the crash");
+      return d;
+    }
+    CrashDecoder c = registry.getDecoder(b);
+    try {
+      c.decode(d);
+    } finally {
+      c.release();
+    }
+    return d;
+  }
+
+  private void record(CrashReport report, long time) throws IOException {
+    if (index == null) return;
+    for (CrashReport r : report.getCrashes()) {
+      if (r.hasCrash()) index.add(r.fingerprint, time, r.getSummary());
+    }
+  }
+
+  private static void printTop(CrashIndex index, int k) {
+    SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+    System.out.println(index.getTotal() + " crashes, " + index.getDistinct() + " distinct");
+    System.out.println(String.format("%8s  %-16s  %-16s  %-16s  %s", "count", "first seen", "last seen", "fingerprint", "crash"));
+    for (CrashIndex.Entry e : index.top(k)) {
+      System.out.println(String.format("%8d  %-16s  %-16s  %-16s  %s", e.count, date.format(new Date(e.first)),
+                                       date.format(new Date(e.last)), e.getFingerprint(), e.summary == null ? "" : e.summary));
+    }
+  }
+}
@@ -0,0 +1,392 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.List;
+import org.apache.commons.codec.digest.DigestUtils;
+
+// The ELFs of many firmware builds, and which of them a crash came from.
+// Every ELF under the folders is indexed once: its SHA-256 (ESP-IDF prints
+// the start of it as "ELF file SHA256:" at boot and on panic), its GNU
+// build ID, the project and version of its ESP-IDF app descriptor and its
+// code ranges. The index is kept in a file in each folder, so only new or
+// changed ELFs are read again. The decoders of the builds last used stay
+// loaded, the least recently used one is closed when there are too many,
+// once the decodes running on it are done.
+class BuildRegistry {
+  static final String INDEX = "EspExceptionDecoder-builds.txt";
+  static final String ELF_SHA = "ELF file SHA256:";
+  // Shortest SHA-256 or build ID prefix a build is looked up by
+  private static final int MIN_PREFIX = 8;
+  private static final long RESCAN_MILLIS = 5000;
+
+  static class Build {
+    final File elf;
+    final long modified;
+    final long length;
+    final String hash;
+    final String buildId;
+    final String project;
+    final String version;
+    private final long[] codeStart;
+    private final long[] codeEnd;
+
+    Build(File elf, long modified, long length, String hash, String buildId,
+          String project, String version, long[] codeStart, long[] codeEnd) {
+      this.elf = elf;
+      this.modified = modified;
+      this.length = length;
+      this.hash = hash;
+      this.buildId = buildId;
+      this.project = project;
+      this.version = version;
+      this.codeStart = codeStart;
+      this.codeEnd = codeEnd;
+    }
+
+    // Whether the address is in the code of the build
+    boolean isCode(long address) {
+      int i = ElfFile.floor(codeStart, codeStart.length, address);
+      return i >= 0 && address < codeEnd[i];
+    }
+
+    // Everything the build can be looked up by
+    List<String> getIds() {
+      List<String> ids = new ArrayList<String>();
+      ids.add(hash);
+      if (buildId != null) ids.add(buildId);
+      if (project != null) ids.add(getTag());
+      return ids;
+    }
+
+    // project@version from the app descriptor, or null
+    String getTag() {
+      return project == null ? null : project + "@" + (version == null ? "" : version);
+    }
+
+    String getName() {
+      return project != null ? getTag() + " (" + elf.getName() + ")" : elf.getPath();
+    }
+
+    boolean isCurrent(File f) {
+      return f.lastModified() == modified && f.length() == length;
+    }
+  }
+
+  private final List<File> roots;
+  private final File tool;
+  private final int poolSize;
+  private List<Build> builds = Collections.emptyList();
+  private long scanned;
+
+  // Let go of, but maybe still decoding. Taken back if asked for again
+  // before it closed, so one ELF never has two decoders sharing its gdb.
+  private final Map<File, CrashDecoder> retired = new HashMap<File, CrashDecoder>();
+  private final LinkedHashMap<File, CrashDecoder> loaded =
+    new LinkedHashMap<File, CrashDecoder>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<File, CrashDecoder> eldest) {
+        if (size() <= poolSize) return false;
+        Iterator<CrashDecoder> i = retired.values().iterator();
+        while (i.hasNext()) {
+          if (i.next().isClosed()) i.remove();
+        }
+        retired.put(eldest.getKey(), eldest.getValue());
+        eldest.getValue().retire();
+        return true;
+      }
+    };
+
+  // roots are ELFs or folders searched for *.elf, tool the gdb or null.
+  // At most poolSize builds are kept loaded.
+  BuildRegistry(List<File> roots, File tool, int poolSize) {
+    this.roots = new ArrayList<File>(roots);
+    this.tool = tool;
+    this.poolSize = Math.max(1, poolSize);
+  }
+
+  boolean isFor(File tool, List<File> roots) {
+    return (tool == null ? this.tool == null : tool.equals(this.tool)) && this.roots.equals(roots);
+  }
+
+  // Find the ELFs, indexing the ones not seen before or changed since
+  synchronized void scan() throws IOException {
+    List<Build> found = new ArrayList<Build>();
+    for (File root : roots) {
+      if (root.isDirectory()) {
+        scanFolder(root, found);
+      } else if (root.isFile()) {
+        Build b = index(root);
+        if (b != null) found.add(b);
+      } else {
+        System.err.println("WARNING: " + root + " not found");
+      }
+    }
+    builds = Collections.unmodifiableList(found);
+    scanned = System.currentTimeMillis();
+  }
+
+  // Scan again unless that was done a moment ago
+  synchronized void refresh() throws IOException {
+    if (System.currentTimeMillis() - scanned > RESCAN_MILLIS) {
+      scan();
+    }
+  }
+
+  synchronized List<Build> getBuilds() {
+    return builds;
+  }
+
+  // The build with this SHA-256, build ID (or a prefix of at least
+  // MIN_PREFIX hex digits of either) or project@version. The newest one
+  // if several match, null if none does.
+  Build find(String id) {
+    String hex = id.toLowerCase(Locale.ROOT);
+    if (hex.startsWith("0x")) hex = hex.substring(2);
+    Build best = null;
+    for (Build b : getBuilds()) {
+      boolean match = hasPrefix(b.hash, hex) || hasPrefix(b.buildId, hex) ||
+                      id.equals(b.getTag());
+      if (match && (best == null || b.modified > best.modified)) best = b;
+    }
+    return best;
+  }
+
+  // The build the crash came from. The ELF SHA-256 line decides if the log
+  // has one; if not, the build whose code holds the most of the crash's
+  // addresses, preferring one already loaded and then the newest. Returns
+  // null if nothing fits. Only the snapshot of the builds and the loaded
+  // check take the lock; reading and scoring the log run outside it.
+  Build match(CharSequence crash) {
+    String sha = findElfSha(crash);
+    if (sha != null) {
+      return find(sha);
+    }
+    List<Build> builds = getBuilds();
+    if (builds.size() == 1) {
+      return builds.get(0);
+    }
+    final List<Long> addresses = new ArrayList<Long>();
+    CrashLogTokenizer.tokenize(crash, new CrashLogTokenizer.Adapter() {
+      public void register(String name, long value) {
+        addresses.add(value);
+      }
+      public void stackWord(long value) {
+        addresses.add(value);
+      }
+      public void backtraceFrame(long pc, long sp) {
+        addresses.add(pc);
+      }
+    });
+    Build best = null;
+    int bestScore = 0;
+    for (Build b : builds) {
+      int score = 0;
+      for (long a : addresses) {
+        if (b.isCode(a)) score++;
+      }
+      if (score > bestScore || (score == bestScore && score > 0 && isBetter(b, best))) {
+        best = b;
+        bestScore = score;
+      }
+    }
+    return best;
+  }
+
+  // The build the SHA-256 line of the crash names, or null if there is no
+  // such line
+  Build matchElfSha(CharSequence crash) {
+    String sha = findElfSha(crash);
+    return sha == null ? null : find(sha);
+  }
+
+  private synchronized boolean isBetter(Build b, Build than) {
+    boolean bLoaded = loaded.containsKey(b.elf);
+    boolean thanLoaded = loaded.containsKey(than.elf);
+    if (bLoaded != thanLoaded) return bLoaded;
+    return b.modified > than.modified;
+  }
+
+  // The decoder of the build, loading it if it isn't one of the last used.
+  // It is acquired for the caller, who must release() it when done.
+  synchronized CrashDecoder getDecoder(Build b) {
+    CrashDecoder d = loaded.get(b.elf);
+    if (d == null) {
+      d = retired.remove(b.elf);
+      if (d == null || !d.unretire()) d = new CrashDecoder(tool, b.elf);
+      loaded.put(b.elf, d);
+    }
+    d.acquire();
+    return d;
+  }
+
+  synchronized boolean isLoaded(Build b) {
+    return loaded.containsKey(b.elf);
+  }
+
+  synchronized void close() {
+    for (CrashDecoder d : loaded.values()) {
+      d.close();
+    }
+    for (CrashDecoder d : retired.values()) {
+      d.close();
+    }
+    loaded.clear();
+    retired.clear();
+  }
+
+  // The hex digits following "ELF file SHA256:", or null
+  static String findElfSha(CharSequence text) {
+    String s = text.toString();
+    int at = s.indexOf(ELF_SHA);
+    if (at == -1) return null;
+    int i = at + ELF_SHA.length();
+    while (i < s.length() && (s.charAt(i) == ' ' || s.charAt(i) == '\t')) i++;
+    if (s.startsWith("0x", i)) i += 2;
+    int start = i;
+    while (i < s.length() && Character.digit(s.charAt(i), 16) != -1) i++;
+    return i - start >= MIN_PREFIX ? s.substring(start, i).toLowerCase(Locale.ROOT) : null;
+  }
+
+  private static boolean hasPrefix(String value, String hex) {
+    return value != null && (value.equals(hex) || (hex.length() >= MIN_PREFIX && value.startsWith(hex)));
+  }
+
+  private void scanFolder(File root, final List<Build> found) throws IOException {
+    final File indexFile = new File(root, INDEX);
+    final Map<File, Build> known = readIndex(indexFile);
+    final boolean[] changed = { false };
+    Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+      public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+        if (!attrs.isRegularFile() || !path.getFileName().toString().endsWith(".elf")) {
+          return FileVisitResult.CONTINUE;
+        }
+        File f = path.toFile().getAbsoluteFile();
+        Build b = known.get(f);
+        if (b == null || !b.isCurrent(f)) {
+          b = index(f);
+          changed[0] = true;
+        }
+        if (b != null) found.add(b);
+        return FileVisitResult.CONTINUE;
+      }
+      public FileVisitResult visitFileFailed(Path path, IOException e) {
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    if (changed[0] || found.size() != known.size()) {
+      writeIndex(indexFile, root, found);
+    }
+  }
+
+  // Read what the registry needs from the ELF, or null if it isn't one
+  private static Build index(File f) {
+    f = f.getAbsoluteFile();
+    try {
+      long modified = f.lastModified();
+      long length = f.length();
+      String hash;
+      InputStream in = new FileInputStream(f);
+      try {
+        hash = DigestUtils.sha256Hex(in);
+      } finally {
+        in.close();
+      }
+      ElfFile elf = new ElfFile(f);
+      String[] desc = elf.getAppDescription();
+      long[][] code = elf.getExecutableRanges();
+      return new Build(f, modified, length, hash, elf.getBuildId(), desc == null ? null : desc[0],
+                       desc == null ? null : desc[1], code[0], code[1]);
+    } catch (IOException e) {
+      System.err.println("WARNING: " + f + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  // One line per ELF: path, modified, length, hash, build ID, project,
+  // version and the code ranges as start-end pairs, "-" for what is missing
+  private static Map<File, Build> readIndex(File indexFile) {
+    Map<File, Build> known = new HashMap<File, Build>();
+    if (!indexFile.isFile()) return known;
+    File root = indexFile.getParentFile().getAbsoluteFile();
+    try {
+      BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8));
+      try {
+        String line;
+        while ((line = r.readLine()) != null) {
+          String[] p = line.split("\t", -1);
+          if (p.length != 8) continue;
+          String[] ranges = p[7].equals("-") ? new String[0] : p[7].split(",");
+          long[] start = new long[ranges.length];
+          long[] end = new long[ranges.length];
+          for (int i = 0; i < ranges.length; i++) {
+            int dash = ranges[i].indexOf('-');
+            start[i] = Long.parseLong(ranges[i].substring(0, dash), 16);
+            end[i] = Long.parseLong(ranges[i].substring(dash + 1), 16);
+          }
+          File f = new File(root, p[0]).getAbsoluteFile();
+          known.put(f, new Build(f, Long.parseLong(p[1]), Long.parseLong(p[2]), p[3], orNull(p[4]),
+                                 orNull(p[5]), orNull(p[6]), start, end));
+        }
+      } finally {
+        r.close();
+      }
+    } catch (Exception e) {
+      // Index everything again
+      System.err.println("WARNING: " + indexFile + ": " + e.getMessage());
+      known.clear();
+    }
+    return known;
+  }
+
+  private static void writeIndex(File indexFile, File root, List<Build> found) {
+    Path base = root.getAbsoluteFile().toPath();
+    StringBuilder sb = new StringBuilder();
+    for (Build b : found) {
+      if (!b.elf.toPath().startsWith(base)) continue;
+      sb.append(base.relativize(b.elf.toPath()).toString()).append('\t');
+      sb.append(b.modified).append('\t').append(b.length).append('\t').append(b.hash).append('\t');
+      sb.append(orDash(b.buildId)).append('\t').append(orDash(b.project)).append('\t').append(orDash(b.version)).append('\t');
+      for (int i = 0; i < b.codeStart.length; i++) {
+        if (i > 0) sb.append(',');
+        sb.append(Long.toHexString(b.codeStart[i])).append('-').append(Long.toHexString(b.codeEnd[i]));
+      }
+      if (b.codeStart.length == 0) sb.append('-');
+      sb.append('\n');
+    }
+    try {
+      File tmp = new File(indexFile.getPath() + ".tmp");
+      Files.write(tmp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+      Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      // A read-only folder is indexed again next time
+      System.err.println("WARNING: can't write " + indexFile + ": " + e.getMessage());
+    }
+  }
+
+  private static String orNull(String s) {
+    return s.equals("-") ? null : s;
+  }
+
+  private static String orDash(String s) {
+    return s == null || s.length() == 0 ? "-" : s;
+  }
+}
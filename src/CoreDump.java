@@ -0,0 +1,307 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.List;
+
+// An ESP-IDF core dump printed to the console: base64 between
+// "CORE DUMP START" and "CORE DUMP END", which decodes to a small header
+// and an ELF core file. The notes of the core hold the registers of every
+// task, its loads the TCBs and stacks, which is enough to walk the stack
+// of each task the way the panic handler would have. Only the ELF format
+// is understood, not the older binary one.
+class CoreDump {
+  static final String START = "CORE DUMP START";
+  static final String END = "CORE DUMP END";
+
+  static final int PT_LOAD = 1;
+  static final int PT_NOTE = 4;
+  static final int NT_PRSTATUS = 1;
+  static final int NT_EXTRA_INFO = 677;
+  static final int NT_CORE_DUMP_INFO = 8266;
+
+  // Where things are in the prstatus note and the TCB
+  private static final int PR_PID = 24;
+  private static final int PR_REG = 72;
+  private static final int XTENSA_A0 = PR_REG + 64 * 4;
+  private static final int TCB_NAME = 0x34;
+  private static final int TASK_NAME_LENGTH = 16;
+  // Register numbers in the extra info note
+  private static final int XTENSA_EXCCAUSE = 232;
+  private static final int XTENSA_EXCVADDR = 238;
+  private static final int RISCV_MCAUSE = 0x342;
+  private static final int RISCV_MTVAL = 0x343;
+
+  static final int MAX_FRAMES = 64;
+  // How far up a RISC-V task's stack return addresses are looked for
+  private static final int MAX_STACK_WORDS = 2048;
+  // The header in front of the ELF is at most this long
+  private static final int MAX_HEADER = 64;
+
+  static class Task {
+    final long tcb;
+    final long pc;
+    final long sp;
+    // a0 on Xtensa, ra on RISC-V
+    final long ra;
+    String name;
+    boolean crashed;
+
+    Task(long tcb, long pc, long sp, long ra) {
+      this.tcb = tcb;
+      this.pc = pc;
+      this.sp = sp;
+      this.ra = ra;
+    }
+  }
+
+  final int machine;
+  final List<Task> tasks = new ArrayList<Task>();
+  long crashedTcb = -1;
+  int exceptionCause = -1;
+  long faultAddress = -1;
+  // SHA-256 of the application ELF the dump was taken with, or null
+  String appSha;
+
+  private final ByteBuffer data;
+  // The memory of the loads, sorted by address
+  private long[] loadStart = new long[0];
+  private long[] loadEnd = new long[0];
+  private int[] loadOffset = new int[0];
+
+  private CoreDump(ByteBuffer data) throws IOException {
+    this.data = data;
+    if (data.get(4) != 1) {
+      throw new IOException("not a 32 bit core dump");
+    }
+    data.order(data.get(5) == 2 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    machine = data.getShort(0x12) & 0xffff;
+    readSegments();
+    for (Task t : tasks) {
+      t.crashed = t.tcb == crashedTcb;
+      t.name = readTaskName(t.tcb);
+    }
+    if (crashedTcb == -1 && !tasks.isEmpty()) {
+      // Older dumps have no extra info, the crashed task comes first
+      tasks.get(0).crashed = true;
+    }
+  }
+
+  // Decode the base64 between start and end of the text, anything that
+  // isn't base64 in there like line breaks is skipped
+  static CoreDump parse(CharSequence text, int start, int end) throws IOException {
+    byte[] bytes = decodeBase64(text, start, end);
+    int elf = -1;
+    for (int i = 0; i + 4 <= bytes.length && i <= MAX_HEADER; i += 4) {
+      if (bytes[i] == 0x7f && bytes[i + 1] == 'E' && bytes[i + 2] == 'L' && bytes[i + 3] == 'F') {
+        elf = i;
+        break;
+      }
+    }
+    if (elf == -1) {
+      throw new IOException(bytes.length == 0 ? "no data" : "not in ELF format, only ELF core dumps can be decoded");
+    }
+    ByteBuffer b = ByteBuffer.wrap(bytes, elf, bytes.length - elf).slice();
+    if (b.limit() < 52) {
+      throw new IOException("truncated");
+    }
+    return new CoreDump(b);
+  }
+
+  // Straight from the text into the bytes, four characters at a time. The
+  // dump is encoded in chunks, so padding can show up in the middle.
+  static byte[] decodeBase64(CharSequence text, int start, int end) {
+    byte[] out = new byte[(end - start) / 4 * 3 + 3];
+    int n = 0;
+    int bits = 0;
+    int count = 0;
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      int v;
+      if (c >= 'A' && c <= 'Z') v = c - 'A';
+      else if (c >= 'a' && c <= 'z') v = c - 'a' + 26;
+      else if (c >= '0' && c <= '9') v = c - '0' + 52;
+      else if (c == '+') v = 62;
+      else if (c == '/') v = 63;
+      else {
+        if (c == '=') {
+          // The leftover bits of a padded group are zero
+          bits = 0;
+          count = 0;
+        }
+        continue;
+      }
+      bits = (bits << 6) | v;
+      count += 6;
+      if (count >= 8) {
+        count -= 8;
+        out[n++] = (byte) (bits >> count);
+        bits &= (1 << count) - 1;
+      }
+    }
+    return Arrays.copyOf(out, n);
+  }
+
+  private void readSegments() throws IOException {
+    int phoff = data.getInt(0x1c);
+    int phentsize = data.getShort(0x2a) & 0xffff;
+    int phnum = data.getShort(0x2c) & 0xffff;
+    if (phoff <= 0 || phentsize < 32 || phoff + (long) phnum * phentsize > data.limit()) {
+      throw new IOException("truncated");
+    }
+    List<long[]> loads = new ArrayList<long[]>();
+    for (int i = 0; i < phnum; i++) {
+      int o = phoff + i * phentsize;
+      int offset = data.getInt(o + 4);
+      long vaddr = data.getInt(o + 8) & 0xffffffffL;
+      int filesz = data.getInt(o + 16);
+      if (offset < 0 || filesz < 0 || (long) offset + filesz > data.limit()) continue;
+      if (data.getInt(o) == PT_LOAD && filesz > 0) {
+        loads.add(new long[] { vaddr, vaddr + filesz, offset });
+      } else if (data.getInt(o) == PT_NOTE) {
+        readNotes(offset, offset + filesz);
+      }
+    }
+    Collections.sort(loads, new Comparator<long[]>() {
+      public int compare(long[] a, long[] b) {
+        return Long.compare(a[0], b[0]);
+      }
+    });
+    loadStart = new long[loads.size()];
+    loadEnd = new long[loads.size()];
+    loadOffset = new int[loads.size()];
+    for (int i = 0; i < loads.size(); i++) {
+      loadStart[i] = loads.get(i)[0];
+      loadEnd[i] = loads.get(i)[1];
+      loadOffset[i] = (int) loads.get(i)[2];
+    }
+  }
+
+  private void readNotes(int start, int end) {
+    int o = start;
+    while (o + 12 <= end) {
+      int nameSize = data.getInt(o);
+      int descSize = data.getInt(o + 4);
+      int type = data.getInt(o + 8);
+      int desc = o + 12 + ((nameSize + 3) & ~3);
+      if (nameSize < 0 || descSize < 0 || desc + (long) descSize > end) return;
+      if (type == NT_PRSTATUS && descSize >= PR_REG + 12) {
+        long tcb = word(desc + PR_PID);
+        long pc = word(desc + PR_REG);
+        if (machine == ElfFile.EM_RISCV) {
+          tasks.add(new Task(tcb, pc, word(desc + PR_REG + 8), word(desc + PR_REG + 4)));
+        } else if (descSize >= XTENSA_A0 + 8) {
+          tasks.add(new Task(tcb, pc, word(desc + XTENSA_A0 + 4), word(desc + XTENSA_A0)));
+        }
+      } else if (type == NT_EXTRA_INFO && descSize >= 4) {
+        crashedTcb = word(desc);
+        for (int p = desc + 4; p + 8 <= desc + descSize; p += 8) {
+          long reg = word(p);
+          long value = word(p + 4);
+          if (reg == XTENSA_EXCCAUSE || reg == RISCV_MCAUSE) exceptionCause = (int) value;
+          if (reg == XTENSA_EXCVADDR || reg == RISCV_MTVAL) faultAddress = value;
+        }
+      } else if (type == NT_CORE_DUMP_INFO && descSize >= 4 + 64) {
+        byte[] sha = new byte[64];
+        for (int i = 0; i < sha.length; i++) sha[i] = data.get(desc + 4 + i);
+        appSha = new String(sha, StandardCharsets.US_ASCII).trim();
+      }
+      o = desc + ((descSize + 3) & ~3);
+    }
+  }
+
+  private long word(int offset) {
+    return data.getInt(offset) & 0xffffffffL;
+  }
+
+  // Whether the dump has the memory at the address
+  boolean hasMemory(long address, int length) {
+    int i = ElfFile.floor(loadStart, loadStart.length, address);
+    return i >= 0 && address + length <= loadEnd[i];
+  }
+
+  // The word of memory at the address, or -1 if the dump doesn't have it
+  long readWord(long address) {
+    int i = ElfFile.floor(loadStart, loadStart.length, address);
+    if (i < 0 || address + 4 > loadEnd[i]) return -1;
+    return word(loadOffset[i] + (int) (address - loadStart[i]));
+  }
+
+  // pcTaskName of the TCB if it looks like a name, else null
+  private String readTaskName(long tcb) {
+    if (!hasMemory(tcb + TCB_NAME, TASK_NAME_LENGTH)) return null;
+    int i = ElfFile.floor(loadStart, loadStart.length, tcb);
+    int o = loadOffset[i] + (int) (tcb + TCB_NAME - loadStart[i]);
+    StringBuilder sb = new StringBuilder();
+    for (int k = 0; k < TASK_NAME_LENGTH; k++) {
+      int c = data.get(o + k) & 0xff;
+      if (c == 0) break;
+      if (c < 0x20 || c > 0x7e) return null;
+      sb.append((char) c);
+    }
+    return sb.length() == 0 ? null : sb.toString();
+  }
+
+  // The code addresses the task was in, innermost first. elf is the
+  // application, used to tell code from data, or null.
+  List<Long> backtrace(Task t, ElfFile elf) {
+    if (machine == ElfFile.EM_RISCV) {
+      return riscvBacktrace(t, elf);
+    }
+    List<Long> frames = new ArrayList<Long>();
+    frames.add(t.pc);
+    // The windowed ABI: the caller's PC is in a0 with the window size in
+    // the top bits, the caller's a0 and a1 are saved below the stack pointer
+    long next = t.ra;
+    long sp = t.sp;
+    while (next != 0 && frames.size() < MAX_FRAMES) {
+      long pc = ((next & 0x3fffffffL) | 0x40000000L) - 3;
+      if (!CrashDecoder.isCodeAddress(elf, pc)) break;
+      frames.add(pc);
+      long caller = readWord(sp - 16);
+      long callerSp = readWord(sp - 12);
+      if (caller == -1 || callerSp == -1 || callerSp <= sp) break;
+      next = caller;
+      sp = callerSp;
+    }
+    return frames;
+  }
+
+  // RISC-V keeps no frame chain, take the PC, ra and whatever return
+  // addresses are on the task's stack
+  private List<Long> riscvBacktrace(Task t, ElfFile elf) {
+    List<Long> frames = new ArrayList<Long>();
+    frames.add(t.pc);
+    if (CrashDecoder.isCodeAddress(elf, t.ra)) frames.add(t.ra);
+    List<Long> words = new ArrayList<Long>();
+    for (int i = 0; i < MAX_STACK_WORDS; i++) {
+      long w = readWord(t.sp + i * 4);
+      if (w == -1) break;
+      if (CrashDecoder.isCodeAddress(elf, w)) words.add(w);
+    }
+    for (Long a : elf == null ? words : RiscvStack.returnAddresses(elf, words)) {
+      if (frames.size() == MAX_FRAMES) break;
+      if (!a.equals(frames.get(frames.size() - 1))) frames.add(a);
+    }
+    return frames;
+  }
+}
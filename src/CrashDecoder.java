@@ -0,0 +1,1194 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+// Decodes crash logs against one ELF. Knows nothing about the IDE, so the
+// window and the command line can both drive it. One decoder can be used
+// by several threads at once.
+class CrashDecoder {
+  static String[] exceptions = {
+    "Illegal instruction",
+    "SYSCALL instruction",
+    "InstructionFetchError: Processor internal physical address or data error during instruction fetch",
+    "LoadStoreError: Processor internal physical address or data error during load or store",
+    "Level1Interrupt: Level-1 interrupt as indicated by set level-1 bits in the INTERRUPT register",
+    "Alloca: MOVSP instruction, if caller's registers are not in the register file",
+    "IntegerDivideByZero: QUOS, QUOU, REMS, or REMU divisor operand is zero",
+    "reserved",
+    "Privileged: Attempt to execute a privileged operation when CRING ? 0",
+    "LoadStoreAlignmentCause: Load or store to an unaligned address",
+    "reserved",
+    "reserved",
+    "InstrPIFDataError: PIF data error during instruction fetch",
+    "LoadStorePIFDataError: Synchronous PIF data error during LoadStore access",
+    "InstrPIFAddrError: PIF address error during instruction fetch",
+    "LoadStorePIFAddrError: Synchronous PIF address error during LoadStore access",
+    "InstTLBMiss: Error during Instruction TLB refill",
+    "InstTLBMultiHit: Multiple instruction TLB entries matched",
+    "InstFetchPrivilege: An instruction fetch referenced a virtual address at a ring level less than CRING",
+    "reserved",
+    "InstFetchProhibited: An instruction fetch referenced a page mapped with an attribute that does not permit instruction fetch",
+    "reserved",
+    "reserved",
+    "reserved",
+    "LoadStoreTLBMiss: Error during TLB refill for a load or store",
+    "LoadStoreTLBMultiHit: Multiple TLB entries matched for a load or store",
+    "LoadStorePrivilege: A load or store referenced a virtual address at a ring level less than CRING",
+    "reserved",
+    "LoadProhibited: A load referenced a page mapped with an attribute that does not permit loads",
+    "StoreProhibited: A store referenced a page mapped with an attribute that does not permit stores"
+  };
+
+  // MCAUSE of the RISC-V chips (ESP32-C3/C6/H2), when it's an exception
+  static String[] riscvExceptions = {
+    "Instruction address misaligned",
+    "Instruction access fault",
+    "Illegal instruction",
+    "Breakpoint",
+    "Load address misaligned",
+    "Load access fault",
+    "Store address misaligned",
+    "Store access fault",
+    "Environment call from U-mode",
+    "Environment call from S-mode",
+    "reserved",
+    "Environment call from M-mode",
+    "Instruction page fault",
+    "Load page fault",
+    "reserved",
+    "Store page fault"
+  };
+
+  // Threads resolving the tasks of a core dump at once
+  static final int TASK_THREADS = 4;
+
+  final File tool;
+  final File elf;
+  private ElfSymbolizer symbolizer;
+  private long symbolizerFailed = -1;
+  private AddressCache cache;
+  private SymbolIndex index;
+  // The ELF hash the index was last looked for
+  private String indexHash;
+  // Decodes running, whether retire() asked to close once they are done,
+  // and whether that happened
+  private int running;
+  private boolean retired;
+  private boolean closed;
+
+  // tool is the gdb to ask about what the ELF itself can't answer, or null
+  CrashDecoder(File tool, File elf) {
+    this.tool = tool;
+    this.elf = elf;
+  }
+
+  boolean isFor(File tool, File elf) {
+    return (tool == null ? this.tool == null : tool.equals(this.tool)) && elf.equals(this.elf);
+  }
+
+  // One decode run. Its output is shared only with the gdb thread that
+  // answers its queries. Override show() and status() to watch it progress.
+  static class Decode {
+    final String content;
+    final CrashReport report = new CrashReport();
+    private final StringBuilder output = new StringBuilder();
+    private int taken;
+    // The gdb queries of the run, until doneGdb()
+    private final List<GdbSession.Query> queries = new ArrayList<GdbSession.Query>();
+    private volatile boolean cancelled;
+    // Every address of a log with many crashes, looked up before any of
+    // them is printed
+    volatile Map<Long, SourceLocation> resolved;
+
+    Decode(String content) {
+      this.content = content;
+    }
+
+    boolean isCancelled() {
+      return cancelled;
+    }
+
+    // Superseded while gdb is working for us, stop waiting for it. The
+    // sessions are shared with other decodes and stay up; the answers to
+    // our queries are dropped when they come.
+    void cancel() {
+      cancelled = true;
+      List<GdbSession.Query> asked;
+      synchronized (queries) {
+        asked = new ArrayList<GdbSession.Query>(queries);
+      }
+      for (GdbSession.Query q : asked) q.abandon();
+    }
+
+    synchronized void print(String html) {
+      output.append(html);
+    }
+
+    void printLogLine(String line, String color){
+      print("<b><font color="+color+">"+line+"</font></b>\n");
+    }
+
+    void printError(String line){
+      printLogLine(line, "red");
+      synchronized (report) {
+        report.error = line;
+      }
+    }
+
+    // The html lines printed since the last call, only whole lines
+    synchronized String takeOutput() {
+      int end = output.lastIndexOf("\n") + 1;
+      if (end <= taken) return "";
+      String s = output.substring(taken, end);
+      taken = end;
+      return s;
+    }
+
+    // Everything decoded so far is ready to be shown
+    void show() {
+    }
+
+    void status(String message, boolean error) {
+    }
+
+    void statusNotice(String message) {
+      status(message, false);
+    }
+
+    void statusError(String message) {
+      status(message, true);
+    }
+
+    // Remember the queries until doneGdb() so a cancel can give them up
+    List<GdbSession.Query> useGdb(List<GdbSession.Query> asked) {
+      synchronized (queries) {
+        queries.addAll(asked);
+      }
+      if (isCancelled()) {
+        for (GdbSession.Query q : asked) q.abandon();
+      }
+      return asked;
+    }
+
+    void doneGdb() {
+      synchronized (queries) {
+        queries.clear();
+      }
+    }
+  }
+
+  // Original code from processing.app.helpers.ProcessUtils.exec()
+  // Need custom version to redirect STDERR to STDOUT for GDB processing
+  static Process execRedirected(String[] command) throws IOException {
+    ProcessBuilder pb;
+
+    // No problems on linux and mac
+    if (!System.getProperty("os.name").startsWith("Windows")) {
+      pb = new ProcessBuilder(command);
+    } else {
+      // Brutal hack to workaround windows command line parsing.
+      // http://stackoverflow.com/questions/5969724/java-runtime-exec-fails-to-escape-characters-properly
+      // http://msdn.microsoft.com/en-us/library/a1y7w461.aspx
+      // http://bugs.sun.com/view_bug.do?bug_id=6468220
+      // http://bugs.sun.com/view_bug.do?bug_id=6518827
+      String[] cmdLine = new String[command.length];
+      for (int i = 0; i < command.length; i++)
+        cmdLine[i] = command[i].replace("\"", "\\\"");
+      pb = new ProcessBuilder(cmdLine);
+      Map<String, String> env = pb.environment();
+      env.put("CYGWIN", "nodosfilewarning");
+    }
+    pb.redirectErrorStream(true);
+
+    return pb.start();
+  }
+
+  private GdbSession getSession() throws IOException {
+    if (tool == null) {
+      throw new IOException("gdb not found");
+    }
+    return GdbSession.get(tool, elf);
+  }
+
+  // Ask gdb about a batch of addresses, on as many sessions as it is big
+  // enough for. The queries are in the order of the addresses.
+  private List<GdbSession.Query> listAll(Decode d, List<String> addresses, GdbSession.Listener listener) throws IOException {
+    if (tool == null) {
+      throw new IOException("gdb not found");
+    }
+    List<GdbSession> workers = GdbSession.getWorkers(tool, elf, GdbSession.workersFor(addresses.size()));
+    return d.useGdb(GdbSession.listAll(workers, addresses, listener));
+  }
+
+  // The built-in ELF/DWARF symbolizer, loaded once per ELF. Returns null
+  // if the ELF can't be read, in which case everything goes to gdb.
+  private synchronized ElfSymbolizer getSymbolizer() {
+    if (symbolizer != null && symbolizer.isCurrent()) {
+      return symbolizer;
+    }
+    if (symbolizerFailed == elf.lastModified()) {
+      return null;
+    }
+    symbolizer = null;
+    long start = DecodeStats.start();
+    try {
+      symbolizer = new ElfSymbolizer(elf);
+    } catch (Exception e) {
+      System.err.println("Symbolizer Exception: "+e.getMessage());
+      symbolizerFailed = elf.lastModified();
+    }
+    DecodeStats.end(DecodeStats.SYMBOLS, start);
+    return symbolizer;
+  }
+
+  // The address cache for the ELF, or null if it can't be used
+  private synchronized AddressCache getCache() {
+    if (cache != null && cache.isFor(elf)) {
+      return cache;
+    }
+    cache = null;
+    try {
+      cache = AddressCache.open(elf, AddressCache.folderFor(elf));
+    } catch (Exception e) {
+      System.err.println("Cache Exception: "+e.getMessage());
+    }
+    return cache;
+  }
+
+  // The symbol index next to the ELF, or null if it has none for what the
+  // ELF is now
+  private synchronized SymbolIndex getIndex() {
+    AddressCache c = getCache();
+    if (c == null) {
+      return null;
+    }
+    if (!c.hash.equals(indexHash)) {
+      indexHash = c.hash;
+      index = SymbolIndex.open(elf, c.hash);
+    }
+    return index;
+  }
+
+  // Write the symbol index next to the ELF if it has none for this build
+  // yet, so the next decodes don't have to read the debug info
+  private void writeIndex() {
+    ElfSymbolizer sym = getSymbolizer();
+    AddressCache c = getCache();
+    if (sym == null || c == null || getIndex() != null) {
+      return;
+    }
+    try {
+      SymbolIndex.write(sym, c.hash);
+      synchronized (this) {
+        indexHash = null;
+      }
+    } catch (IOException e) {
+      System.err.println("Symbol Index Exception: "+e.getMessage());
+    }
+  }
+
+  // Resolve from the cache, the symbol index or with the built-in
+  // symbolizer. Returns null if gdb has to be asked.
+  private SourceLocation lookupAddress(long address) {
+    DecodeStats.count(DecodeStats.ADDRESSES_QUERIED);
+    AddressCache c = getCache();
+    SourceLocation location = (c == null)?null:c.get(address);
+    if (location != null) {
+      DecodeStats.count(DecodeStats.CACHE_HITS);
+      if (!location.isUnknown()) DecodeStats.count(DecodeStats.ADDRESSES_RESOLVED);
+      return location;
+    }
+    SymbolIndex idx = getIndex();
+    if (idx != null) {
+      location = idx.lookup(address);
+    } else {
+      ElfSymbolizer sym = getSymbolizer();
+      if (sym == null) {
+        return null;
+      }
+      location = sym.lookup(address);
+    }
+    if (location != null) {
+      DecodeStats.count(DecodeStats.ADDRESSES_RESOLVED);
+      if (c != null) c.put(location);
+    }
+    return location;
+  }
+
+  // What the run already found out about the address, or else lookupAddress()
+  private SourceLocation lookupAddress(Decode d, long address) {
+    Map<Long, SourceLocation> resolved = d.resolved;
+    SourceLocation location = (resolved == null)?null:resolved.get(address);
+    return (location != null)?location:lookupAddress(address);
+  }
+
+  // Turn gdb's answer into a location, remembering it in the cache. The
+  // location is unknown if gdb had nothing to say.
+  private SourceLocation gdbResult(long address, GdbSession.Query q) {
+    long start = DecodeStats.start();
+    SourceLocation location = parseGdbResult(address, q);
+    DecodeStats.end(DecodeStats.GDB_OUTPUT, start);
+    if (!location.isUnknown()) DecodeStats.count(DecodeStats.ADDRESSES_RESOLVED);
+    return location;
+  }
+
+  private SourceLocation parseGdbResult(long address, GdbSession.Query q) {
+    AddressCache c = getCache();
+    for (String line : q.getLines()) {
+      SourceLocation location = SourceLocation.parseGDBLine(line);
+      if (location != null) {
+        if (c != null) c.put(location);
+        return location;
+      }
+      int atIndex = line.indexOf(" is in ");
+      if (line.startsWith("0x") && atIndex != -1) {
+        // Something weird in the GDB output format, report what we can
+        return new SourceLocation(address, line.substring(atIndex + 7), null, 0);
+      }
+    }
+    if (q.isAnswered() && c != null) {
+      // gdb knows nothing about it, don't ask again
+      c.put(new SourceLocation(address, null, null, 0));
+    }
+    return new SourceLocation(address, null, null, 0);
+  }
+
+  // Load the symbols and open the cache now instead of on the first decode.
+  // Without a symbol index for the build the debug info is read and the
+  // index written.
+  void preload() {
+    getSymbolizer();
+    getCache();
+    writeIndex();
+  }
+
+  // Everything preload() does, and start gdb too
+  void warmUp() {
+    preload();
+    if (tool != null) {
+      try {
+        getSession();
+      } catch (IOException e) {
+        System.err.println("GDB Exception: "+e.getMessage());
+      }
+    }
+  }
+
+  // The GNU build ID of the ELF, or null if it has none or can't be read
+  String getBuildId() {
+    ElfSymbolizer sym = getSymbolizer();
+    return (sym == null)?null:sym.getElf().getBuildId();
+  }
+
+  // The SHA-256 of the ELF, or null if the cache couldn't hash it
+  String getHash() {
+    AddressCache c = getCache();
+    return (c == null)?null:c.hash;
+  }
+
+  // close() as soon as no decode is running or handed out, which may be
+  // right away. The
+  // gdb sessions are shared by every decode of the ELF, closing them under
+  // a running one would fail its lookups.
+  void retire() {
+    synchronized (this) {
+      retired = true;
+      if (running > 0 || closed) return;
+      closed = true;
+    }
+    close();
+  }
+
+  // Take back retire() if it hasn't closed anything yet
+  synchronized boolean unretire() {
+    if (closed) return false;
+    retired = false;
+    return true;
+  }
+
+  synchronized boolean isClosed() {
+    return closed;
+  }
+
+  // Let go of the symbols, the cache and the gdb session. Decodes still
+  // running keep what they hold; the next one loads everything again.
+  void close() {
+    synchronized (this) {
+      symbolizer = null;
+      cache = null;
+      index = null;
+      indexHash = null;
+    }
+    if (tool != null) {
+      GdbSession.close(tool, elf);
+    }
+  }
+
+  String getCacheStats() {
+    AddressCache c;
+    synchronized (this) {
+      c = cache;
+    }
+    return (c == null)?"":" ("+c.getStats()+")";
+  }
+
+  // Look up the addresses, each distinct one once. The built-in symbolizer
+  // answers what it can, the rest goes to gdb, and the results are printed
+  // in the original order as soon as every earlier one is known.
+  private void decodeAddresses(final Decode d, List<Long> addresses){
+    // slot[i] is where the result for addresses[i] goes
+    final List<Long> unique = new ArrayList<Long>();
+    final int[] slot = new int[addresses.size()];
+    Map<Long, Integer> seen = new HashMap<Long, Integer>();
+    for (int i = 0; i < addresses.size(); i++) {
+      Integer s = seen.get(addresses.get(i));
+      if (s == null) {
+        s = unique.size();
+        seen.put(addresses.get(i), s);
+        unique.add(addresses.get(i));
+      }
+      slot[i] = s;
+    }
+
+    final SourceLocation[] results = new SourceLocation[unique.size()];
+    final int[] printed = new int[1];
+    final List<String> gdbAddresses = new ArrayList<String>();
+    final List<Integer> gdbIndexes = new ArrayList<Integer>();
+    for (int i = 0; i < unique.size(); i++) {
+      SourceLocation location = lookupAddress(d, unique.get(i));
+      if (location != null) {
+        results[i] = location;
+      } else {
+        gdbAddresses.add(Long.toHexString(unique.get(i)));
+        gdbIndexes.add(i);
+      }
+    }
+    printResults(d, results, slot, printed);
+    if (gdbAddresses.isEmpty()) {
+      d.statusNotice("Decode Success"+getCacheStats());
+      return;
+    }
+    d.show();
+    try {
+      List<GdbSession.Query> queries = listAll(d, gdbAddresses, new GdbSession.Listener() {
+        public void queryDone(GdbSession.Query q) {
+          synchronized (results) {
+            int i = gdbIndexes.get(q.index);
+            results[i] = gdbResult(Long.parseLong(q.address, 16), q);
+            printResults(d, results, slot, printed);
+          }
+          d.show();
+        }
+      });
+      GdbSession.waitAll(queries);
+      if (d.isCancelled()) {
+        return;
+      }
+      boolean failed = false;
+      for (GdbSession.Query q : queries) {
+        if (!q.isAnswered()) failed = true;
+      }
+      if(failed){
+        d.printError("Decode Failed");
+        d.statusError("Decode Failed");
+      } else {
+        d.statusNotice("Decode Success"+getCacheStats());
+      }
+    } catch (Exception e){
+      if (d.isCancelled()) return;
+      d.statusError("Decode Exception");
+      d.printError("Decode Exception: "+e.getMessage());
+    } finally {
+      d.doneGdb();
+      // Whatever never got an answer is reported as unknown
+      synchronized (results) {
+        for (int i = 0; i < results.length; i++) {
+          if (results[i] == null) results[i] = new SourceLocation(unique.get(i), null, null, 0);
+        }
+        printResults(d, results, slot, printed);
+      }
+    }
+  }
+
+  // Look up the addresses of many backtraces at once, one backtrace per
+  // thread with the built-in symbolizer, then everything it didn't know in
+  // one batch to gdb. Every address gets a location, unknown if need be.
+  private Map<Long, SourceLocation> resolveAll(final Decode d, List<List<Long>> traces) {
+    final Map<Long, SourceLocation> found = new ConcurrentHashMap<Long, SourceLocation>();
+    final Set<Long> missing = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    int threads = Math.max(1, Math.min(traces.size(), TASK_THREADS));
+    ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "lookup " + elf.getName());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (final List<Long> trace : traces) {
+        futures.add(pool.submit(new Runnable() {
+          public void run() {
+            for (Long a : trace) {
+              if (d.isCancelled()) return;
+              if (found.containsKey(a) || missing.contains(a)) continue;
+              SourceLocation location = lookupAddress(a);
+              if (location != null) found.put(a, location);
+              else missing.add(a);
+            }
+          }
+        }));
+      }
+      for (Future<?> f : futures) f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      System.err.println("Lookup Exception: "+e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+
+    missing.removeAll(found.keySet());
+    if (!missing.isEmpty() && !d.isCancelled()) {
+      List<String> gdbAddresses = new ArrayList<String>();
+      for (Long a : missing) gdbAddresses.add(Long.toHexString(a));
+      try {
+        List<GdbSession.Query> queries = listAll(d, gdbAddresses, null);
+        GdbSession.waitAll(queries);
+        for (GdbSession.Query q : queries) {
+          long a = Long.parseLong(q.address, 16);
+          found.put(a, gdbResult(a, q));
+        }
+      } catch (Exception e) {
+        if (!d.isCancelled()) System.err.println("Lookup Exception: "+e.getMessage());
+      } finally {
+        d.doneGdb();
+      }
+    }
+    for (List<Long> trace : traces) {
+      for (Long a : trace) {
+        if (!found.containsKey(a)) found.put(a, new SourceLocation(a, null, null, 0));
+      }
+    }
+    return found;
+  }
+
+  // Print the results that are known, stopping at the first one still missing
+  private void printResults(Decode d, SourceLocation[] results, int[] slot, int[] printed) {
+    synchronized (results) {
+      while (printed[0] < slot.length && results[slot[printed[0]]] != null) {
+        SourceLocation location = results[slot[printed[0]++]];
+        synchronized (d.report) {
+          d.report.stack.add(location);
+        }
+        if (!location.isUnknown())
+          d.print(prettyPrintLocation(location) +"\n");
+      }
+    }
+  }
+
+  // Resolve the address from the cache or with the built-in symbolizer, or
+  // ask the running GDB session to list it. Returns null if nothing is known.
+  private SourceLocation decodeFunctionAtAddress( Decode d, long address ) {
+    SourceLocation location = lookupAddress(d, address);
+    if (location == null) {
+      try {
+        List<GdbSession.Query> queries = listAll(d, Collections.singletonList(Long.toHexString(address)), null);
+        GdbSession.waitAll(queries);
+        location = gdbResult(address, queries.get(0));
+      } catch (Exception e) {
+        // Something went wrong
+        System.err.println("Function Decode Exception: "+e.getMessage());
+      } finally {
+        d.doneGdb();
+      }
+    }
+    return (location == null || location.isUnknown())?null:location;
+  }
+
+  static String prettyPrintLocation(SourceLocation location) {
+    String method = (location.function == null)?"??":escapeHtml(location.function);
+    String html = "<font color=green>" + location.getAddressString() + ": </font>" +
+                  "<b><font color=blue>" + method + "</font></b>";
+    if (location.hasLine()) {
+      html += " at <a href=\"" + sourceLink(location) + "\">" + boldFileName(escapeHtml(location.file)) +
+              " line <b>" + location.line + "</b></a>";
+    }
+    return html;
+  }
+
+  // The lines shown around a frame's line when it is expanded
+  static final int SOURCE_CONTEXT = 3;
+  static final String SOURCE_LINK = "source:";
+
+  // "source:<line>:<file>", what the window expands into a preview
+  static String sourceLink(SourceLocation location) {
+    try {
+      return SOURCE_LINK + location.line + ":" + URLEncoder.encode(location.file, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // The source around the line of a sourceLink(), numbered and with the
+  // line itself in bold, one line of html each. Null if it isn't a link
+  // or the file can't be read.
+  static String sourcePreview(String link) {
+    if (!link.startsWith(SOURCE_LINK)) return null;
+    int colon = link.indexOf(':', SOURCE_LINK.length());
+    if (colon == -1) return null;
+    int line;
+    String file;
+    try {
+      line = Integer.parseInt(link.substring(SOURCE_LINK.length(), colon));
+      file = URLDecoder.decode(link.substring(colon + 1), "UTF-8");
+    } catch (Exception e) {
+      return null;
+    }
+    List<String> lines = SourceCache.get().getLines(file, line - SOURCE_CONTEXT, line + SOURCE_CONTEXT);
+    if (lines == null) {
+      return "<font color=gray>    " + escapeHtml(file) + " not found</font>\n";
+    }
+    StringBuilder sb = new StringBuilder();
+    int first = Math.max(1, line - SOURCE_CONTEXT);
+    for (int i = 0; i < lines.size(); i++) {
+      String text = escapeHtml(lines.get(i).replace("\t", "  "));
+      int n = first + i;
+      sb.append("<font color=gray>").append(String.format("%8d  ", n)).append("</font>");
+      sb.append(n == line ? "<b>" + text + "</b>" : text).append('\n');
+    }
+    return sb.toString();
+  }
+
+  static String boldFileName(String file) {
+    if(file.length() > 0){
+      int lastfs = file.lastIndexOf('/');
+      int lastbs = file.lastIndexOf('\\');
+      int slash = (lastfs > lastbs)?lastfs:lastbs;
+      if(slash != -1){
+        String filename = file.substring(slash+1);
+        file = file.substring(0,slash+1) + "<b>" + filename + "</b>";
+      }
+    }
+    return file;
+  }
+
+  static String escapeHtml(String s) {
+    return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  // An address in the range code can run from on the ESP8266/ESP32
+  static boolean isCodeAddress(long address) {
+    return address >= 0x40000000L && address <= 0x43ffffffL;
+  }
+
+  // The parsers listen to the tokenizer while it walks the input once,
+  // then each prints its part of the result
+  private abstract class Parser extends CrashLogTokenizer.Adapter {
+    abstract void decode(Decode d);
+
+    // Add the addresses decode() will look up
+    void collect(List<Long> addresses) {
+    }
+  }
+
+  // Main error cause
+  private class ExceptionParser extends Parser {
+    int exception = -1;
+    long mcause = -1;
+
+    public void exceptionCause(int cause) {
+      if (exception == -1) exception = cause;
+    }
+
+    public void register(String name, long value) {
+      if (mcause == -1 && name.equals("MCAUSE")) mcause = value;
+    }
+
+    void decode(Decode d) {
+      String text;
+      if (exception >= 0 && exception <= 29) {
+        text = exceptions[exception];
+      } else if (mcause >= 0 && mcause < riscvExceptions.length) {
+        // Interrupts have the top bit set and don't get here
+        exception = (int) mcause;
+        text = riscvExceptions[exception];
+      } else {
+        return;
+      }
+      synchronized (d.report) {
+        d.report.exception = exception;
+        d.report.exceptionText = text;
+      }
+      d.print("<b><font color=red>Exception "+exception+": "+text+"</font></b>\n");
+    }
+  }
+
+  // Only addresses in the code of the ELF are worth looking up. Without
+  // the ELF at hand, anything in the code address space is.
+  static boolean isCodeAddress(ElfFile elf, long address) {
+    if (elf != null && elf.hasExecutableRanges()) {
+      return elf.isExecutable(address);
+    }
+    return isCodeAddress(address);
+  }
+
+  // Pick out the STACK words or the BACKTRACE PCs, and generate the reference log
+  private class StackParser extends Parser {
+    final boolean backtrace;
+    final ElfFile elf;
+    final List<Long> addresses = new ArrayList<Long>();
+    // What the ESP8266 stack unwinder needs: the words of the dump by
+    // address, where the dump starts and the PC of the exception
+    final Map<Long, Long> memory = new HashMap<Long, Long>();
+    long sp = -1;
+    long pc = -1;
+    // A RISC-V panic, its "Stack memory:" is filtered for return addresses
+    boolean riscv;
+    boolean inside;
+    boolean done;
+    // What frames() worked out, once the input is all read
+    private List<Long> frames;
+
+    StackParser(boolean backtrace, ElfFile elf) {
+      this.backtrace = backtrace;
+      this.elf = elf;
+    }
+
+    public void stackBegin() {
+      inside = !backtrace && !done;
+    }
+
+    public void stackWord(long value) {
+      // Anything pointing into the code, dump!
+      if (inside && isCodeAddress(elf, value)) addresses.add(value);
+    }
+
+    public void stackMemory(long address, long value) {
+      if (!inside) return;
+      if (sp == -1) sp = address;
+      memory.put(address, value);
+    }
+
+    public void stackPointer(long sp, long offset) {
+      if (inside && this.sp == -1) this.sp = sp + offset;
+    }
+
+    public void register(String name, long value) {
+      if (backtrace) return;
+      if (pc == -1 && name.equals("epc1")) pc = value;
+      if (name.equals("MEPC")) riscv = true;
+    }
+
+    public void stackEnd() {
+      if (inside) done = true;
+      inside = false;
+    }
+
+    public void backtraceBegin() {
+      inside = backtrace && !done;
+    }
+
+    public void backtraceFrame(long pc, long sp) {
+      // The backtrace is exact, so every frame is kept, ROM ones too
+      if (inside) addresses.add(pc);
+    }
+
+    public void backtraceEnd() {
+      stackEnd();
+    }
+
+    // The real call chain if the stack can be unwound, or else every word
+    // that looks like a return address. Worked out on the first call.
+    private List<Long> frames() {
+      if (frames == null) {
+        frames = unwind();
+        if (frames.isEmpty()) {
+          boolean filter = !backtrace && elf != null
+              && (riscv || elf.machine == ElfFile.EM_RISCV);
+          frames = filter ? RiscvStack.returnAddresses(elf, addresses) : addresses;
+        }
+      }
+      return frames;
+    }
+
+    void collect(List<Long> addresses) {
+      addresses.addAll(frames());
+    }
+
+    void decode(Decode d) {
+      List<Long> frames = frames();
+      if(frames.isEmpty()){
+        return;
+      }
+      d.print("\n<i>Decoding stack results</i>\n");
+      decodeAddresses(d, frames);
+    }
+
+    private List<Long> unwind() {
+      ElfSymbolizer sym = getSymbolizer();
+      if (backtrace || pc == -1 || sp == -1 || sym == null) {
+        return Collections.emptyList();
+      }
+      return sym.getUnwinder().unwind(pc, sp, memory);
+    }
+  }
+
+  // Scan and report the last failed memory allocation attempt, if present on the ESP8266
+  private class AllocParser extends Parser {
+    final ElfFile elf;
+    long address = -1;
+    int size;
+
+    AllocParser(ElfFile elf) {
+      this.elf = elf;
+    }
+
+    public void allocFailure(long address, int size) {
+      if (this.address == -1 && isCodeAddress(elf, address)) {
+        this.address = address;
+        this.size = size;
+      }
+    }
+
+    void collect(List<Long> addresses) {
+      if (address != -1) addresses.add(address);
+    }
+
+    void decode(Decode d) {
+      if (address == -1) {
+        return;
+      }
+      SourceLocation location = decodeFunctionAtAddress(d, address);
+      synchronized (d.report) {
+        d.report.allocAddress = address;
+        d.report.allocSize = size;
+        d.report.allocLocation = location;
+      }
+      if (location != null) {
+        d.print("Memory allocation of " + size + " bytes failed at " + prettyPrintLocation(location) + "\n");
+      }
+    }
+  }
+
+  // What the value of a register points at if it isn't code, from the
+  // data symbols of the ELF and the memory map of the chip, without gdb.
+  // Null if nothing is known about it.
+  private String describeData(long value) {
+    ElfSymbolizer sym = getSymbolizer();
+    return (sym == null)?null:sym.getMemoryMap().describe(value);
+  }
+
+  private void printRegister(Decode d, String prettyName, long value, SourceLocation location, String data) {
+    synchronized (d.report) {
+      d.report.registers.add(new CrashReport.Register(prettyName, value, location, data));
+    }
+    String name = "<font color=\"red\">" + prettyName + "</font>";
+    if (location != null) {
+      d.print(name + ": " + prettyPrintLocation(location) + "\n");
+    } else if (data != null) {
+      d.print(name + ": <font color=\"green\">0x" + String.format("%08x", value) + ": </font>" +
+              "<font color=\"purple\">" + escapeHtml(data) + "</font>\n");
+    } else {
+      d.print(name + ": <font color=\"green\">0x" + String.format("%08x", value) + "</font>\n");
+    }
+  }
+
+  // Report a register given its name (ESP8266/ESP32 differ in format).
+  // Code is looked up, anything else only described.
+  private class RegisterParser extends Parser {
+    final String regName;
+    final String prettyName;
+    final ElfFile elf;
+    long value = -1;
+
+    RegisterParser(String regName, String prettyName, ElfFile elf) {
+      this.regName = regName;
+      this.prettyName = prettyName;
+      this.elf = elf;
+    }
+
+    public void register(String name, long value) {
+      if (this.value == -1 && name.equals(regName)) this.value = value;
+    }
+
+    void collect(List<Long> addresses) {
+      if (value != -1 && isCodeAddress(elf, value)) addresses.add(value);
+    }
+
+    void decode(Decode d) {
+      if (value == -1) {
+        return;
+      }
+      if (isCodeAddress(elf, value)) {
+        printRegister(d, prettyName, value, decodeFunctionAtAddress(d, value), null);
+      } else {
+        printRegister(d, prettyName, value, null, describeData(value));
+      }
+    }
+  }
+
+  // The registers of the Xtensa and RISC-V dumps that may hold a pointer.
+  // Anything else looking like "name: 0x3fff0030", like the "load:" lines of
+  // the boot banner, isn't a register.
+  private static final Set<String> POINTER_REGISTERS = new HashSet<String>(Arrays.asList(
+    // Xtensa
+    "A0", "A1", "A2", "A3", "A4", "A5", "A6", "A7", "A8", "A9", "A10", "A11", "A12", "A13", "A14", "A15",
+    "LBEG", "LEND", "epc2", "epc3", "depc",
+    // RISC-V, A0-A7 are above
+    "SP", "GP", "TP", "T0", "T1", "T2", "T3", "T4", "T5", "T6", "S0", "FP", "S1", "S2", "S3", "S4", "S5",
+    "S6", "S7", "S8", "S9", "S10", "S11"
+  ));
+
+  // Every other register of the dump that points at the data of the
+  // program, a variable, the heap or a stack, or at the peripherals
+  private class DataRegisterParser extends Parser {
+    final Set<String> skip;
+    final Map<String, Long> values = new LinkedHashMap<String, Long>();
+
+    DataRegisterParser(Set<String> skip) {
+      this.skip = skip;
+    }
+
+    public void register(String name, long value) {
+      if (POINTER_REGISTERS.contains(name) && !skip.contains(name) && !values.containsKey(name)) {
+        values.put(name, value);
+      }
+    }
+
+    void decode(Decode d) {
+      ElfSymbolizer sym = getSymbolizer();
+      if (sym == null) {
+        return;
+      }
+      MemoryMap map = sym.getMemoryMap();
+      for (Map.Entry<String, Long> e : values.entrySet()) {
+        long value = e.getValue();
+        if (map.isData(value)) printRegister(d, e.getKey(), value, null, map.describe(value));
+      }
+    }
+  }
+
+  // A core dump between CORE DUMP START and END: the backtrace of every
+  // task in it, the crashed one first
+  private class CoreDumpParser extends Parser {
+    final ElfFile elf;
+    CoreDump dump;
+    String error;
+
+    CoreDumpParser(ElfFile elf) {
+      this.elf = elf;
+    }
+
+    public void coreDump(CharSequence text, int start, int end) {
+      if (dump != null || error != null) return;
+      try {
+        dump = CoreDump.parse(text, start, end);
+      } catch (Exception e) {
+        error = e.getMessage();
+      }
+    }
+
+    void decode(Decode d) {
+      if (error != null) {
+        d.printError("Core Dump Failed: " + error);
+        return;
+      }
+      if (dump == null) {
+        return;
+      }
+      String hash = getHash();
+      if (dump.appSha != null && hash != null && !hash.startsWith(dump.appSha)) {
+        d.printLogLine("The core dump is of another build (ELF SHA256 " + dump.appSha + ")", "red");
+      }
+      exception(d);
+      List<List<Long>> traces = new ArrayList<List<Long>>();
+      for (CoreDump.Task t : dump.tasks) {
+        traces.add(dump.backtrace(t, elf));
+      }
+      Map<Long, SourceLocation> found = resolveAll(d, traces);
+      if (d.isCancelled()) {
+        return;
+      }
+      d.print("\n<i>Decoding core dump, " + dump.tasks.size() + " tasks</i>\n");
+      for (int i = 0; i < dump.tasks.size(); i++) {
+        CoreDump.Task t = dump.tasks.get(i);
+        List<SourceLocation> frames = new ArrayList<SourceLocation>();
+        for (Long a : traces.get(i)) frames.add(found.get(a));
+        CrashReport.Task task = new CrashReport.Task(t.name == null ? "(unnamed)" : t.name, t.tcb, t.crashed, frames);
+        synchronized (d.report) {
+          d.report.tasks.add(task);
+        }
+        d.print("\n<b>" + escapeHtml(CrashReport.taskTitle(task)) + "</b>\n");
+        for (SourceLocation l : frames) {
+          if (!l.isUnknown()) d.print(prettyPrintLocation(l) + "\n");
+          else d.print("<font color=green>" + l.getAddressString() + ": </font>??\n");
+        }
+      }
+      d.statusNotice("Decode Success"+getCacheStats());
+    }
+
+    // The cause from the dump, unless the panic output already said
+    private void exception(Decode d) {
+      int cause = dump.exceptionCause;
+      String[] table = dump.machine == ElfFile.EM_RISCV ? riscvExceptions : exceptions;
+      if (cause < 0 || cause >= table.length) {
+        return;
+      }
+      synchronized (d.report) {
+        if (d.report.exception >= 0) return;
+        d.report.exception = cause;
+        d.report.exceptionText = table[cause];
+      }
+      d.print("<b><font color=red>Exception "+cause+": "+table[cause]+"</font></b>\n");
+    }
+  }
+
+  // Decode the content of the run, on the calling thread
+  void decode(Decode d){
+    long start = DecodeStats.start();
+    DecodeStats.count(DecodeStats.DECODES);
+    acquire();
+    try {
+      run(d);
+    } finally {
+      DecodeStats.end(DecodeStats.DECODE, start);
+      release();
+    }
+  }
+
+  // Keep the decoder from closing until release(). Whoever hands it out
+  // to decode later takes this first, so retire() waits for that decode too.
+  synchronized void acquire() {
+    running++;
+  }
+
+  void release() {
+    boolean close;
+    synchronized (this) {
+      close = --running == 0 && retired && !closed;
+      if (close) closed = true;
+    }
+    if (close) close();
+  }
+
+  private Parser[] newParsers(ElfFile elf) {
+    RegisterParser[] registers = {
+      // ESP8266 register format
+      new RegisterParser("epc1", "PC", elf),
+      new RegisterParser("excvaddr", "EXCVADDR", elf),
+      // ESP32 register format
+      new RegisterParser("PC", "PC", elf),
+      new RegisterParser("EXCVADDR", "EXCVADDR", elf),
+      // RISC-V register format
+      new RegisterParser("MEPC", "PC", elf),
+      new RegisterParser("RA", "RA", elf),
+      new RegisterParser("MTVAL", "MTVAL", elf)
+    };
+    Set<String> named = new HashSet<String>();
+    for (RegisterParser r : registers) named.add(r.regName);
+    List<Parser> parsers = new ArrayList<Parser>();
+    // Main error cause
+    parsers.add(new ExceptionParser());
+    parsers.addAll(Arrays.asList(registers));
+    // The rest of the register dump
+    parsers.add(new DataRegisterParser(named));
+    // Last memory allocation failure
+    parsers.add(new AllocParser(elf));
+    // The stack on ESP8266 and the stack memory on RISC-V, multiline
+    parsers.add(new StackParser(false, elf));
+    // The backtrace on ESP32, one-line only
+    parsers.add(new StackParser(true, elf));
+    // Every task of an ESP32 core dump
+    parsers.add(new CoreDumpParser(elf));
+    return parsers.toArray(new Parser[parsers.size()]);
+  }
+
+  private void run(Decode d){
+    ElfSymbolizer sym = getSymbolizer();
+    ElfFile elf = (sym == null)?null:sym.getElf();
+    long start = DecodeStats.start();
+    // A core dump is one crash however many tasks it has
+    List<String> blocks = d.content.contains(CoreDump.START) ?
+                          Collections.<String>emptyList() : LogTail.split(d.content);
+    if (blocks.size() > 1) {
+      runAll(d, elf, blocks, start);
+      return;
+    }
+    Parser[] parsers = newParsers(elf);
+    CrashLogTokenizer.tokenize(d.content, parsers);
+    DecodeStats.end(DecodeStats.PARSE, start);
+    start = DecodeStats.start();
+    for (Parser p : parsers) {
+      if (d.isCancelled()) return;
+      p.decode(d);
+    }
+    DecodeStats.end(DecodeStats.LOOKUP, start);
+    d.report.setFingerprint(getBuild());
+    d.show();
+  }
+
+  // A log of many crashes, a boot loop say: every crash is parsed on its
+  // own, the addresses of all of them are looked up together, each distinct
+  // one once, then every crash is printed from the results. A crash with
+  // the fingerprint of an earlier one only gets its title.
+  private void runAll(Decode d, ElfFile elf, List<String> blocks, long start) {
+    List<Parser[]> crashes = new ArrayList<Parser[]>();
+    List<List<Long>> addresses = new ArrayList<List<Long>>();
+    for (String block : blocks) {
+      Parser[] parsers = newParsers(elf);
+      CrashLogTokenizer.tokenize(block, parsers);
+      List<Long> a = new ArrayList<Long>();
+      for (Parser p : parsers) p.collect(a);
+      crashes.add(parsers);
+      addresses.add(a);
+    }
+    DecodeStats.end(DecodeStats.PARSE, start);
+    start = DecodeStats.start();
+    d.resolved = resolveAll(d, addresses);
+    String build = getBuild();
+    for (int i = 0; i < crashes.size(); i++) {
+      if (d.isCancelled()) return;
+      Decode crash = new Decode(blocks.get(i));
+      crash.resolved = d.resolved;
+      for (Parser p : crashes.get(i)) p.decode(crash);
+      crash.report.setFingerprint(build);
+      d.report.addCrash(crash.report);
+      d.print((i > 0 ? "\n" : "") + "<b>" + escapeHtml(d.report.crashTitle(i)) + "</b>\n");
+      if (d.report.sameAs(i) == -1) d.print(crash.takeOutput());
+      d.show();
+    }
+    DecodeStats.end(DecodeStats.LOOKUP, start);
+    d.report.setFingerprint(build);
+    d.statusNotice("Decode Success"+getCacheStats());
+  }
+
+  // What the fingerprints are of
+  private String getBuild() {
+    String hash = getHash();
+    return hash == null ? this.elf.getName() : hash;
+  }
+}
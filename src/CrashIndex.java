@@ -0,0 +1,180 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.List;
+
+// Counts how often each distinct crash was seen. Every sighting is a 16
+// byte record (fingerprint, time) appended to crashes.idx; the first time
+// a fingerprint shows up, a line describing it goes to crashes.txt. The
+// counts and first/last times are rebuilt from the records on open and
+// kept in memory, one entry per distinct crash.
+class CrashIndex {
+  private static final int RECORD = 16;
+
+  static class Entry {
+    final long fingerprint;
+    long count;
+    long first = Long.MAX_VALUE;
+    long last = Long.MIN_VALUE;
+    String summary;
+
+    Entry(long fingerprint) {
+      this.fingerprint = fingerprint;
+    }
+
+    String getFingerprint() {
+      return String.format("%016x", fingerprint);
+    }
+  }
+
+  private final File records;
+  private final File summaries;
+  private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+  private final FileChannel channel;
+  private final ByteBuffer record = ByteBuffer.allocate(RECORD);
+  private long total;
+
+  CrashIndex(File folder) throws IOException {
+    if (!folder.isDirectory() && !folder.mkdirs()) {
+      throw new IOException("can't create " + folder);
+    }
+    records = new File(folder, "crashes.idx");
+    summaries = new File(folder, "crashes.txt");
+    channel = FileChannel.open(records.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    readRecords();
+    readSummaries();
+  }
+
+  // Remember a sighting of the crash at the given time
+  synchronized void add(String fingerprint, long time, String summary) throws IOException {
+    long fp = Long.parseUnsignedLong(fingerprint, 16);
+    record.clear();
+    record.putLong(fp).putLong(time).flip();
+    while (record.hasRemaining()) {
+      channel.write(record, channel.size());
+    }
+    Entry e = count(fp, time);
+    if (e.summary == null) {
+      e.summary = summary.replace('\n', ' ').replace('\t', ' ');
+      Writer w = new OutputStreamWriter(new FileOutputStream(summaries, true), StandardCharsets.UTF_8);
+      try {
+        w.write(e.getFingerprint() + "\t" + e.summary + "\n");
+      } finally {
+        w.close();
+      }
+    }
+  }
+
+  // The entry of the fingerprint, or null if it was never seen
+  synchronized Entry get(String fingerprint) {
+    return entries.get(Long.parseUnsignedLong(fingerprint, 16));
+  }
+
+  synchronized int getDistinct() {
+    return entries.size();
+  }
+
+  synchronized long getTotal() {
+    return total;
+  }
+
+  // The k crashes seen most often, most often first
+  synchronized List<Entry> top(int k) {
+    Comparator<Entry> byCount = new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+        int c = Long.compare(a.count, b.count);
+        return c != 0 ? c : Long.compare(b.last, a.last);
+      }
+    };
+    PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, k), byCount);
+    for (Entry e : entries.values()) {
+      if (heap.size() < k) {
+        heap.add(e);
+      } else if (k > 0 && byCount.compare(e, heap.peek()) > 0) {
+        heap.poll();
+        heap.add(e);
+      }
+    }
+    List<Entry> list = new ArrayList<Entry>(heap);
+    Collections.sort(list, Collections.reverseOrder(byCount));
+    return list;
+  }
+
+  synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  private Entry count(long fp, long time) {
+    Entry e = entries.get(fp);
+    if (e == null) {
+      e = new Entry(fp);
+      entries.put(fp, e);
+    }
+    e.count++;
+    e.first = Math.min(e.first, time);
+    e.last = Math.max(e.last, time);
+    total++;
+    return e;
+  }
+
+  private void readRecords() throws IOException {
+    long size = channel.size();
+    long whole = size - size % RECORD;
+    if (whole != size) {
+      // Cut off a half written last record
+      channel.truncate(whole);
+    }
+    ByteBuffer b = ByteBuffer.allocate(RECORD * 65536);
+    long position = 0;
+    while (position < whole) {
+      b.clear();
+      int n = channel.read(b, position);
+      if (n <= 0) break;
+      position += n;
+      b.flip();
+      while (b.remaining() >= RECORD) {
+        long fp = b.getLong();
+        count(fp, b.getLong());
+      }
+      // A read ending inside a record is read again with the next one
+      position -= b.remaining();
+    }
+  }
+
+  private void readSummaries() throws IOException {
+    if (!summaries.exists()) return;
+    BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(summaries), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = r.readLine()) != null) {
+        int tab = line.indexOf('\t');
+        if (tab != 16) continue;
+        Entry e = entries.get(Long.parseUnsignedLong(line.substring(0, tab), 16));
+        if (e != null && e.summary == null) e.summary = line.substring(tab + 1);
+      }
+    } finally {
+      r.close();
+    }
+  }
+}
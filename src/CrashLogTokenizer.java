@@ -0,0 +1,382 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+
+// Walks a crash log once, line by line, and tells the listeners what it
+// finds. Numbers are scanned in place, nothing is copied out of the text
+// except register names.
+class CrashLogTokenizer {
+  static final String STACK_BEGIN = ">>>stack>>>";
+  static final String STACK_END = "<<<stack<<<";
+  static final String EXCEPTION = "Exception (";
+  static final String PANIC = "Guru Meditation Error";
+  static final String BACKTRACE = "Backtrace:";
+  static final String STACK_MEMORY = "Stack memory:";
+  static final String REGISTER_DUMP = "register dump:";
+  static final String ALLOC = "last failed alloc call: ";
+  static final String STACK_POINTER = "sp: ";
+  static final String STACK_OFFSET = "offset: ";
+
+  interface Listener {
+    // "Exception (N):" on the ESP8266
+    void exceptionCause(int cause);
+    // "name=0x12345678" (ESP8266) or "NAME : 0x12345678" (ESP32)
+    void register(String name, long value);
+    // "last failed alloc call: 4xxxxxxx(size)"
+    void allocFailure(long address, int size);
+    // Every 8 digit hex word between >>>stack>>> and <<<stack<<< on the
+    // ESP8266, or of the "address: words" lines after "Stack memory:" of
+    // the RISC-V chips
+    void stackBegin();
+    void stackWord(long value);
+    // The same words of the "3fffff50:  w w w w" lines, with their address
+    void stackMemory(long address, long value);
+    // "sp: 3ffffdb0 end: 3fffffc0 offset: 01a0", the dump starts at sp + offset
+    void stackPointer(long sp, long offset);
+    void stackEnd();
+    // The PC:SP pairs of a "Backtrace:" line
+    void backtraceBegin();
+    void backtraceFrame(long pc, long sp);
+    void backtraceEnd();
+    // The base64 lines between "CORE DUMP START" and "CORE DUMP END", as a
+    // range of the text so nothing is copied
+    void coreDump(CharSequence text, int start, int end);
+  }
+
+  static class Adapter implements Listener {
+    public void exceptionCause(int cause) {}
+    public void register(String name, long value) {}
+    public void allocFailure(long address, int size) {}
+    public void stackBegin() {}
+    public void stackWord(long value) {}
+    public void stackMemory(long address, long value) {}
+    public void stackPointer(long sp, long offset) {}
+    public void stackEnd() {}
+    public void backtraceBegin() {}
+    public void backtraceFrame(long pc, long sp) {}
+    public void backtraceEnd() {}
+    public void coreDump(CharSequence text, int start, int end) {}
+  }
+
+  private final CharSequence text;
+  private final Listener[] listeners;
+  private boolean inStack;
+  // In the rows of a RISC-V "Stack memory:" dump
+  private boolean inDump;
+  // Where the base64 of a core dump started, or -1 outside of one
+  private int coreDump = -1;
+
+  // Result of the last hex scan: its value and where it stopped
+  private long value;
+  private int scanEnd;
+
+  private CrashLogTokenizer(CharSequence text, Listener[] listeners) {
+    this.text = text;
+    this.listeners = listeners;
+  }
+
+  static void tokenize(CharSequence text, Listener... listeners) {
+    new CrashLogTokenizer(text, listeners).run();
+  }
+
+  private void run() {
+    int length = text.length();
+    int pos = 0;
+    while (pos < length) {
+      int end = pos;
+      while (end < length && text.charAt(end) != '\n') end++;
+      int lineEnd = end;
+      if (lineEnd > pos && text.charAt(lineEnd - 1) == '\r') lineEnd--;
+      line(pos, lineEnd);
+      pos = end + 1;
+    }
+    if (coreDump != -1) {
+      // Cut short, let the listeners make what they can of it
+      for (Listener l : listeners) l.coreDump(text, coreDump, length);
+      coreDump = -1;
+    }
+    if (inStack || inDump) {
+      inStack = false;
+      inDump = false;
+      for (Listener l : listeners) l.stackEnd();
+    }
+  }
+
+  private void line(int start, int end) {
+    if (coreDump != -1) {
+      // Nothing but base64 until the end marker
+      if (indexOf(CoreDump.END, start, end) == -1) return;
+      for (Listener l : listeners) l.coreDump(text, coreDump, start);
+      coreDump = -1;
+      return;
+    }
+    if (inDump) {
+      if (isDumpRow(start, end)) {
+        stackWords(start, end);
+        return;
+      }
+      inDump = false;
+      for (Listener l : listeners) l.stackEnd();
+    }
+    if (!inStack && indexOf(CoreDump.START, start, end) != -1) {
+      coreDump = end;
+      return;
+    }
+    int p = start;
+    while (p < end) {
+      if (inStack) {
+        int close = indexOf(STACK_END, p, end);
+        stackWords(p, close == -1 ? end : close);
+        if (close == -1) return;
+        inStack = false;
+        for (Listener l : listeners) l.stackEnd();
+        p = close + STACK_END.length();
+      } else {
+        int open = indexOf(STACK_BEGIN, p, end);
+        plainText(p, open == -1 ? end : open);
+        if (open == -1) {
+          if (indexOf(STACK_MEMORY, p, end) != -1) {
+            inDump = true;
+            for (Listener l : listeners) l.stackBegin();
+          }
+          return;
+        }
+        inStack = true;
+        for (Listener l : listeners) l.stackBegin();
+        p = open + STACK_BEGIN.length();
+      }
+    }
+  }
+
+  private void stackWords(int start, int end) {
+    stackPointer(start, end);
+    // Address of the next word if the line started with "address:"
+    long address = -1;
+    boolean first = true;
+    int i = start;
+    while (i < end) {
+      if (!isHex(text.charAt(i)) || (i > start && isWord(text.charAt(i - 1)))) {
+        i++;
+        continue;
+      }
+      int digits = scanHex(skip0x(i, end), end);
+      if (digits == 8 && !(scanEnd < end && isWord(text.charAt(scanEnd)))) {
+        for (Listener l : listeners) l.stackWord(value);
+        if (first && scanEnd < end && text.charAt(scanEnd) == ':') {
+          address = value;
+        } else if (address != -1) {
+          for (Listener l : listeners) l.stackMemory(address, value);
+          address += 4;
+        }
+        first = false;
+      }
+      i = Math.max(scanEnd, i + 1);
+    }
+  }
+
+  private boolean isDumpRow(int start, int end) {
+    return isDumpRow(text, start, end);
+  }
+
+  // A row of the RISC-V stack memory, "3fc98e10: 0x00000000 0x4200608e ..."
+  static boolean isDumpRow(CharSequence text, int start, int end) {
+    int i = start;
+    while (i < end && text.charAt(i) == ' ') i++;
+    int digits = 0;
+    while (i < end && isHex(text.charAt(i))) {
+      digits++;
+      i++;
+    }
+    return digits == 8 && i < end && text.charAt(i) == ':';
+  }
+
+  // A row of an ESP32 or RISC-V register dump, "PC      : 0x400d1a2c  PS ..."
+  static boolean isRegisterRow(CharSequence text, int start, int end) {
+    int i = start;
+    while (i < end && text.charAt(i) == ' ') i++;
+    if (i == end || !Character.isLetter(text.charAt(i))) return false;
+    while (i < end && isWord(text.charAt(i))) i++;
+    while (i < end && text.charAt(i) == ' ') i++;
+    if (i == end || text.charAt(i++) != ':') return false;
+    while (i < end && text.charAt(i) == ' ') i++;
+    if (i + 1 < end && text.charAt(i) == '0' && text.charAt(i + 1) == 'x') i += 2;
+    int digits = 0;
+    while (i < end && isHex(text.charAt(i))) {
+      digits++;
+      i++;
+    }
+    return digits == 8;
+  }
+
+  private void stackPointer(int start, int end) {
+    int s = indexOf(STACK_POINTER, start, end);
+    if (s == -1 || (s > start && isWord(text.charAt(s - 1))) || scanHex(s + STACK_POINTER.length(), end) != 8) {
+      return;
+    }
+    long sp = value;
+    long offset = 0;
+    int o = indexOf(STACK_OFFSET, scanEnd, end);
+    if (o != -1 && scanHex(o + STACK_OFFSET.length(), end) > 0) {
+      offset = value;
+    }
+    for (Listener l : listeners) l.stackPointer(sp, offset);
+  }
+
+  private void plainText(int start, int end) {
+    int e = indexOf(EXCEPTION, start, end);
+    if (e != -1) {
+      int i = e + EXCEPTION.length();
+      int j = i;
+      int cause = 0;
+      while (j < end && j - i < 9 && Character.isDigit(text.charAt(j))) {
+        cause = cause * 10 + (text.charAt(j) - '0');
+        j++;
+      }
+      if (j > i && j + 1 < end && text.charAt(j) == ')' && text.charAt(j + 1) == ':') {
+        for (Listener l : listeners) l.exceptionCause(cause);
+      }
+    }
+
+    int a = indexOf(ALLOC, start, end);
+    if (a != -1) {
+      int i = a + ALLOC.length();
+      if (scanHex(i, end) == 8 && scanEnd < end && text.charAt(scanEnd) == '(') {
+        long address = value;
+        int j = scanEnd + 1;
+        int size = 0;
+        while (j < end && Character.isDigit(text.charAt(j))) {
+          size = size * 10 + (text.charAt(j) - '0');
+          j++;
+        }
+        if (j > scanEnd + 1 && j < end && text.charAt(j) == ')') {
+          for (Listener l : listeners) l.allocFailure(address, size);
+        }
+      }
+    }
+
+    int b = indexOf(BACKTRACE, start, end);
+    if (b != -1) {
+      registers(start, b);
+      backtrace(b + BACKTRACE.length(), end);
+    } else {
+      registers(start, end);
+    }
+  }
+
+  private void backtrace(int start, int end) {
+    for (Listener l : listeners) l.backtraceBegin();
+    int i = start;
+    while (i < end) {
+      char c = text.charAt(i);
+      if (c == ' ' || c == '\t') {
+        i++;
+        continue;
+      }
+      int digits = scanHex(skip0x(i, end), end);
+      if (digits == 0) {
+        // Something like "|<-CORRUPTED", skip the word
+        while (i < end && text.charAt(i) != ' ') i++;
+        continue;
+      }
+      long pc = value;
+      long sp = 0;
+      i = scanEnd;
+      if (i < end && text.charAt(i) == ':' && scanHex(skip0x(i + 1, end), end) > 0) {
+        sp = value;
+        i = scanEnd;
+      }
+      for (Listener l : listeners) l.backtraceFrame(pc, sp);
+    }
+    for (Listener l : listeners) l.backtraceEnd();
+  }
+
+  // name=0x12345678 or NAME : (0x)12345678, the value exactly 8 digits long
+  private void registers(int start, int end) {
+    int i = start;
+    while (i < end) {
+      char c = text.charAt(i);
+      if (!Character.isLetter(c) || (i > start && isWord(text.charAt(i - 1)))) {
+        i++;
+        continue;
+      }
+      int nameEnd = i;
+      while (nameEnd < end && isWord(text.charAt(nameEnd))) nameEnd++;
+      int j = nameEnd;
+      while (j < end && text.charAt(j) == ' ') j++;
+      boolean found = false;
+      if (j < end && text.charAt(j) == '=') {
+        found = j + 2 < end && text.charAt(j + 1) == '0' && text.charAt(j + 2) == 'x';
+        j += 3;
+      } else if (j < end && text.charAt(j) == ':') {
+        j++;
+        while (j < end && text.charAt(j) == ' ') j++;
+        j = skip0x(j, end);
+        found = true;
+      }
+      if (found && scanHex(j, end) == 8 && !(scanEnd < end && isWord(text.charAt(scanEnd)))) {
+        String name = text.subSequence(i, nameEnd).toString();
+        for (Listener l : listeners) l.register(name, value);
+        i = scanEnd;
+      } else {
+        i = nameEnd;
+      }
+    }
+  }
+
+  private int skip0x(int i, int end) {
+    if (i + 1 < end && text.charAt(i) == '0' && (text.charAt(i + 1) == 'x' || text.charAt(i + 1) == 'X')) {
+      return i + 2;
+    }
+    return i;
+  }
+
+  // Scan hex digits starting at i into value/scanEnd, returns their count
+  private int scanHex(int i, int end) {
+    long v = 0;
+    int start = i;
+    while (i < end) {
+      int d = Character.digit(text.charAt(i), 16);
+      if (d < 0) break;
+      v = (v << 4) | d;
+      i++;
+    }
+    value = v;
+    scanEnd = i;
+    return i - start;
+  }
+
+  private int indexOf(String s, int from, int to) {
+    int last = to - s.length();
+    char first = s.charAt(0);
+    for (int i = from; i <= last; i++) {
+      if (text.charAt(i) != first) continue;
+      int k = 1;
+      while (k < s.length() && text.charAt(i + k) == s.charAt(k)) k++;
+      if (k == s.length()) return i;
+    }
+    return -1;
+  }
+
+  private static boolean isHex(char c) {
+    return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+  }
+
+  private static boolean isWord(char c) {
+    return Character.isLetterOrDigit(c) || c == '_';
+  }
+}
@@ -0,0 +1,349 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.util.*;
+import java.util.List;
+import org.apache.commons.codec.digest.DigestUtils;
+
+// What a decode found out about one crash log, kept apart from the html
+// the window shows so the command line can print it as text or JSON.
+class CrashReport {
+  static class Register {
+    final String name;
+    final long value;
+    final SourceLocation location;
+    // What the value points at when it isn't code, like "counter+4 (.bss, DRAM)"
+    final String data;
+
+    Register(String name, long value, SourceLocation location) {
+      this(name, value, location, null);
+    }
+
+    Register(String name, long value, SourceLocation location, String data) {
+      this.name = name;
+      this.value = value;
+      this.location = location;
+      this.data = data;
+    }
+  }
+
+  // A task of a core dump and where it was
+  static class Task {
+    final String name;
+    final long tcb;
+    final boolean crashed;
+    final List<SourceLocation> frames;
+
+    Task(String name, long tcb, boolean crashed, List<SourceLocation> frames) {
+      this.name = name;
+      this.tcb = tcb;
+      this.crashed = crashed;
+      this.frames = frames;
+    }
+  }
+
+  int exception = -1;
+  String exceptionText;
+  final List<Register> registers = new ArrayList<Register>();
+  long allocAddress = -1;
+  int allocSize;
+  SourceLocation allocLocation;
+  // Every code address of the stack dump or backtrace, in order. Addresses
+  // nothing is known about have an unknown location.
+  final List<SourceLocation> stack = new ArrayList<SourceLocation>();
+  // Every task of a core dump, the crashed one first
+  final List<Task> tasks = new ArrayList<Task>();
+  String error;
+  String fingerprint;
+  // Every crash of a log with more than one, each with its own report. The
+  // fields above are then those of the first.
+  final List<CrashReport> crashes = new ArrayList<CrashReport>();
+
+  // How many frames from the top of the stack tell crashes apart
+  static final int FINGERPRINT_FRAMES = 5;
+
+  // Name the crash by its cause, the functions at the top of its stack (or
+  // the one at the PC) and the build, so the same crash of the same build
+  // gets the same fingerprint however its addresses were resolved
+  synchronized void setFingerprint(String build) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(exception).append('|');
+    for (String f : getFrames()) {
+      sb.append(f).append('|');
+    }
+    sb.append(build);
+    fingerprint = DigestUtils.sha256Hex(sb.toString()).substring(0, 16);
+  }
+
+  // The report of the next crash of the log
+  synchronized void addCrash(CrashReport crash) {
+    if (crashes.isEmpty()) {
+      synchronized (crash) {
+        exception = crash.exception;
+        exceptionText = crash.exceptionText;
+        registers.addAll(crash.registers);
+        allocAddress = crash.allocAddress;
+        allocSize = crash.allocSize;
+        allocLocation = crash.allocLocation;
+        stack.addAll(crash.stack);
+        tasks.addAll(crash.tasks);
+      }
+    }
+    crashes.add(crash);
+  }
+
+  // The report of every crash, this one if there was only one
+  synchronized List<CrashReport> getCrashes() {
+    return crashes.isEmpty() ? Collections.singletonList(this) : new ArrayList<CrashReport>(crashes);
+  }
+
+  // The earlier crash with the same fingerprint, -1 if there is none
+  synchronized int sameAs(int crash) {
+    String f = crashes.get(crash).fingerprint;
+    for (int i = 0; i < crash && f != null; i++) {
+      if (f.equals(crashes.get(i).fingerprint)) return i;
+    }
+    return -1;
+  }
+
+  // "Crash 3 of 50" or "Crash 3 of 50, the same as crash 1"
+  synchronized String crashTitle(int crash) {
+    int same = sameAs(crash);
+    return "Crash " + (crash + 1) + " of " + crashes.size() + (same == -1 ? "" : ", the same as crash " + (same + 1));
+  }
+
+  // Whether the log had anything of a crash in it
+  synchronized boolean hasCrash() {
+    return exception >= 0 || !registers.isEmpty() || !stack.isEmpty() || !tasks.isEmpty();
+  }
+
+  // One line telling what the crash was, to describe a fingerprint
+  synchronized String getSummary() {
+    StringBuilder sb = new StringBuilder();
+    if (exception >= 0) {
+      String name = exceptionText;
+      int colon = name.indexOf(':');
+      sb.append("Exception ").append(exception).append(" (").append(colon == -1 ? name : name.substring(0, colon)).append(")");
+    } else {
+      sb.append("Crash");
+    }
+    List<String> frames = getFrames();
+    if (!frames.isEmpty()) {
+      sb.append(" in ");
+      for (int i = 0; i < frames.size(); i++) {
+        if (i > 0) sb.append(" < ");
+        sb.append(frames.get(i));
+      }
+    }
+    return sb.toString();
+  }
+
+  private List<String> getFrames() {
+    List<String> frames = new ArrayList<String>();
+    addFrames(frames, stack);
+    for (Task t : tasks) {
+      if (frames.isEmpty() && t.crashed) addFrames(frames, t.frames);
+    }
+    if (frames.isEmpty()) {
+      for (Register r : registers) {
+        if (r.name.equals("PC") && r.location != null && r.location.function != null) {
+          frames.add(normalize(r.location.function));
+        }
+      }
+    }
+    return frames;
+  }
+
+  private static void addFrames(List<String> frames, List<SourceLocation> locations) {
+    for (SourceLocation l : locations) {
+      if (frames.size() == FINGERPRINT_FRAMES) break;
+      if (l.function != null) frames.add(normalize(l.function));
+    }
+  }
+
+  // gdb says "loop()", the debug info just "loop"; drop the parameters and
+  // compiler clone suffixes
+  private static String normalize(String function) {
+    int clone = function.indexOf(" [clone");
+    if (clone != -1) function = function.substring(0, clone);
+    int paren = function.indexOf('(');
+    if (paren > 0) function = function.substring(0, paren);
+    return function.trim();
+  }
+
+  synchronized String toText() {
+    StringBuilder sb = new StringBuilder();
+    if (!crashes.isEmpty()) {
+      // A repeat only gets its title
+      for (int i = 0; i < crashes.size(); i++) {
+        if (i > 0) sb.append('\n');
+        sb.append(crashTitle(i)).append('\n');
+        if (sameAs(i) == -1) sb.append(crashes.get(i).toText());
+      }
+      return sb.toString();
+    }
+    if (exception >= 0) {
+      sb.append("Exception ").append(exception).append(": ").append(exceptionText).append('\n');
+    }
+    for (Register r : registers) {
+      sb.append(r.name).append(": ");
+      if (r.location != null) sb.append(format(r.location));
+      else sb.append(String.format("0x%08x", r.value));
+      if (r.data != null) sb.append(": ").append(r.data);
+      sb.append('\n');
+    }
+    if (allocLocation != null) {
+      sb.append("Memory allocation of ").append(allocSize).append(" bytes failed at ").append(format(allocLocation)).append('\n');
+    }
+    if (!stack.isEmpty()) {
+      sb.append("\nDecoding stack results\n");
+      for (SourceLocation l : stack) {
+        if (!l.isUnknown()) sb.append(format(l)).append('\n');
+      }
+    }
+    for (Task t : tasks) {
+      sb.append('\n').append(taskTitle(t)).append('\n');
+      for (SourceLocation l : t.frames) {
+        sb.append(format(l)).append('\n');
+      }
+    }
+    if (error != null) {
+      sb.append(error).append('\n');
+    }
+    return sb.toString();
+  }
+
+  // One line of JSON, the source is the log the report is for
+  synchronized String toJson(String source) {
+    StringBuilder sb = new StringBuilder("{");
+    sb.append("\"source\":").append(quote(source));
+    appendJson(sb);
+    if (!crashes.isEmpty()) {
+      sb.append(",\"crashes\":[");
+      for (int i = 0; i < crashes.size(); i++) {
+        if (i > 0) sb.append(',');
+        sb.append("{\"crash\":").append(i + 1);
+        int same = sameAs(i);
+        if (same != -1) sb.append(",\"sameAs\":").append(same + 1);
+        crashes.get(i).appendJson(sb);
+        sb.append('}');
+      }
+      sb.append(']');
+    }
+    return sb.append('}').toString();
+  }
+
+  // The fields after the first one
+  private synchronized void appendJson(StringBuilder sb) {
+    if (fingerprint != null) {
+      sb.append(",\"fingerprint\":").append(quote(fingerprint));
+    }
+    if (exception >= 0) {
+      sb.append(",\"exception\":").append(exception);
+      sb.append(",\"exceptionText\":").append(quote(exceptionText));
+    }
+    sb.append(",\"registers\":[");
+    for (int i = 0; i < registers.size(); i++) {
+      Register r = registers.get(i);
+      if (i > 0) sb.append(',');
+      sb.append("{\"name\":").append(quote(r.name));
+      sb.append(",\"value\":").append(quote(String.format("0x%08x", r.value)));
+      sb.append(",\"location\":");
+      appendLocation(sb, r.location);
+      if (r.data != null) sb.append(",\"data\":").append(quote(r.data));
+      sb.append('}');
+    }
+    sb.append(']');
+    if (allocAddress != -1) {
+      sb.append(",\"alloc\":{\"size\":").append(allocSize).append(",\"location\":");
+      appendLocation(sb, allocLocation != null ? allocLocation : new SourceLocation(allocAddress, null, null, 0));
+      sb.append('}');
+    }
+    sb.append(",\"stack\":[");
+    for (int i = 0; i < stack.size(); i++) {
+      if (i > 0) sb.append(',');
+      appendLocation(sb, stack.get(i));
+    }
+    sb.append(']');
+    if (!tasks.isEmpty()) {
+      sb.append(",\"tasks\":[");
+      for (int i = 0; i < tasks.size(); i++) {
+        Task t = tasks.get(i);
+        if (i > 0) sb.append(',');
+        sb.append("{\"name\":").append(quote(t.name));
+        sb.append(",\"tcb\":").append(quote(String.format("0x%08x", t.tcb)));
+        sb.append(",\"crashed\":").append(t.crashed);
+        sb.append(",\"frames\":[");
+        for (int f = 0; f < t.frames.size(); f++) {
+          if (f > 0) sb.append(',');
+          appendLocation(sb, t.frames.get(f));
+        }
+        sb.append("]}");
+      }
+      sb.append(']');
+    }
+    if (error != null) {
+      sb.append(",\"error\":").append(quote(error));
+    }
+  }
+
+  // "Task loopTask (TCB 0x3ffb8a40, crashed)"
+  static String taskTitle(Task t) {
+    return "Task " + t.name + String.format(" (TCB 0x%08x", t.tcb) + (t.crashed ? ", crashed)" : ")");
+  }
+
+  static String format(SourceLocation l) {
+    String s = l.getAddressString() + ": " + (l.function == null ? "??" : l.function);
+    if (l.hasLine()) {
+      s += " at " + l.file + " line " + l.line;
+    }
+    return s;
+  }
+
+  private static void appendLocation(StringBuilder sb, SourceLocation l) {
+    if (l == null) {
+      sb.append("null");
+      return;
+    }
+    sb.append("{\"address\":").append(quote(l.getAddressString()));
+    sb.append(",\"function\":").append(quote(l.function));
+    sb.append(",\"file\":").append(quote(l.file));
+    sb.append(",\"line\":").append(l.hasLine() ? l.line : 0);
+    sb.append('}');
+  }
+
+  static String quote(String s) {
+    if (s == null) return "null";
+    StringBuilder sb = new StringBuilder(s.length() + 2);
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"': sb.append("\\\""); break;
+        case '\\': sb.append("\\\\"); break;
+        case '\n': sb.append("\\n"); break;
+        case '\r': sb.append("\\r"); break;
+        case '\t': sb.append("\\t"); break;
+        default:
+          if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+          else sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+}
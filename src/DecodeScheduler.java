@@ -0,0 +1,225 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.JTextComponent;
+
+// Runs decodes of the input on a single background thread. Edits are
+// debounced, a new decode cancels the one still running, and everything a
+// decode wants to show goes through one channel that applies it on the EDT
+// in order, dropping whatever comes from a decode that was superseded.
+// Output arrives in pieces that are appended to what is shown, the first
+// piece of a decode replaces the output of the one before.
+class DecodeScheduler {
+  interface Decoder {
+    // Runs on the worker thread, should return early once cancelled
+    void decode(Task task);
+  }
+
+  interface Display {
+    // All run on the EDT
+    void clearOutput();
+    void appendOutput(String html);
+    void showStatus(String message, boolean error);
+  }
+
+  static class Task {
+    final int generation;
+    final String input;
+    private boolean cancelled;
+    private Runnable cancelHandler;
+
+    Task(int generation, String input) {
+      this.generation = generation;
+      this.input = input;
+    }
+
+    synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    // Run when the task gets cancelled, right away if it already is
+    void setCancelHandler(Runnable handler) {
+      boolean now;
+      synchronized (this) {
+        cancelHandler = handler;
+        now = cancelled;
+      }
+      if (now && handler != null) handler.run();
+    }
+
+    void cancel() {
+      Runnable handler;
+      synchronized (this) {
+        if (cancelled) return;
+        cancelled = true;
+        handler = cancelHandler;
+      }
+      if (handler != null) handler.run();
+    }
+  }
+
+  private static class Update {
+    final Task task;
+    final String html;
+    final String status;
+    final boolean error;
+
+    Update(Task task, String html, String status, boolean error) {
+      this.task = task;
+      this.html = html;
+      this.status = status;
+      this.error = error;
+    }
+  }
+
+  private final JTextComponent input;
+  private final Decoder decoder;
+  private final Display display;
+  private final Timer timer;
+  private final ExecutorService worker;
+  private int generation;
+  private volatile Task current;
+  // The task whose output is shown, only used on the EDT
+  private Task shown;
+
+  private final List<Update> updates = new ArrayList<Update>();
+  private boolean drainScheduled;
+
+  DecodeScheduler(JTextComponent input, int delay, Decoder decoder, Display display) {
+    this.input = input;
+    this.decoder = decoder;
+    this.display = display;
+    timer = new Timer(delay, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        start();
+      }
+    });
+    timer.setRepeats(false);
+    worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Exception Decoder");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  // The input changed, decode once it stops changing for a moment
+  void request() {
+    timer.restart();
+  }
+
+  // Decode right away, e.g. on ENTER
+  void decodeNow() {
+    timer.stop();
+    start();
+  }
+
+  void close() {
+    timer.stop();
+    Task t = current;
+    current = null;
+    if (t != null) t.cancel();
+    worker.shutdownNow();
+  }
+
+  private void start() {
+    final Task task = new Task(++generation, input.getText());
+    Task old = current;
+    current = task;
+    if (old != null) {
+      old.cancel();
+    }
+    worker.execute(new Runnable() {
+      public void run() {
+        // Superseded while waiting in the queue
+        if (task != current) return;
+        try {
+          decoder.decode(task);
+        } catch (Exception e) {
+          showStatus(task, "Decode Exception: " + e.getMessage(), true);
+        }
+      }
+    });
+  }
+
+  // Called from any thread with the output of the task since the last call,
+  // which may be empty. The calls of one task must not overlap.
+  void showOutput(Task task, String html) {
+    publish(new Update(task, html, null, false));
+  }
+
+  void showStatus(Task task, String message, boolean error) {
+    publish(new Update(task, null, message, error));
+  }
+
+  private void publish(Update update) {
+    if (update.task != current) return;
+    synchronized (updates) {
+      updates.add(update);
+      if (drainScheduled) return;
+      drainScheduled = true;
+    }
+    SwingUtilities.invokeLater(new Runnable() {
+      public void run() {
+        drain();
+      }
+    });
+  }
+
+  private void drain() {
+    List<Update> batch;
+    synchronized (updates) {
+      batch = new ArrayList<Update>(updates);
+      updates.clear();
+      drainScheduled = false;
+    }
+    // Pieces in a row are appended in one go
+    StringBuilder output = new StringBuilder();
+    for (Update u : batch) {
+      if (u.task != current) continue;
+      if (u.html != null) {
+        if (u.task != shown) {
+          output.setLength(0);
+          display.clearOutput();
+          shown = u.task;
+        }
+        output.append(u.html);
+      } else {
+        appendOutput(output);
+        display.showStatus(u.status, u.error);
+      }
+    }
+    appendOutput(output);
+  }
+
+  private void appendOutput(StringBuilder output) {
+    if (output.length() > 0) {
+      display.appendOutput(output.toString());
+      output.setLength(0);
+    }
+  }
+}
@@ -0,0 +1,296 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+// Decodes crash logs POSTed over HTTP, for services collecting crashes
+// from many devices:
+//
+//   java -cp EspExceptionDecoder.jar:commons-codec.jar com.ficeto.esp.DecodeServer \
+//     [--port 8080] [--bind 127.0.0.1] [--gdb PATH [--gdb-workers N]] [--jobs N] [--queue N] \
+//     [--timeout MS] [--index DIR] [--pool N] ELF|DIR...
+//
+//   GET  /builds              the known ELFs and the IDs they answer to
+//   POST /decode[?build=ID]   the crash log as the body, the report as JSON
+//   GET  /top?k=K             with --index, the crashes seen most often
+//   GET  /stats               the stage timings and counters of DecodeStats
+//
+// The ELFs are kept in a BuildRegistry and can be addressed by their GNU
+// build ID, SHA-256 or project@version. Without ?build= the build is
+// picked from the crash itself. The --pool builds used last stay loaded.
+// At most --jobs decodes run at once and --queue more may wait; anything
+// beyond that is turned away with 429 right away. A big crash may keep up
+// to --gdb-workers gdb processes of its ELF busy, one per core by default.
+public class DecodeServer {
+  private static final int MAX_BODY = 1024 * 1024;
+  private static final int BACKLOG = 256;
+
+  private BuildRegistry registry;
+  private final ThreadPoolExecutor pool;
+  private final long timeout;
+  private CrashIndex index;
+
+  private DecodeServer(int jobs, int queue, long timeout) {
+    this.timeout = timeout;
+    pool = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(queue), daemonThreads("decode"), new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = 8080;
+    String bind = "127.0.0.1";
+    File gdb = null;
+    int jobs = Runtime.getRuntime().availableProcessors();
+    int queue = -1;
+    long timeout = 10000;
+    File indexFolder = null;
+    int poolSize = 8;
+    List<File> elfs = new ArrayList<File>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String a = args[i];
+        if (a.equals("--port")) port = Integer.parseInt(args[++i]);
+        else if (a.equals("--bind")) bind = args[++i];
+        else if (a.equals("--gdb")) gdb = new File(args[++i]);
+        else if (a.equals("--jobs")) jobs = Integer.parseInt(args[++i]);
+        else if (a.equals("--gdb-workers")) GdbSession.setMaxWorkers(Integer.parseInt(args[++i]));
+        else if (a.equals("--queue")) queue = Integer.parseInt(args[++i]);
+        else if (a.equals("--timeout")) timeout = Long.parseLong(args[++i]);
+        else if (a.equals("--index")) indexFolder = new File(args[++i]);
+        else if (a.equals("--pool")) poolSize = Integer.parseInt(args[++i]);
+        else if (a.startsWith("--")) throw new IllegalArgumentException("unknown option " + a);
+        else elfs.add(new File(a));
+      }
+      if (elfs.isEmpty() || jobs < 1) {
+        throw new IllegalArgumentException("no ELF to serve");
+      }
+    } catch (RuntimeException e) {
+      System.err.println(e.getMessage());
+      System.err.println("usage: DecodeServer [--port N] [--bind ADDR] [--gdb PATH [--gdb-workers N]] [--jobs N] [--queue N] [--timeout MS] [--index DIR] [--pool N] ELF|DIR...");
+      System.exit(2);
+    }
+    if (gdb != null && !gdb.isFile()) {
+      System.err.println("WARNING: " + gdb + " not found, using the built-in symbolizer only");
+      gdb = null;
+    }
+    if (queue < 0) queue = jobs * 4;
+
+    DecodeServer server = new DecodeServer(jobs, queue, timeout);
+    if (indexFolder != null) server.index = new CrashIndex(indexFolder);
+    server.registry = new BuildRegistry(elfs, gdb, poolSize);
+    server.registry.scan();
+    if (server.registry.getBuilds().isEmpty()) {
+      System.err.println("ERROR: no ELF found");
+      System.exit(2);
+    }
+    for (BuildRegistry.Build b : server.registry.getBuilds()) {
+      System.err.println("Serving " + b.elf + " as " + b.getIds());
+    }
+    server.start(new InetSocketAddress(bind, port), jobs + queue);
+  }
+
+  private void start(InetSocketAddress address, int waiting) throws IOException {
+    // The backlog only holds connections not accepted yet, the 429s come
+    // from the handlers
+    HttpServer server = HttpServer.create(address, BACKLOG);
+    // Enough handlers for every running and queued decode, plus a few
+    // left over to answer 429 when those are all taken
+    server.setExecutor(Executors.newFixedThreadPool(waiting + 4, daemonThreads("http")));
+    server.createContext("/decode", new HttpHandler() {
+      public void handle(HttpExchange ex) throws IOException {
+        try {
+          decode(ex);
+        } catch (Exception e) {
+          reply(ex, 500, error(e.toString()));
+        }
+      }
+    });
+    server.createContext("/builds", new HttpHandler() {
+      public void handle(HttpExchange ex) throws IOException {
+        reply(ex, 200, listBuilds());
+      }
+    });
+    server.createContext("/stats", new HttpHandler() {
+      public void handle(HttpExchange ex) throws IOException {
+        reply(ex, 200, DecodeStats.get().toJson());
+      }
+    });
+    server.createContext("/top", new HttpHandler() {
+      public void handle(HttpExchange ex) throws IOException {
+        if (index == null) {
+          reply(ex, 404, error("no --index"));
+          return;
+        }
+        try {
+          String k = query(ex, "k");
+          reply(ex, 200, listTop(k == null ? 10 : Integer.parseInt(k)));
+        } catch (NumberFormatException e) {
+          reply(ex, 400, error("bad k"));
+        }
+      }
+    });
+    server.start();
+    System.err.println("Listening on http://" + address.getHostString() + ":" + address.getPort() + "/");
+  }
+
+  private void decode(HttpExchange ex) throws Exception {
+    if (!ex.getRequestMethod().equals("POST")) {
+      ex.getResponseHeaders().set("Allow", "POST");
+      reply(ex, 405, error("use POST"));
+      return;
+    }
+    String id = query(ex, "build");
+    String body = readBody(ex.getRequestBody());
+    if (body == null) {
+      reply(ex, 413, error("more than " + MAX_BODY + " bytes"));
+      return;
+    }
+    BuildRegistry.Build build = id == null ? registry.match(body) : registry.find(id);
+    if (build == null) {
+      reply(ex, 404, error(id == null ? "no build matches the crash, pass ?build=" : "unknown build " + id));
+      return;
+    }
+    final CrashDecoder decoder = registry.getDecoder(build);
+
+    final CrashDecoder.Decode d = new CrashDecoder.Decode(body);
+    Future<?> f;
+    try {
+      f = pool.submit(new Runnable() {
+        public void run() {
+          try {
+            decoder.decode(d);
+          } finally {
+            decoder.release();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      decoder.release();
+      ex.getResponseHeaders().set("Retry-After", "1");
+      reply(ex, 429, error("too many decodes running"));
+      return;
+    }
+    try {
+      f.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // Give up its gdb queries, the sessions stay up for the others
+      d.cancel();
+      f.cancel(true);
+      reply(ex, 504, error("decode took longer than " + timeout + "ms"));
+      return;
+    }
+    if (index != null) {
+      for (CrashReport r : d.report.getCrashes()) {
+        if (r.hasCrash()) index.add(r.fingerprint, System.currentTimeMillis(), r.getSummary());
+      }
+    }
+    reply(ex, 200, d.report.toJson(id != null ? id : build.hash));
+  }
+
+  private String listBuilds() {
+    StringBuilder sb = new StringBuilder("[");
+    for (BuildRegistry.Build b : registry.getBuilds()) {
+      if (sb.length() > 1) sb.append(',');
+      sb.append("{\"elf\":").append(CrashReport.quote(b.elf.getPath())).append(",\"ids\":[");
+      List<String> ids = b.getIds();
+      for (int i = 0; i < ids.size(); i++) {
+        if (i > 0) sb.append(',');
+        sb.append(CrashReport.quote(ids.get(i)));
+      }
+      sb.append("],\"loaded\":").append(registry.isLoaded(b)).append('}');
+    }
+    return sb.append(']').toString();
+  }
+
+  private String listTop(int k) {
+    StringBuilder sb = new StringBuilder("[");
+    for (CrashIndex.Entry e : index.top(k)) {
+      if (sb.length() > 1) sb.append(',');
+      sb.append("{\"fingerprint\":").append(CrashReport.quote(e.getFingerprint()));
+      sb.append(",\"count\":").append(e.count);
+      sb.append(",\"first\":").append(e.first);
+      sb.append(",\"last\":").append(e.last);
+      sb.append(",\"summary\":").append(CrashReport.quote(e.summary));
+      sb.append('}');
+    }
+    return sb.append(']').toString();
+  }
+
+  private static String query(HttpExchange ex, String name) throws UnsupportedEncodingException {
+    String q = ex.getRequestURI().getRawQuery();
+    if (q == null) return null;
+    for (String p : q.split("&")) {
+      int eq = p.indexOf('=');
+      if (eq > 0 && p.substring(0, eq).equals(name)) {
+        return java.net.URLDecoder.decode(p.substring(eq + 1), "UTF-8");
+      }
+    }
+    return null;
+  }
+
+  // The body as text, or null if it is too large
+  private static String readBody(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        if (out.size() + n > MAX_BODY) return null;
+        out.write(buf, 0, n);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String error(String message) {
+    return "{\"error\":" + CrashReport.quote(message) + "}";
+  }
+
+  private static void reply(HttpExchange ex, int status, String json) throws IOException {
+    byte[] b = json.getBytes(StandardCharsets.UTF_8);
+    ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    ex.sendResponseHeaders(status, b.length);
+    OutputStream out = ex.getResponseBody();
+    try {
+      out.write(b);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      private int count;
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name + "-" + (++count));
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+}
@@ -0,0 +1,230 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.*;
+
+// Where the time of the decodes went and what they did, for the whole
+// process. Always on: a stage costs two nanoTime() calls and a few atomic
+// adds. The window shows it in its diagnostics panel, the command line
+// and the server print it as JSON, and it is registered as the MBean
+// com.ficeto.esp:type=DecodeStats for JMX.
+class DecodeStats implements DynamicMBean {
+  // Stages
+  static final int TOOLCHAIN = 0;  // finding gdb
+  static final int ELF = 1;        // finding the ELF or matching the build
+  static final int GDB_START = 2;  // starting the gdb process
+  static final int GDB_LOAD = 3;   // gdb reading the symbols
+  static final int SYMBOLS = 4;    // the built-in symbolizer reading the ELF and DWARF
+  static final int PARSE = 5;      // tokenizing the crash log
+  static final int LOOKUP = 6;     // resolving the addresses
+  static final int GDB_OUTPUT = 7; // parsing gdb's answers
+  static final int RENDER = 8;     // adding the output to the window
+  static final int DECODE = 9;     // a whole decode
+  static final String[] STAGES = {
+    "toolchain", "elf", "gdbStart", "gdbLoad", "symbols", "parse", "lookup", "gdbOutput", "render", "decode"
+  };
+
+  // Counters
+  static final int DECODES = 0;
+  static final int GDB_PROCESSES = 1;
+  static final int ADDRESSES_QUERIED = 2;  // looked up, each distinct one once per decode
+  static final int GDB_QUERIES = 3;        // of those, sent to gdb
+  static final int ADDRESSES_RESOLVED = 4; // found a function or line for
+  static final int CACHE_HITS = 5;
+  static final String[] COUNTERS = {
+    "decodes", "gdbProcesses", "addressesQueried", "gdbQueries", "addressesResolved", "cacheHits"
+  };
+
+  static final String OBJECT_NAME = "com.ficeto.esp:type=DecodeStats";
+
+  private static DecodeStats instance;
+
+  // count, total, max and last nanoseconds of every stage
+  private final AtomicLongArray stages = new AtomicLongArray(STAGES.length * 4);
+  private final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+
+  static synchronized DecodeStats get() {
+    if (instance == null) {
+      instance = new DecodeStats();
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+      } catch (Exception e) {
+        // Already registered by an earlier copy of the plugin, or no JMX
+        System.err.println("JMX Exception: "+e.getMessage());
+      }
+    }
+    return instance;
+  }
+
+  // Start timing a stage, pass the result to end()
+  static long start() {
+    return System.nanoTime();
+  }
+
+  static void end(int stage, long start) {
+    get().add(stage, System.nanoTime() - start);
+  }
+
+  static void count(int counter) {
+    get().counters.incrementAndGet(counter);
+  }
+
+  static void count(int counter, long n) {
+    get().counters.addAndGet(counter, n);
+  }
+
+  void add(int stage, long nanos) {
+    int i = stage * 4;
+    stages.incrementAndGet(i);
+    stages.addAndGet(i + 1, nanos);
+    long max;
+    while ((max = stages.get(i + 2)) < nanos && !stages.compareAndSet(i + 2, max, nanos)) {
+    }
+    stages.set(i + 3, nanos);
+  }
+
+  long getCount(int stage) {
+    return stages.get(stage * 4);
+  }
+
+  double getTotalMillis(int stage) {
+    return stages.get(stage * 4 + 1) / 1e6;
+  }
+
+  double getMaxMillis(int stage) {
+    return stages.get(stage * 4 + 2) / 1e6;
+  }
+
+  double getLastMillis(int stage) {
+    return stages.get(stage * 4 + 3) / 1e6;
+  }
+
+  long getCounter(int counter) {
+    return counters.get(counter);
+  }
+
+  void reset() {
+    for (int i = 0; i < stages.length(); i++) stages.set(i, 0);
+    for (int i = 0; i < counters.length(); i++) counters.set(i, 0);
+  }
+
+  // A table for people, one stage per line, then the counters
+  String toText() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-10s %8s %10s %10s %10s%n", "stage", "count", "total ms", "max ms", "last ms"));
+    for (int s = 0; s < STAGES.length; s++) {
+      sb.append(String.format("%-10s %8d %10.1f %10.1f %10.1f%n", STAGES[s], getCount(s),
+                              getTotalMillis(s), getMaxMillis(s), getLastMillis(s)));
+    }
+    sb.append('\n');
+    for (int c = 0; c < COUNTERS.length; c++) {
+      sb.append(String.format("%-18s %d%n", COUNTERS[c], getCounter(c)));
+    }
+    return sb.toString();
+  }
+
+  String toJson() {
+    StringBuilder sb = new StringBuilder("{\"stages\":{");
+    for (int s = 0; s < STAGES.length; s++) {
+      if (s > 0) sb.append(',');
+      sb.append(CrashReport.quote(STAGES[s])).append(":{\"count\":").append(getCount(s));
+      sb.append(",\"totalMillis\":").append(String.format(Locale.ROOT, "%.3f", getTotalMillis(s)));
+      sb.append(",\"maxMillis\":").append(String.format(Locale.ROOT, "%.3f", getMaxMillis(s)));
+      sb.append(",\"lastMillis\":").append(String.format(Locale.ROOT, "%.3f", getLastMillis(s)));
+      sb.append('}');
+    }
+    sb.append("},\"counters\":{");
+    for (int c = 0; c < COUNTERS.length; c++) {
+      if (c > 0) sb.append(',');
+      sb.append(CrashReport.quote(COUNTERS[c])).append(':').append(getCounter(c));
+    }
+    return sb.append("}}").toString();
+  }
+
+  // JMX: every counter is an attribute, every stage four of them, like
+  // "lookupCount", "lookupTotalMillis", "lookupMaxMillis", "lookupLastMillis"
+
+  public Object getAttribute(String name) throws AttributeNotFoundException {
+    for (int c = 0; c < COUNTERS.length; c++) {
+      if (name.equals(COUNTERS[c])) return getCounter(c);
+    }
+    for (int s = 0; s < STAGES.length; s++) {
+      if (!name.startsWith(STAGES[s])) continue;
+      String rest = name.substring(STAGES[s].length());
+      if (rest.equals("Count")) return getCount(s);
+      if (rest.equals("TotalMillis")) return getTotalMillis(s);
+      if (rest.equals("MaxMillis")) return getMaxMillis(s);
+      if (rest.equals("LastMillis")) return getLastMillis(s);
+    }
+    throw new AttributeNotFoundException(name);
+  }
+
+  public AttributeList getAttributes(String[] names) {
+    AttributeList list = new AttributeList();
+    for (String name : names) {
+      try {
+        list.add(new Attribute(name, getAttribute(name)));
+      } catch (AttributeNotFoundException e) {
+        // Left out, as the interface asks
+      }
+    }
+    return list;
+  }
+
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  public Object invoke(String action, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+    if (action.equals("reset")) {
+      reset();
+      return null;
+    }
+    if (action.equals("toJson")) {
+      return toJson();
+    }
+    throw new ReflectionException(new NoSuchMethodException(action));
+  }
+
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+    for (String c : COUNTERS) {
+      attributes.add(new MBeanAttributeInfo(c, "long", c, true, false, false));
+    }
+    for (String s : STAGES) {
+      attributes.add(new MBeanAttributeInfo(s + "Count", "long", s + " runs", true, false, false));
+      attributes.add(new MBeanAttributeInfo(s + "TotalMillis", "double", s + " total time", true, false, false));
+      attributes.add(new MBeanAttributeInfo(s + "MaxMillis", "double", s + " longest time", true, false, false));
+      attributes.add(new MBeanAttributeInfo(s + "LastMillis", "double", s + " last time", true, false, false));
+    }
+    MBeanOperationInfo[] operations = {
+      new MBeanOperationInfo("reset", "Set everything back to zero", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION),
+      new MBeanOperationInfo("toJson", "Everything as JSON", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO)
+    };
+    return new MBeanInfo(getClass().getName(), "Timing and counters of the exception decoder",
+                         attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, operations, null);
+  }
+}
@@ -0,0 +1,374 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.List;
+
+// Reads the call frame information of .debug_frame and .eh_frame: for a
+// code address, how to find the frame of its function (the CFA, a register
+// plus an offset) and where the return address was saved. The FDEs are
+// indexed once; the rows of a function are worked out the first time one
+// of its addresses is asked for and kept.
+class DwarfFrame {
+  // Where the return address is, in a row
+  static final int RA_UNKNOWN = 0; // still in its register, or lost
+  static final int RA_OFFSET = 1;  // saved at CFA + raOffset
+
+  // One row of the table
+  static class Frame {
+    int cfaRegister = -1;
+    long cfaOffset;
+    int raRule = RA_UNKNOWN;
+    long raOffset;
+
+    Frame copy() {
+      Frame f = new Frame();
+      f.cfaRegister = cfaRegister;
+      f.cfaOffset = cfaOffset;
+      f.raRule = raRule;
+      f.raOffset = raOffset;
+      return f;
+    }
+  }
+
+  private static class Cie {
+    ByteBuffer section;
+    long sectionAddr;
+    boolean eh;
+    int addrSize;
+    long codeAlign;
+    long dataAlign;
+    int raRegister;
+    int encoding;
+    boolean augmented;
+    int insnStart;
+    int insnEnd;
+  }
+
+  private static class Fde {
+    long start;
+    long end;
+    Cie cie;
+    int insnStart;
+    int insnEnd;
+    // Worked out on first use
+    long[] locs;
+    Frame[] rows;
+  }
+
+  private final ElfFile elf;
+  private final List<Fde> fdes = new ArrayList<Fde>();
+  private long[] starts = new long[0];
+
+  DwarfFrame(ElfFile elf) {
+    this.elf = elf;
+    read(".debug_frame", false);
+    read(".eh_frame", true);
+    Collections.sort(fdes, new Comparator<Fde>() {
+      public int compare(Fde a, Fde b) {
+        return Long.compare(a.start, b.start);
+      }
+    });
+    starts = new long[fdes.size()];
+    for (int i = 0; i < starts.length; i++) starts[i] = fdes.get(i).start;
+  }
+
+  boolean isEmpty() {
+    return fdes.isEmpty();
+  }
+
+  // The row covering the address, or null if no FDE does
+  Frame find(long address) {
+    int i = ElfFile.floor(starts, starts.length, address);
+    // A function can be covered twice, by .debug_frame and by .eh_frame
+    while (i >= 0 && starts[i] <= address) {
+      Fde f = fdes.get(i);
+      if (address < f.end) return row(f, address);
+      if (i == 0 || starts[i - 1] != starts[i]) break;
+      i--;
+    }
+    return null;
+  }
+
+  private synchronized Frame row(Fde f, long address) {
+    if (f.rows == null) {
+      try {
+        new Interpreter(f).run();
+      } catch (RuntimeException e) {
+        // Truncated or odd instructions, the function can't be unwound
+        f.locs = new long[0];
+        f.rows = new Frame[0];
+      }
+    }
+    int i = ElfFile.floor(f.locs, f.locs.length, address);
+    return i == -1 ? null : f.rows[i];
+  }
+
+  private void read(String name, boolean eh) {
+    ByteBuffer b = elf.getSectionData(name);
+    if (b == null) return;
+    long sectionAddr = elf.getSection(name).addr;
+    Map<Integer, Cie> cies = new HashMap<Integer, Cie>();
+    try {
+      while (b.remaining() >= 4) {
+        int entry = b.position();
+        long length = b.getInt() & 0xffffffffL;
+        boolean dwarf64 = length == 0xffffffffL;
+        if (dwarf64) length = b.getLong();
+        // .eh_frame ends with a zero length
+        if (length == 0) break;
+        int idField = b.position();
+        int next = (int) (idField + length);
+        if (next > b.limit()) break;
+        long id = dwarf64 ? b.getLong() : b.getInt() & 0xffffffffL;
+        boolean isCie = eh ? id == 0 : (dwarf64 ? id == -1 : id == 0xffffffffL);
+        if (!isCie) {
+          int cieOffset = (int) (eh ? idField - id : id);
+          Cie cie = cies.get(cieOffset);
+          if (cie == null) {
+            cie = readCie(b, cieOffset, eh, sectionAddr);
+            cies.put(cieOffset, cie);
+          }
+          if (cie != null) readFde(b, cie, next);
+        }
+        b.position(next);
+      }
+    } catch (RuntimeException e) {
+      System.err.println("Frame info Exception in " + name + ": " + e);
+    }
+  }
+
+  private Cie readCie(ByteBuffer section, int offset, boolean eh, long sectionAddr) {
+    ByteBuffer b = section.duplicate().order(section.order());
+    b.position(offset);
+    long length = b.getInt() & 0xffffffffL;
+    boolean dwarf64 = length == 0xffffffffL;
+    if (dwarf64) length = b.getLong();
+    int next = (int) (b.position() + length);
+    b.position(b.position() + (dwarf64 ? 8 : 4));
+    Cie c = new Cie();
+    c.section = section;
+    c.sectionAddr = sectionAddr;
+    c.eh = eh;
+    c.addrSize = elf.is64 ? 8 : 4;
+    int version = b.get() & 0xff;
+    String augmentation = DwarfInfo.cstring(b);
+    if (version >= 4) {
+      c.addrSize = b.get() & 0xff;
+      b.get(); // segment selector size
+    }
+    c.codeAlign = DwarfInfo.uleb(b);
+    c.dataAlign = DwarfInfo.sleb(b);
+    c.raRegister = version == 1 ? b.get() & 0xff : (int) DwarfInfo.uleb(b);
+    if (augmentation.startsWith("z")) {
+      c.augmented = true;
+      long augLength = DwarfInfo.uleb(b);
+      int augEnd = (int) (b.position() + augLength);
+      for (int i = 1; i < augmentation.length(); i++) {
+        char a = augmentation.charAt(i);
+        if (a == 'R') {
+          c.encoding = b.get() & 0xff;
+        } else if (a == 'P') {
+          int personality = b.get() & 0xff;
+          readPointer(b, c, personality);
+        } else if (a == 'L') {
+          b.get();
+        } else {
+          break;
+        }
+      }
+      b.position(augEnd);
+    } else if (augmentation.length() > 0) {
+      // No way to know where the instructions start
+      return null;
+    }
+    c.insnStart = b.position();
+    c.insnEnd = next;
+    return c;
+  }
+
+  private void readFde(ByteBuffer b, Cie cie, int next) {
+    long start = readPointer(b, cie, cie.encoding);
+    long range = readPointer(b, cie, cie.encoding & 0x0f);
+    if (cie.augmented) {
+      long augLength = DwarfInfo.uleb(b);
+      b.position((int) (b.position() + augLength));
+    }
+    // Functions dropped by the linker keep their FDE at address 0
+    if (range <= 0 || (start == 0 && !elf.isExecutable(0))) return;
+    Fde f = new Fde();
+    f.start = start;
+    f.end = start + range;
+    f.cie = cie;
+    f.insnStart = b.position();
+    f.insnEnd = next;
+    fdes.add(f);
+  }
+
+  // A pointer in the DW_EH_PE encoding, .debug_frame always uses 0 (absolute)
+  private static long readPointer(ByteBuffer b, Cie cie, int encoding) {
+    if (encoding == 0xff) return 0;
+    long base = 0;
+    if ((encoding & 0x70) == 0x10) {
+      base = cie.sectionAddr + b.position();
+    }
+    long v;
+    switch (encoding & 0x0f) {
+      case 0x00: v = DwarfInfo.readSized(b, cie.addrSize); break;
+      case 0x01: v = DwarfInfo.uleb(b); break;
+      case 0x02: v = b.getShort() & 0xffff; break;
+      case 0x03: v = b.getInt() & 0xffffffffL; break;
+      case 0x04: v = b.getLong(); break;
+      case 0x09: v = DwarfInfo.sleb(b); break;
+      case 0x0a: v = b.getShort(); break;
+      case 0x0b: v = b.getInt(); break;
+      case 0x0c: v = b.getLong(); break;
+      default: throw new IllegalArgumentException("pointer encoding 0x" + Integer.toHexString(encoding));
+    }
+    v += base;
+    return cie.addrSize == 4 ? v & 0xffffffffL : v;
+  }
+
+  // Runs the CIE's and then the FDE's instructions, keeping a row every
+  // time the location moves. Only the CFA and the return address column
+  // are followed, the decoder doesn't need the other registers.
+  private static class Interpreter {
+    final Fde fde;
+    final Cie cie;
+    final ByteBuffer b;
+    final List<Long> locs = new ArrayList<Long>();
+    final List<Frame> rows = new ArrayList<Frame>();
+    final Deque<Frame> saved = new ArrayDeque<Frame>();
+    Frame row = new Frame();
+    Frame initial;
+    long loc;
+
+    Interpreter(Fde fde) {
+      this.fde = fde;
+      this.cie = fde.cie;
+      this.b = cie.section.duplicate().order(cie.section.order());
+    }
+
+    void run() {
+      execute(cie.insnStart, cie.insnEnd);
+      initial = row.copy();
+      loc = fde.start;
+      execute(fde.insnStart, fde.insnEnd);
+      add(fde.end);
+      fde.locs = new long[locs.size()];
+      for (int i = 0; i < fde.locs.length; i++) fde.locs[i] = locs.get(i);
+      fde.rows = rows.toArray(new Frame[rows.size()]);
+    }
+
+    // The current row holds from loc up to the new location
+    private void add(long to) {
+      if (to <= loc) return;
+      locs.add(loc);
+      rows.add(row.copy());
+      loc = to;
+    }
+
+    private void execute(int from, int to) {
+      b.limit(to);
+      b.position(from);
+      while (b.hasRemaining()) {
+        int op = b.get() & 0xff;
+        int low = op & 0x3f;
+        switch (op & 0xc0) {
+          case 0x40: add(loc + low * cie.codeAlign); continue;
+          case 0x80: offset(low, DwarfInfo.uleb(b) * cie.dataAlign); continue;
+          case 0xc0: restore(low); continue;
+        }
+        switch (op) {
+          case 0x00: break; // nop
+          case 0x01: add(readPointer(b, cie, cie.encoding)); break;
+          case 0x02: add(loc + (b.get() & 0xff) * cie.codeAlign); break;
+          case 0x03: add(loc + (b.getShort() & 0xffff) * cie.codeAlign); break;
+          case 0x04: add(loc + (b.getInt() & 0xffffffffL) * cie.codeAlign); break;
+          case 0x05: offset((int) DwarfInfo.uleb(b), DwarfInfo.uleb(b) * cie.dataAlign); break;
+          case 0x06: restore((int) DwarfInfo.uleb(b)); break;
+          case 0x07: // undefined
+          case 0x08: // same value
+            lost((int) DwarfInfo.uleb(b));
+            break;
+          case 0x09: // in another register
+            lost((int) DwarfInfo.uleb(b));
+            DwarfInfo.uleb(b);
+            break;
+          case 0x0a: saved.push(row.copy()); break;
+          case 0x0b: if (!saved.isEmpty()) row = saved.pop(); break;
+          case 0x0c:
+            row.cfaRegister = (int) DwarfInfo.uleb(b);
+            row.cfaOffset = DwarfInfo.uleb(b);
+            break;
+          case 0x0d: row.cfaRegister = (int) DwarfInfo.uleb(b); break;
+          case 0x0e: row.cfaOffset = DwarfInfo.uleb(b); break;
+          case 0x0f: // CFA from an expression
+            skip(DwarfInfo.uleb(b));
+            row.cfaRegister = -1;
+            break;
+          case 0x10: // expression
+          case 0x16: // value expression
+            lost((int) DwarfInfo.uleb(b));
+            skip(DwarfInfo.uleb(b));
+            break;
+          case 0x11: offset((int) DwarfInfo.uleb(b), DwarfInfo.sleb(b) * cie.dataAlign); break;
+          case 0x12:
+            row.cfaRegister = (int) DwarfInfo.uleb(b);
+            row.cfaOffset = DwarfInfo.sleb(b) * cie.dataAlign;
+            break;
+          case 0x13: row.cfaOffset = DwarfInfo.sleb(b) * cie.dataAlign; break;
+          case 0x14: // value offset
+            lost((int) DwarfInfo.uleb(b));
+            DwarfInfo.uleb(b);
+            break;
+          case 0x15: // value offset, signed
+            lost((int) DwarfInfo.uleb(b));
+            DwarfInfo.sleb(b);
+            break;
+          case 0x2e: DwarfInfo.uleb(b); break; // GNU args size
+          case 0x2f: offset((int) DwarfInfo.uleb(b), -DwarfInfo.uleb(b) * cie.dataAlign); break;
+          default:
+            // Unknown, the rest can't be read
+            b.position(b.limit());
+        }
+      }
+    }
+
+    private void offset(int register, long offset) {
+      if (register != cie.raRegister) return;
+      row.raRule = RA_OFFSET;
+      row.raOffset = offset;
+    }
+
+    private void restore(int register) {
+      if (register != cie.raRegister || initial == null) return;
+      row.raRule = initial.raRule;
+      row.raOffset = initial.raOffset;
+    }
+
+    private void lost(int register) {
+      if (register == cie.raRegister) row.raRule = RA_UNKNOWN;
+    }
+
+    private void skip(long n) {
+      b.position((int) (b.position() + n));
+    }
+  }
+}
@@ -0,0 +1,498 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Walks .debug_info (DWARF 2 to 5) and keeps what the decoder needs:
+// the address ranges and qualified names of all functions, and the line
+// table offset and compilation directory of every compilation unit.
+class DwarfInfo {
+  static final int TAG_CLASS = 0x02;
+  static final int TAG_STRUCTURE = 0x13;
+  static final int TAG_UNION = 0x17;
+  static final int TAG_COMPILE_UNIT = 0x11;
+  static final int TAG_SUBPROGRAM = 0x2e;
+  static final int TAG_NAMESPACE = 0x39;
+  static final int TAG_PARTIAL_UNIT = 0x3c;
+
+  static final int AT_NAME = 0x03;
+  static final int AT_STMT_LIST = 0x10;
+  static final int AT_LOW_PC = 0x11;
+  static final int AT_HIGH_PC = 0x12;
+  static final int AT_COMP_DIR = 0x1b;
+  static final int AT_ABSTRACT_ORIGIN = 0x31;
+  static final int AT_SPECIFICATION = 0x47;
+  static final int AT_RANGES = 0x55;
+
+  static final int FORM_ADDR = 0x01;
+  static final int FORM_SEC_OFFSET = 0x17;
+  static final int FORM_IMPLICIT_CONST = 0x21;
+
+  // A compilation unit's line program and the directory it was built in
+  static class Unit {
+    long stmtList = -1;
+    String compDir;
+  }
+
+  private final ElfFile elf;
+  private final ByteBuffer info;
+  private final ByteBuffer abbrev;
+  private final ByteBuffer str;
+  private final ByteBuffer lineStr;
+  private final List<Unit> units = new ArrayList<Unit>();
+
+  // Per DIE offset: name, enclosing scope and the DIE it refers to
+  private final Map<Integer, String> names = new HashMap<Integer, String>();
+  private final Map<Integer, Integer> scopes = new HashMap<Integer, Integer>();
+  private final Map<Integer, Integer> refs = new HashMap<Integer, Integer>();
+
+  // Function ranges, sorted by start address once parsing is done
+  private long[] funcLow = new long[256];
+  private long[] funcHigh = new long[256];
+  private int[] funcDie = new int[256];
+  private String[] funcName;
+  private int funcCount;
+
+  // Values of the attributes of the DIE being read
+  private long value;
+  private String string;
+  private int valueForm;
+
+  DwarfInfo(ElfFile elf) {
+    this.elf = elf;
+    info = elf.getSectionData(".debug_info");
+    abbrev = elf.getSectionData(".debug_abbrev");
+    str = elf.getSectionData(".debug_str");
+    lineStr = elf.getSectionData(".debug_line_str");
+    if (info != null && abbrev != null) {
+      readUnits();
+    }
+    sortFunctions();
+  }
+
+  List<Unit> getUnits() {
+    return units;
+  }
+
+  // Qualified name of the function containing the address, or null
+  String findFunction(long address) {
+    int i = ElfFile.floor(funcLow, funcCount, address);
+    // Ranges don't overlap for real functions, but a zero sized entry
+    // can sit in front of the one we want
+    while (i >= 0 && funcLow[i] <= address) {
+      if (address < funcHigh[i]) return funcName[i];
+      if (i == 0 || funcLow[i - 1] != funcLow[i]) break;
+      i--;
+    }
+    return null;
+  }
+
+  // The function ranges in address order, for the SymbolIndex
+  int getFunctionCount() {
+    return funcCount;
+  }
+
+  long getFunctionLow(int i) {
+    return funcLow[i];
+  }
+
+  long getFunctionHigh(int i) {
+    return funcHigh[i];
+  }
+
+  // Null if the debug info has no name for it
+  String getFunctionName(int i) {
+    return funcName[i];
+  }
+
+  private void readUnits() {
+    while (info.remaining() > 11) {
+      int unitStart = info.position();
+      long length = info.getInt() & 0xffffffffL;
+      boolean dwarf64 = false;
+      if (length == 0xffffffffL) {
+        length = info.getLong();
+        dwarf64 = true;
+      }
+      int unitEnd = (int) (info.position() + length);
+      int version = info.getShort() & 0xffff;
+      int addrSize;
+      long abbrevOffset;
+      int unitType = 1;
+      if (version >= 5) {
+        unitType = info.get() & 0xff;
+        addrSize = info.get() & 0xff;
+        abbrevOffset = dwarf64 ? info.getLong() : (info.getInt() & 0xffffffffL);
+        if (unitType == 2 || unitType == 6) {
+          info.position(info.position() + 8 + (dwarf64 ? 8 : 4));
+        } else if (unitType == 4 || unitType == 5) {
+          info.position(info.position() + 8);
+        }
+      } else {
+        abbrevOffset = dwarf64 ? info.getLong() : (info.getInt() & 0xffffffffL);
+        addrSize = info.get() & 0xff;
+      }
+      if (version >= 2 && version <= 5 && unitEnd <= info.limit()) {
+        try {
+          readUnit(unitStart, unitEnd, version, addrSize, dwarf64, readAbbrevs(abbrevOffset));
+        } catch (RuntimeException e) {
+          // A unit we can't understand, skip it and keep the rest
+          System.err.println("DWARF unit at 0x" + Integer.toHexString(unitStart) + " skipped: " + e);
+        }
+      }
+      if (unitEnd <= unitStart || unitEnd > info.limit()) break;
+      info.position(unitEnd);
+    }
+  }
+
+  private static class Abbrev {
+    int tag;
+    boolean children;
+    int[] attrs;
+    int[] forms;
+    long[] consts;
+  }
+
+  private Map<Integer, Abbrev> readAbbrevs(long offset) {
+    Map<Integer, Abbrev> table = new HashMap<Integer, Abbrev>();
+    ByteBuffer b = abbrev.duplicate().order(abbrev.order());
+    b.position((int) offset);
+    while (true) {
+      int code = (int) uleb(b);
+      if (code == 0) break;
+      Abbrev a = new Abbrev();
+      a.tag = (int) uleb(b);
+      a.children = b.get() != 0;
+      int[] attrs = new int[8], forms = new int[8];
+      long[] consts = new long[8];
+      int n = 0;
+      while (true) {
+        int attr = (int) uleb(b);
+        int form = (int) uleb(b);
+        if (attr == 0 && form == 0) break;
+        if (n == attrs.length) {
+          attrs = Arrays.copyOf(attrs, n * 2);
+          forms = Arrays.copyOf(forms, n * 2);
+          consts = Arrays.copyOf(consts, n * 2);
+        }
+        attrs[n] = attr;
+        forms[n] = form;
+        if (form == FORM_IMPLICIT_CONST) consts[n] = sleb(b);
+        n++;
+      }
+      a.attrs = Arrays.copyOf(attrs, n);
+      a.forms = Arrays.copyOf(forms, n);
+      a.consts = Arrays.copyOf(consts, n);
+      table.put(code, a);
+    }
+    return table;
+  }
+
+  private void readUnit(int unitStart, int unitEnd, int version, int addrSize, boolean dwarf64, Map<Integer, Abbrev> abbrevs) {
+    // Nearest enclosing scope of every open DIE that has children
+    int[] stackScope = new int[64];
+    int depth = 0;
+    long unitBase = 0;
+    Unit unit = null;
+
+    while (info.position() < unitEnd) {
+      int offset = info.position();
+      int code = (int) uleb(info);
+      if (code == 0) {
+        if (depth > 0) depth--;
+        continue;
+      }
+      Abbrev a = abbrevs.get(code);
+      if (a == null) {
+        throw new IllegalStateException("unknown abbrev " + code);
+      }
+      String name = null;
+      long low = -1, high = -1, ranges = -1;
+      boolean highIsOffset = false;
+      int ref = -1;
+      String compDir = null;
+      long stmtList = -1;
+
+      for (int i = 0; i < a.attrs.length; i++) {
+        readForm(a.forms[i], a.consts[i], version, addrSize, dwarf64, unitStart);
+        switch (a.attrs[i]) {
+          case AT_NAME: name = string; break;
+          case AT_LOW_PC: if (valueForm == FORM_ADDR) low = value; break;
+          case AT_HIGH_PC: high = value; highIsOffset = valueForm != FORM_ADDR; break;
+          case AT_RANGES: if (valueForm == FORM_SEC_OFFSET || version < 4) ranges = value; break;
+          case AT_STMT_LIST: stmtList = value; break;
+          case AT_COMP_DIR: compDir = string; break;
+          case AT_SPECIFICATION:
+          case AT_ABSTRACT_ORIGIN: ref = (int) value; break;
+        }
+      }
+
+      int scope = depth > 0 ? stackScope[depth - 1] : -1;
+      if (a.tag == TAG_COMPILE_UNIT || a.tag == TAG_PARTIAL_UNIT) {
+        unit = new Unit();
+        unit.stmtList = stmtList;
+        unit.compDir = compDir;
+        units.add(unit);
+        if (low != -1) unitBase = low;
+      } else if (a.tag == TAG_SUBPROGRAM || isScope(a.tag)) {
+        if (name != null) names.put(offset, name);
+        if (scope != -1) scopes.put(offset, scope);
+        if (ref != -1) refs.put(offset, ref);
+        if (a.tag == TAG_SUBPROGRAM) {
+          if (low != -1 && high != -1) {
+            addFunction(low, highIsOffset ? low + high : high, offset);
+          } else if (ranges != -1) {
+            readRanges(ranges, version, addrSize, unitBase, offset);
+          }
+        }
+      }
+
+      if (a.children) {
+        if (depth == stackScope.length) {
+          stackScope = Arrays.copyOf(stackScope, depth * 2);
+        }
+        stackScope[depth] = isScope(a.tag) ? offset : scope;
+        depth++;
+      }
+    }
+  }
+
+  private static boolean isScope(int tag) {
+    return tag == TAG_NAMESPACE || tag == TAG_CLASS || tag == TAG_STRUCTURE || tag == TAG_UNION;
+  }
+
+  // Read one attribute value into value/string, references become
+  // offsets from the start of .debug_info
+  private void readForm(int form, long implicit, int version, int addrSize, boolean dwarf64, int unitStart) {
+    string = null;
+    valueForm = form;
+    int offsetSize = dwarf64 ? 8 : 4;
+    switch (form) {
+      case 0x01: value = readSized(info, addrSize); break;                       // addr
+      case 0x03: skip(info.getShort() & 0xffff); break;                           // block2
+      case 0x04: skip(info.getInt()); break;                                      // block4
+      case 0x05: value = info.getShort() & 0xffff; break;                        // data2
+      case 0x06: value = info.getInt() & 0xffffffffL; break;                     // data4
+      case 0x07: value = info.getLong(); break;                                   // data8
+      case 0x08: string = cstring(info); break;                                   // string
+      case 0x09: skip((int) uleb(info)); break;                                   // block
+      case 0x0a: skip(info.get() & 0xff); break;                                  // block1
+      case 0x0b: value = info.get() & 0xff; break;                                // data1
+      case 0x0c: value = info.get() & 0xff; break;                                // flag
+      case 0x0d: value = sleb(info); break;                                       // sdata
+      case 0x0e: value = readSized(info, offsetSize); string = stringAt(str, value); break; // strp
+      case 0x0f: value = uleb(info); break;                                       // udata
+      case 0x10: value = readSized(info, version == 2 ? addrSize : offsetSize); break; // ref_addr
+      case 0x11: value = unitStart + (info.get() & 0xff); break;                  // ref1
+      case 0x12: value = unitStart + (info.getShort() & 0xffff); break;          // ref2
+      case 0x13: value = unitStart + (info.getInt() & 0xffffffffL); break;       // ref4
+      case 0x14: value = unitStart + info.getLong(); break;                       // ref8
+      case 0x15: value = unitStart + uleb(info); break;                           // ref_udata
+      case 0x16: readForm((int) uleb(info), implicit, version, addrSize, dwarf64, unitStart); break; // indirect
+      case 0x17: value = readSized(info, offsetSize); break;                      // sec_offset
+      case 0x18: skip((int) uleb(info)); break;                                   // exprloc
+      case 0x19: value = 1; break;                                                // flag_present
+      case 0x1a: value = uleb(info); break;                                       // strx
+      case 0x1b: value = uleb(info); break;                                       // addrx
+      case 0x1c: value = info.getInt() & 0xffffffffL; break;                     // ref_sup4
+      case 0x1d: value = readSized(info, offsetSize); break;                      // strp_sup
+      case 0x1e: skip(16); break;                                                 // data16
+      case 0x1f: value = readSized(info, offsetSize); string = stringAt(lineStr, value); break; // line_strp
+      case 0x20: value = info.getLong(); break;                                   // ref_sig8
+      case 0x21: value = implicit; break;                                         // implicit_const
+      case 0x22: value = uleb(info); break;                                       // loclistx
+      case 0x23: value = uleb(info); break;                                       // rnglistx
+      case 0x24: value = info.getLong(); break;                                   // ref_sup8
+      case 0x25: value = info.get() & 0xff; break;                                // strx1
+      case 0x26: value = info.getShort() & 0xffff; break;                        // strx2
+      case 0x27: value = readSized(info, 3); break;                               // strx3
+      case 0x28: value = info.getInt() & 0xffffffffL; break;                     // strx4
+      case 0x29: value = info.get() & 0xff; break;                                // addrx1
+      case 0x2a: value = info.getShort() & 0xffff; break;                        // addrx2
+      case 0x2b: value = readSized(info, 3); break;                               // addrx3
+      case 0x2c: value = info.getInt() & 0xffffffffL; break;                     // addrx4
+      case 0x1f01: value = uleb(info); break;                                     // GNU_addr_index
+      case 0x1f02: value = uleb(info); break;                                     // GNU_str_index
+      case 0x1f20: value = readSized(info, offsetSize); break;                    // GNU_ref_alt
+      case 0x1f21: value = readSized(info, offsetSize); break;                    // GNU_strp_alt
+      default:
+        throw new IllegalStateException("unknown form 0x" + Integer.toHexString(form));
+    }
+  }
+
+  private void skip(int n) {
+    info.position(info.position() + n);
+  }
+
+  // .debug_ranges (DWARF 2-4) or .debug_rnglists (DWARF 5) of a function
+  private void readRanges(long offset, int version, int addrSize, long base, int die) {
+    ByteBuffer b = elf.getSectionData(version >= 5 ? ".debug_rnglists" : ".debug_ranges");
+    if (b == null || offset >= b.limit()) return;
+    b.position((int) offset);
+    long maxAddr = addrSize == 8 ? -1L : (1L << (addrSize * 8)) - 1;
+    if (version < 5) {
+      while (b.remaining() >= addrSize * 2) {
+        long start = readSized(b, addrSize);
+        long end = readSized(b, addrSize);
+        if (start == 0 && end == 0) break;
+        if (start == maxAddr) {
+          base = end;
+        } else {
+          addFunction(base + start, base + end, die);
+        }
+      }
+      return;
+    }
+    while (b.hasRemaining()) {
+      int kind = b.get() & 0xff;
+      switch (kind) {
+        case 0: return;                                                           // end_of_list
+        case 1: uleb(b); break;                                                   // base_addressx
+        case 2: uleb(b); uleb(b); break;                                          // startx_endx
+        case 3: uleb(b); uleb(b); break;                                          // startx_length
+        case 4: { long s = uleb(b), e = uleb(b); addFunction(base + s, base + e, die); break; } // offset_pair
+        case 5: base = readSized(b, addrSize); break;                             // base_address
+        case 6: { long s = readSized(b, addrSize), e = readSized(b, addrSize); addFunction(s, e, die); break; } // start_end
+        case 7: { long s = readSized(b, addrSize); addFunction(s, s + uleb(b), die); break; } // start_length
+        default: return;
+      }
+    }
+  }
+
+  private void addFunction(long low, long high, int die) {
+    if (low == 0 || high <= low) return; // discarded by the linker
+    if (funcCount == funcLow.length) {
+      funcLow = Arrays.copyOf(funcLow, funcCount * 2);
+      funcHigh = Arrays.copyOf(funcHigh, funcCount * 2);
+      funcDie = Arrays.copyOf(funcDie, funcCount * 2);
+    }
+    funcLow[funcCount] = low;
+    funcHigh[funcCount] = high;
+    funcDie[funcCount] = die;
+    funcCount++;
+  }
+
+  private void sortFunctions() {
+    Integer[] order = new Integer[funcCount];
+    for (int i = 0; i < funcCount; i++) order[i] = i;
+    final long[] keys = funcLow;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Long.compare(keys[a], keys[b]);
+      }
+    });
+    long[] low = new long[funcCount], high = new long[funcCount];
+    String[] name = new String[funcCount];
+    for (int i = 0; i < funcCount; i++) {
+      int j = order[i];
+      low[i] = funcLow[j];
+      high[i] = funcHigh[j];
+      name[i] = qualifiedName(funcDie[j]);
+    }
+    funcLow = low;
+    funcHigh = high;
+    funcName = name;
+    funcDie = null;
+    names.clear();
+    scopes.clear();
+    refs.clear();
+  }
+
+  // Follow specification/abstract_origin to the DIE that has the name and
+  // prefix it with the enclosing namespaces and classes
+  private String qualifiedName(int die) {
+    for (int hops = 0; hops < 8 && !names.containsKey(die); hops++) {
+      Integer ref = refs.get(die);
+      if (ref == null) return null;
+      die = ref;
+    }
+    String name = names.get(die);
+    if (name == null) return null;
+    StringBuilder sb = new StringBuilder(name);
+    Integer scope = scopes.get(die);
+    for (int hops = 0; scope != null && hops < 16; hops++) {
+      String s = names.get(scope);
+      if (s == null) break;
+      sb.insert(0, "::").insert(0, s);
+      scope = scopes.get(scope);
+    }
+    return sb.toString();
+  }
+
+  static long readSized(ByteBuffer b, int size) {
+    switch (size) {
+      case 1: return b.get() & 0xff;
+      case 2: return b.getShort() & 0xffff;
+      case 4: return b.getInt() & 0xffffffffL;
+      case 8: return b.getLong();
+    }
+    long v = 0;
+    for (int i = 0; i < size; i++) {
+      long byteValue = b.get() & 0xff;
+      if (b.order() == ByteOrder.LITTLE_ENDIAN) v |= byteValue << (8 * i);
+      else v = (v << 8) | byteValue;
+    }
+    return v;
+  }
+
+  static long uleb(ByteBuffer b) {
+    long result = 0;
+    int shift = 0;
+    while (true) {
+      int c = b.get() & 0xff;
+      if (shift < 64) result |= (long) (c & 0x7f) << shift;
+      shift += 7;
+      if ((c & 0x80) == 0) return result;
+    }
+  }
+
+  static long sleb(ByteBuffer b) {
+    long result = 0;
+    int shift = 0;
+    int c;
+    do {
+      c = b.get() & 0xff;
+      if (shift < 64) result |= (long) (c & 0x7f) << shift;
+      shift += 7;
+    } while ((c & 0x80) != 0);
+    if (shift < 64 && (c & 0x40) != 0) result |= -1L << shift;
+    return result;
+  }
+
+  static String cstring(ByteBuffer b) {
+    int start = b.position();
+    while (b.get() != 0) { }
+    return decode(b, start, b.position() - 1);
+  }
+
+  static String stringAt(ByteBuffer section, long offset) {
+    if (section == null || offset < 0 || offset >= section.limit()) return null;
+    int start = (int) offset, end = start;
+    while (end < section.limit() && section.get(end) != 0) end++;
+    return decode(section, start, end);
+  }
+
+  private static String decode(ByteBuffer b, int start, int end) {
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) bytes[i] = b.get(start + i);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
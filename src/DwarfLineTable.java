@@ -0,0 +1,322 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Runs the .debug_line programs of all compilation units and flattens the
+// result into address sorted arrays: address -> (file, line).
+class DwarfLineTable {
+  // Rows of all sequences. An end of sequence row has file -1.
+  private long[] rowAddr = new long[1024];
+  private int[] rowFile = new int[1024];
+  private int[] rowLine = new int[1024];
+  private int rowCount;
+
+  // Start row of every sequence, in the order they were read
+  private int[] seqStart = new int[64];
+  private int seqCount;
+
+  private final List<String> files = new ArrayList<String>();
+  private final Map<String, Integer> fileIndex = new HashMap<String, Integer>();
+
+  private final ByteBuffer line;
+  private final ByteBuffer str;
+  private final ByteBuffer lineStr;
+
+  DwarfLineTable(ElfFile elf, DwarfInfo info) {
+    line = elf.getSectionData(".debug_line");
+    str = elf.getSectionData(".debug_str");
+    lineStr = elf.getSectionData(".debug_line_str");
+    if (line != null) {
+      Set<Long> done = new HashSet<Long>();
+      for (DwarfInfo.Unit unit : info.getUnits()) {
+        if (unit.stmtList < 0 || !done.add(unit.stmtList)) continue;
+        readProgram(unit.stmtList, unit.compDir);
+      }
+      if (done.isEmpty()) {
+        // No .debug_info to tell us where the programs are, walk them all
+        long offset = 0;
+        while (offset >= 0 && offset < line.limit()) {
+          offset = readProgram(offset, null);
+        }
+      }
+    }
+    sortSequences();
+  }
+
+  // File and line of the address, or null when there is no line info
+  SourceLocation find(long address, String function) {
+    int i = ElfFile.floor(rowAddr, rowCount, address);
+    if (i < 0 || rowFile[i] < 0) {
+      return null;
+    }
+    return new SourceLocation(address, function, files.get(rowFile[i]), rowLine[i]);
+  }
+
+  // The rows in address order, for the SymbolIndex
+  int getRowCount() {
+    return rowCount;
+  }
+
+  long getRowAddress(int i) {
+    return rowAddr[i];
+  }
+
+  // Index into getFiles(), -1 at the end of a sequence
+  int getRowFile(int i) {
+    return rowFile[i];
+  }
+
+  int getRowLine(int i) {
+    return rowLine[i];
+  }
+
+  List<String> getFiles() {
+    return files;
+  }
+
+  // Returns the offset of the next program, or -1 if this one was unreadable
+  private long readProgram(long offset, String compDir) {
+    ByteBuffer b = line.duplicate().order(line.order());
+    try {
+      b.position((int) offset);
+      long length = b.getInt() & 0xffffffffL;
+      boolean dwarf64 = false;
+      if (length == 0xffffffffL) {
+        length = b.getLong();
+        dwarf64 = true;
+      }
+      long end = b.position() + length;
+      int version = b.getShort() & 0xffff;
+      if (version < 2 || version > 5 || end > b.limit()) return -1;
+      if (version >= 5) {
+        b.get(); // address size
+        b.get(); // segment selector size
+      }
+      long headerLength = dwarf64 ? b.getLong() : (b.getInt() & 0xffffffffL);
+      int programStart = (int) (b.position() + headerLength);
+      int minInst = b.get() & 0xff;
+      if (version >= 4) b.get(); // maximum operations per instruction
+      b.get(); // default_is_stmt
+      int lineBase = b.get();
+      int lineRange = b.get() & 0xff;
+      int opcodeBase = b.get() & 0xff;
+      int[] opcodeLengths = new int[opcodeBase];
+      for (int i = 1; i < opcodeBase; i++) {
+        opcodeLengths[i] = b.get() & 0xff;
+      }
+
+      List<String> dirs = new ArrayList<String>();
+      List<Integer> fileMap = new ArrayList<Integer>();
+      if (version >= 5) {
+        for (String[] entry : readEntries(b, dwarf64)) {
+          dirs.add(entry[0]);
+        }
+        for (String[] entry : readEntries(b, dwarf64)) {
+          fileMap.add(addFile(compDir, dirs, entry[0], entry[1] == null ? 0 : Integer.parseInt(entry[1])));
+        }
+      } else {
+        dirs.add(compDir);
+        String dir;
+        while ((dir = DwarfInfo.cstring(b)).length() > 0) {
+          dirs.add(dir);
+        }
+        fileMap.add(-1); // files are numbered from 1
+        String name;
+        while ((name = DwarfInfo.cstring(b)).length() > 0) {
+          int d = (int) DwarfInfo.uleb(b);
+          DwarfInfo.uleb(b);
+          DwarfInfo.uleb(b);
+          fileMap.add(addFile(compDir, dirs, name, d));
+        }
+      }
+
+      b.position(programStart);
+      long address = 0;
+      int file = 1, lineNo = 1;
+      boolean inSequence = false;
+      while (b.position() < end) {
+        int op = b.get() & 0xff;
+        boolean emit = false;
+        if (op >= opcodeBase) {
+          int adj = op - opcodeBase;
+          address += (adj / lineRange) * minInst;
+          lineNo += lineBase + adj % lineRange;
+          emit = true;
+        } else if (op == 0) {
+          int len = (int) DwarfInfo.uleb(b);
+          int next = b.position() + len;
+          int sub = len > 0 ? b.get() & 0xff : 0;
+          if (sub == 1) {
+            // end_sequence
+            addRow(address, -1, 0, inSequence);
+            inSequence = false;
+            address = 0;
+            file = 1;
+            lineNo = 1;
+          } else if (sub == 2) {
+            address = DwarfInfo.readSized(b, len - 1);
+          } else if (sub == 3) {
+            String name = DwarfInfo.cstring(b);
+            int d = (int) DwarfInfo.uleb(b);
+            fileMap.add(addFile(compDir, dirs, name, d));
+          }
+          b.position(next);
+        } else {
+          switch (op) {
+            case 1: emit = true; break;                                              // copy
+            case 2: address += DwarfInfo.uleb(b) * minInst; break;                   // advance_pc
+            case 3: lineNo += (int) DwarfInfo.sleb(b); break;                        // advance_line
+            case 4: file = (int) DwarfInfo.uleb(b); break;                           // set_file
+            case 8: address += ((255 - opcodeBase) / lineRange) * minInst; break;    // const_add_pc
+            case 9: address += b.getShort() & 0xffff; break;                         // fixed_advance_pc
+            default:
+              for (int i = 0; i < opcodeLengths[op]; i++) DwarfInfo.uleb(b);
+          }
+        }
+        if (emit) {
+          int f = file >= 0 && file < fileMap.size() ? fileMap.get(file) : -1;
+          if (f < 0) f = addFile(null, dirs, "??", -1);
+          if (!inSequence) {
+            startSequence();
+            inSequence = true;
+          }
+          addRow(address, f, lineNo, true);
+        }
+      }
+      return end;
+    } catch (RuntimeException e) {
+      System.err.println("DWARF line program at 0x" + Long.toHexString(offset) + " skipped: " + e);
+      return -1;
+    }
+  }
+
+  // Directory or file entries of a DWARF 5 header: { path, directory index }
+  private List<String[]> readEntries(ByteBuffer b, boolean dwarf64) {
+    int formatCount = b.get() & 0xff;
+    int[] types = new int[formatCount];
+    int[] forms = new int[formatCount];
+    for (int i = 0; i < formatCount; i++) {
+      types[i] = (int) DwarfInfo.uleb(b);
+      forms[i] = (int) DwarfInfo.uleb(b);
+    }
+    int count = (int) DwarfInfo.uleb(b);
+    List<String[]> entries = new ArrayList<String[]>(count);
+    for (int n = 0; n < count; n++) {
+      String[] entry = new String[2];
+      for (int i = 0; i < formatCount; i++) {
+        String s = null;
+        long v = 0;
+        switch (forms[i]) {
+          case 0x08: s = DwarfInfo.cstring(b); break;                                           // string
+          case 0x0e: s = DwarfInfo.stringAt(str, DwarfInfo.readSized(b, dwarf64 ? 8 : 4)); break;       // strp
+          case 0x1f: s = DwarfInfo.stringAt(lineStr, DwarfInfo.readSized(b, dwarf64 ? 8 : 4)); break;   // line_strp
+          case 0x0f: v = DwarfInfo.uleb(b); break;                                              // udata
+          case 0x0b: v = b.get() & 0xff; break;                                                 // data1
+          case 0x05: v = b.getShort() & 0xffff; break;                                          // data2
+          case 0x06: v = b.getInt() & 0xffffffffL; break;                                      // data4
+          case 0x07: v = b.getLong(); break;                                                    // data8
+          case 0x1e: b.position(b.position() + 16); break;                                      // data16
+          case 0x09: b.position(b.position() + (int) DwarfInfo.uleb(b)); break;                 // block
+          default:
+            throw new IllegalStateException("unknown form 0x" + Integer.toHexString(forms[i]));
+        }
+        if (types[i] == 1) entry[0] = s;                         // DW_LNCT_path
+        else if (types[i] == 2) entry[1] = Long.toString(v);     // DW_LNCT_directory_index
+      }
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  private int addFile(String compDir, List<String> dirs, String name, int dir) {
+    String path = name;
+    if (!isAbsolute(path)) {
+      String d = dir >= 0 && dir < dirs.size() ? dirs.get(dir) : null;
+      if (d != null && !isAbsolute(d) && compDir != null) d = compDir + "/" + d;
+      if (d != null) path = d + "/" + path;
+    }
+    Integer index = fileIndex.get(path);
+    if (index == null) {
+      index = files.size();
+      files.add(path);
+      fileIndex.put(path, index);
+    }
+    return index;
+  }
+
+  private static boolean isAbsolute(String path) {
+    if (path == null || path.length() == 0) return false;
+    char c = path.charAt(0);
+    return c == '/' || c == '\\' || (path.length() > 2 && path.charAt(1) == ':');
+  }
+
+  private void startSequence() {
+    if (seqCount == seqStart.length) {
+      seqStart = Arrays.copyOf(seqStart, seqCount * 2);
+    }
+    seqStart[seqCount++] = rowCount;
+  }
+
+  private void addRow(long address, int file, int lineNo, boolean inSequence) {
+    if (!inSequence) return;
+    // Consecutive rows for the same line add nothing to a lookup
+    if (file >= 0 && rowCount > seqStart[seqCount - 1]) {
+      int last = rowCount - 1;
+      if (rowFile[last] == file && rowLine[last] == lineNo) return;
+    }
+    if (rowCount == rowAddr.length) {
+      rowAddr = Arrays.copyOf(rowAddr, rowCount * 2);
+      rowFile = Arrays.copyOf(rowFile, rowCount * 2);
+      rowLine = Arrays.copyOf(rowLine, rowCount * 2);
+    }
+    rowAddr[rowCount] = address;
+    rowFile[rowCount] = file;
+    rowLine[rowCount] = lineNo;
+    rowCount++;
+  }
+
+  // Order the sequences by address and drop the ones the linker discarded
+  private void sortSequences() {
+    Integer[] order = new Integer[seqCount];
+    for (int i = 0; i < seqCount; i++) order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Long.compare(rowAddr[seqStart[a]], rowAddr[seqStart[b]]);
+      }
+    });
+    long[] addr = new long[rowCount];
+    int[] file = new int[rowCount];
+    int[] lineNo = new int[rowCount];
+    int n = 0;
+    for (int s : order) {
+      int start = seqStart[s];
+      int end = s + 1 < seqCount ? seqStart[s + 1] : rowCount;
+      if (rowAddr[start] == 0) continue;
+      System.arraycopy(rowAddr, start, addr, n, end - start);
+      System.arraycopy(rowFile, start, file, n, end - start);
+      System.arraycopy(rowLine, start, lineNo, n, end - start);
+      n += end - start;
+    }
+    rowAddr = Arrays.copyOf(addr, n);
+    rowFile = Arrays.copyOf(file, n);
+    rowLine = Arrays.copyOf(lineNo, n);
+    rowCount = n;
+  }
+}
@@ -0,0 +1,402 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Read-only, memory mapped view of an ELF file: the section headers, the
+// address ranges holding code and the function symbols from .symtab,
+// sorted by address.
+class ElfFile {
+  static final int SHT_SYMTAB = 2;
+  static final int SHT_NOBITS = 8;
+  static final int SHF_ALLOC = 0x2;
+  static final int SHF_EXECINSTR = 0x4;
+  static final int STT_OBJECT = 1;
+  static final int STT_FUNC = 2;
+  static final int NT_GNU_BUILD_ID = 3;
+  static final int PT_LOAD = 1;
+  static final int PF_X = 0x1;
+  static final int APP_DESC_MAGIC = 0xABCD5432;
+  static final int EM_XTENSA = 94;
+  static final int EM_RISCV = 243;
+
+  static class Section {
+    String name;
+    int nameOffset;
+    int type;
+    long flags;
+    long addr;
+    long offset;
+    long size;
+    int link;
+  }
+
+  final File file;
+  final boolean is64;
+  final int machine;
+  private final ByteBuffer data;
+  private final List<Section> sections = new ArrayList<Section>();
+
+  // Disjoint address ranges of the code, sorted, end exclusive
+  private long[] execStart = new long[0];
+  private long[] execEnd = new long[0];
+
+  // Function symbols, sorted by start address
+  private long[] funcStart = new long[0];
+  private long[] funcSize = new long[0];
+  private String[] funcName = new String[0];
+
+  // Data symbols, the same way
+  private long[] objStart = new long[0];
+  private long[] objSize = new long[0];
+  private String[] objName = new String[0];
+
+  ElfFile(File file) throws IOException {
+    this.file = file;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel ch = raf.getChannel();
+      MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      data = map;
+    } finally {
+      raf.close();
+    }
+    if (data.limit() < 52 || data.getInt(0) != 0x7f454c46) {
+      throw new IOException(file.getName() + " is not an ELF file");
+    }
+    is64 = data.get(4) == 2;
+    data.order(data.get(5) == 2 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    machine = data.getShort(0x12) & 0xffff;
+    readSections();
+    readExecRanges();
+    readSymbols();
+  }
+
+  ByteOrder order() {
+    return data.order();
+  }
+
+  List<Section> getSections() {
+    return sections;
+  }
+
+  Section getSection(String name) {
+    for (Section s : sections) {
+      if (name.equals(s.name)) return s;
+    }
+    return null;
+  }
+
+  // A buffer positioned over the contents of the section, or null
+  ByteBuffer getSectionData(String name) {
+    Section s = getSection(name);
+    if (s == null || s.type == SHT_NOBITS) return null;
+    return slice(s.offset, s.size);
+  }
+
+  // What the ELF loads at the address, at most length bytes of it, or null
+  // if no section with contents covers the address
+  ByteBuffer getBytesAt(long address, int length) {
+    for (Section s : sections) {
+      if ((s.flags & SHF_ALLOC) == 0 || s.type == SHT_NOBITS) continue;
+      if (address >= s.addr && address < s.addr + s.size) {
+        return slice(s.offset + (address - s.addr), Math.min(length, s.addr + s.size - address));
+      }
+    }
+    return null;
+  }
+
+  // The GNU build ID note as hex, or null if the linker didn't add one
+  String getBuildId() {
+    ByteBuffer b = getSectionData(".note.gnu.build-id");
+    if (b == null || b.remaining() < 12) return null;
+    int nameSize = b.getInt();
+    int descSize = b.getInt();
+    int type = b.getInt();
+    int desc = 12 + ((nameSize + 3) & ~3);
+    if (type != NT_GNU_BUILD_ID || descSize <= 0 || desc + descSize > b.limit()) return null;
+    StringBuilder sb = new StringBuilder(descSize * 2);
+    for (int i = 0; i < descSize; i++) {
+      sb.append(String.format("%02x", b.get(desc + i) & 0xff));
+    }
+    return sb.toString();
+  }
+
+  private ByteBuffer slice(long offset, long size) {
+    ByteBuffer b = data.duplicate();
+    b.limit((int) (offset + size));
+    b.position((int) offset);
+    return b.slice().order(data.order());
+  }
+
+  private void readSections() throws IOException {
+    int shoff = (int) (is64 ? data.getLong(0x28) : (data.getInt(0x20) & 0xffffffffL));
+    int shentsize = data.getShort(is64 ? 0x3a : 0x2e) & 0xffff;
+    int shnum = data.getShort(is64 ? 0x3c : 0x30) & 0xffff;
+    int shstrndx = data.getShort(is64 ? 0x3e : 0x32) & 0xffff;
+    if (shoff == 0 || shnum == 0) return;
+    if (shoff + (long) shnum * shentsize > data.limit()) {
+      throw new IOException(file.getName() + ": truncated section headers");
+    }
+    for (int i = 0; i < shnum; i++) {
+      int o = shoff + i * shentsize;
+      Section s = new Section();
+      s.nameOffset = data.getInt(o);
+      s.type = data.getInt(o + 4);
+      if (is64) {
+        s.flags = data.getLong(o + 8);
+        s.addr = data.getLong(o + 16);
+        s.offset = data.getLong(o + 24);
+        s.size = data.getLong(o + 32);
+        s.link = data.getInt(o + 40);
+      } else {
+        s.flags = data.getInt(o + 8) & 0xffffffffL;
+        s.addr = data.getInt(o + 12) & 0xffffffffL;
+        s.offset = data.getInt(o + 16) & 0xffffffffL;
+        s.size = data.getInt(o + 20) & 0xffffffffL;
+        s.link = data.getInt(o + 24);
+      }
+      sections.add(s);
+    }
+    if (shstrndx < sections.size()) {
+      long names = sections.get(shstrndx).offset;
+      for (Section s : sections) {
+        s.name = readString(names + s.nameOffset);
+      }
+    }
+  }
+
+  // The executable sections (.text, .irom0.text, .iram0.text, .flash.text
+  // ...), or the executable segments if the section headers are gone
+  private void readExecRanges() {
+    List<long[]> ranges = new ArrayList<long[]>();
+    for (Section s : sections) {
+      if ((s.flags & (SHF_ALLOC | SHF_EXECINSTR)) == (SHF_ALLOC | SHF_EXECINSTR) && s.size > 0) {
+        ranges.add(new long[] { s.addr, s.addr + s.size });
+      }
+    }
+    if (ranges.isEmpty()) {
+      int phoff = (int) (is64 ? data.getLong(0x20) : (data.getInt(0x1c) & 0xffffffffL));
+      int phentsize = data.getShort(is64 ? 0x36 : 0x2a) & 0xffff;
+      int phnum = data.getShort(is64 ? 0x38 : 0x2c) & 0xffff;
+      if (phoff != 0 && phoff + (long) phnum * phentsize <= data.limit()) {
+        for (int i = 0; i < phnum; i++) {
+          int o = phoff + i * phentsize;
+          int flags = data.getInt(o + (is64 ? 4 : 24));
+          long vaddr = is64 ? data.getLong(o + 16) : (data.getInt(o + 8) & 0xffffffffL);
+          long memsz = is64 ? data.getLong(o + 40) : (data.getInt(o + 20) & 0xffffffffL);
+          if (data.getInt(o) == PT_LOAD && (flags & PF_X) != 0 && memsz > 0) {
+            ranges.add(new long[] { vaddr, vaddr + memsz });
+          }
+        }
+      }
+    }
+    Collections.sort(ranges, new Comparator<long[]>() {
+      public int compare(long[] a, long[] b) {
+        return Long.compare(a[0], b[0]);
+      }
+    });
+    long[] start = new long[ranges.size()];
+    long[] end = new long[ranges.size()];
+    int n = 0;
+    for (long[] r : ranges) {
+      if (n > 0 && r[0] <= end[n - 1]) {
+        end[n - 1] = Math.max(end[n - 1], r[1]);
+      } else {
+        start[n] = r[0];
+        end[n] = r[1];
+        n++;
+      }
+    }
+    execStart = Arrays.copyOf(start, n);
+    execEnd = Arrays.copyOf(end, n);
+  }
+
+  boolean hasExecutableRanges() {
+    return execStart.length > 0;
+  }
+
+  // Whether the address is in the code of the ELF
+  boolean isExecutable(long address) {
+    int i = floor(execStart, execStart.length, address);
+    return i >= 0 && address < execEnd[i];
+  }
+
+  // The code ranges as {starts, ends}
+  long[][] getExecutableRanges() {
+    return new long[][] { execStart.clone(), execEnd.clone() };
+  }
+
+  // Project name and version from the ESP-IDF app descriptor
+  // (esp_app_desc_t), or null if the ELF has none
+  String[] getAppDescription() {
+    ByteBuffer b = getSectionData(".flash.appdesc");
+    if (b == null) b = getSectionData(".rodata_desc");
+    if (b == null || b.remaining() < 80 || b.getInt(0) != APP_DESC_MAGIC) return null;
+    return new String[] { readString(b, 48, 32), readString(b, 16, 32) };
+  }
+
+  private static String readString(ByteBuffer b, int offset, int max) {
+    int end = offset;
+    while (end < offset + max && b.get(end) != 0) end++;
+    byte[] s = new byte[end - offset];
+    for (int i = 0; i < s.length; i++) s[i] = b.get(offset + i);
+    return new String(s, StandardCharsets.UTF_8);
+  }
+
+  String readString(long offset) {
+    int start = (int) offset;
+    int end = start;
+    while (end < data.limit() && data.get(end) != 0) end++;
+    byte[] b = new byte[end - start];
+    for (int i = 0; i < b.length; i++) b[i] = data.get(start + i);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  private void readSymbols() {
+    Section symtab = null;
+    for (Section s : sections) {
+      if (s.type == SHT_SYMTAB) symtab = s;
+    }
+    if (symtab == null || symtab.link >= sections.size()) return;
+    long strings = sections.get(symtab.link).offset;
+    int entsize = is64 ? 24 : 16;
+    int count = (int) (symtab.size / entsize);
+
+    long[] start = new long[count];
+    long[] size = new long[count];
+    int[] name = new int[count];
+    int[] type = new int[count];
+    int n = 0;
+    for (int i = 0; i < count; i++) {
+      int o = (int) symtab.offset + i * entsize;
+      int info = data.get(o + (is64 ? 4 : 12)) & 0xff;
+      int shndx = data.getShort(o + (is64 ? 6 : 14)) & 0xffff;
+      if (((info & 0xf) != STT_FUNC && (info & 0xf) != STT_OBJECT) || shndx == 0) continue;
+      type[n] = info & 0xf;
+      name[n] = data.getInt(o);
+      start[n] = is64 ? data.getLong(o + 8) : (data.getInt(o + 4) & 0xffffffffL);
+      size[n] = is64 ? data.getLong(o + 16) : (data.getInt(o + 8) & 0xffffffffL);
+      n++;
+    }
+
+    // Sort by address through an index array, keeping the arrays primitive
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) order[i] = i;
+    final long[] keys = start;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Long.compare(keys[a], keys[b]);
+      }
+    });
+    int functions = 0;
+    for (int i = 0; i < n; i++) {
+      if (type[i] == STT_FUNC) functions++;
+    }
+    funcStart = new long[functions];
+    funcSize = new long[functions];
+    funcName = new String[functions];
+    objStart = new long[n - functions];
+    objSize = new long[n - functions];
+    objName = new String[n - functions];
+    int f = 0, d = 0;
+    for (int i = 0; i < n; i++) {
+      int j = order[i];
+      if (type[j] == STT_FUNC) {
+        funcStart[f] = start[j];
+        funcSize[f] = size[j];
+        funcName[f++] = readString(strings + name[j]);
+      } else {
+        objStart[d] = start[j];
+        objSize[d] = size[j];
+        objName[d++] = readString(strings + name[j]);
+      }
+    }
+  }
+
+  // Index of the function symbol covering the address, or -1
+  int findFunction(long address) {
+    int i = floor(funcStart, funcStart.length, address);
+    // Aliases share an address, walk back through them to one that fits
+    while (i >= 0) {
+      if (address < funcStart[i] + Math.max(1, funcSize[i])) return i;
+      if (i == 0 || funcStart[i - 1] != funcStart[i]) break;
+      i--;
+    }
+    return -1;
+  }
+
+  int getFunctionCount() {
+    return funcStart.length;
+  }
+
+  String getFunctionName(int index) {
+    return funcName[index];
+  }
+
+  long getFunctionStart(int index) {
+    return funcStart[index];
+  }
+
+  long getFunctionSize(int index) {
+    return funcSize[index];
+  }
+
+  // Index of the data symbol covering the address, or -1. One without a
+  // size covers only its own address.
+  int findObject(long address) {
+    int i = floor(objStart, objStart.length, address);
+    while (i >= 0) {
+      if (address < objStart[i] + Math.max(1, objSize[i])) return i;
+      if (i == 0 || objStart[i - 1] != objStart[i]) break;
+      i--;
+    }
+    return -1;
+  }
+
+  String getObjectName(int index) {
+    return objName[index];
+  }
+
+  long getObjectStart(int index) {
+    return objStart[index];
+  }
+
+  // Last index in the sorted array whose value is <= key, or -1
+  static int floor(long[] sorted, int length, long key) {
+    int lo = 0, hi = length - 1, found = -1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (sorted[mid] <= key) {
+        found = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return found;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.File;
+import java.io.IOException;
+
+// Pure Java address -> function/file/line lookup, reading the symbols and
+// DWARF debug info straight from the ELF instead of asking gdb. The debug
+// info, the slow part, is read on the first lookup, so a decode answered
+// by the SymbolIndex never parses it.
+class ElfSymbolizer {
+  final File file;
+  final long modified;
+  final long length;
+  private final ElfFile elf;
+  // Set once by loadDebugInfo(), lines last
+  private volatile DwarfInfo info;
+  private volatile DwarfLineTable lines;
+  private StackUnwinder unwinder;
+  private MemoryMap memoryMap;
+
+  ElfSymbolizer(File file) throws IOException {
+    this.file = file;
+    this.modified = file.lastModified();
+    this.length = file.length();
+    elf = new ElfFile(file);
+  }
+
+  boolean isCurrent() {
+    return file.lastModified() == modified && file.length() == length;
+  }
+
+  ElfFile getElf() {
+    return elf;
+  }
+
+  // Read the debug info now if it hasn't been yet
+  synchronized void loadDebugInfo() {
+    if (lines != null) return;
+    long start = DecodeStats.start();
+    try {
+      info = new DwarfInfo(elf);
+      lines = new DwarfLineTable(elf, info);
+    } finally {
+      DecodeStats.end(DecodeStats.SYMBOLS, start);
+    }
+  }
+
+  DwarfInfo getInfo() {
+    if (lines == null) loadDebugInfo();
+    return info;
+  }
+
+  DwarfLineTable getLines() {
+    if (lines == null) loadDebugInfo();
+    return lines;
+  }
+
+  // Read on first use, only the ESP8266 stack dumps need it
+  synchronized StackUnwinder getUnwinder() {
+    if (unwinder == null) unwinder = new StackUnwinder(elf);
+    return unwinder;
+  }
+
+  // Made on first use, for the addresses that aren't code
+  synchronized MemoryMap getMemoryMap() {
+    if (memoryMap == null) memoryMap = new MemoryMap(elf);
+    return memoryMap;
+  }
+
+  // Where the address is, or null if neither the debug info nor the
+  // symbol table know about it
+  SourceLocation lookup(long address) {
+    String function = getInfo().findFunction(address);
+    if (function == null) {
+      int sym = elf.findFunction(address);
+      if (sym != -1) function = elf.getFunctionName(sym);
+    }
+    SourceLocation location = getLines().find(address, function);
+    if (location == null && function != null) {
+      location = new SourceLocation(address, function, null, 0);
+    }
+    return location;
+  }
+}
@@ -28,11 +28,17 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.regex.*;
+import java.util.List;
 import javax.swing.*;
 import javax.swing.filechooser.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.event.HyperlinkEvent;
+import javax.swing.event.HyperlinkListener;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
 import org.apache.commons.codec.digest.DigestUtils;
 import processing.app.Base;
 import processing.app.BaseNoGui;
@@ -43,52 +49,40 @@ import processing.app.Sketch;
 //import processing.app.SketchData;
 import processing.app.debug.TargetPlatform;
 import processing.app.helpers.FileUtils;
-import processing.app.helpers.OSUtils;
 import processing.app.helpers.ProcessUtils;
 import processing.app.tools.Tool;
 
 public class EspExceptionDecoder implements Tool, DocumentListener {
+  static final String BUILDS_PREFERENCE = "exceptiondecoder.builds";
+  private static final int REGISTRY_POOL_SIZE = 4;
+  private static final int DIAGNOSTICS_REFRESH = 1000;
+  private static final int ELF_WATCH_MILLIS = 2000;
+
+  // gdb per platform tools folder and toolchain, see findGdb()
+  private static final Map<String, File> toolchains = new HashMap<String, File>();
+  // The IDE's build folder per sketch, see findSketchElf()
+  private static final Map<String, String> buildFolders = new HashMap<String, String>();
+
   Editor editor;
   JTextPane outputArea;
-  String outputText;
   JTextArea inputArea;
+  DecodeScheduler scheduler;
   JFrame frame;
   File tool;
-  File elf;
-
-  private static String[] exceptions = {
-    "Illegal instruction",
-    "SYSCALL instruction",
-    "InstructionFetchError: Processor internal physical address or data error during instruction fetch",
-    "LoadStoreError: Processor internal physical address or data error during load or store",
-    "Level1Interrupt: Level-1 interrupt as indicated by set level-1 bits in the INTERRUPT register",
-    "Alloca: MOVSP instruction, if caller's registers are not in the register file",
-    "IntegerDivideByZero: QUOS, QUOU, REMS, or REMU divisor operand is zero",
-    "reserved",
-    "Privileged: Attempt to execute a privileged operation when CRING ? 0",
-    "LoadStoreAlignmentCause: Load or store to an unaligned address",
-    "reserved",
-    "reserved",
-    "InstrPIFDataError: PIF data error during instruction fetch",
-    "LoadStorePIFDataError: Synchronous PIF data error during LoadStore access",
-    "InstrPIFAddrError: PIF address error during instruction fetch",
-    "LoadStorePIFAddrError: Synchronous PIF address error during LoadStore access",
-    "InstTLBMiss: Error during Instruction TLB refill",
-    "InstTLBMultiHit: Multiple instruction TLB entries matched",
-    "InstFetchPrivilege: An instruction fetch referenced a virtual address at a ring level less than CRING",
-    "reserved",
-    "InstFetchProhibited: An instruction fetch referenced a page mapped with an attribute that does not permit instruction fetch",
-    "reserved",
-    "reserved",
-    "reserved",
-    "LoadStoreTLBMiss: Error during TLB refill for a load or store",
-    "LoadStoreTLBMultiHit: Multiple TLB entries matched for a load or store",
-    "LoadStorePrivilege: A load or store referenced a virtual address at a ring level less than CRING",
-    "reserved",
-    "LoadProhibited: A load referenced a page mapped with an attribute that does not permit loads",
-    "StoreProhibited: A store referenced a page mapped with an attribute that does not permit stores"
-  };
-  
+  volatile File elf;
+  volatile CrashDecoder decoder;
+  // The ELF as it was when last loaded, see checkElf()
+  long elfModified;
+  long elfLength;
+  javax.swing.Timer elfWatcher;
+  // The firmware builds listed in the "exceptiondecoder.builds" preference
+  BuildRegistry registry;
+  javax.swing.Timer diagnosticsTimer;
+  // Crashes of a log file opened in the window
+  LogFilePanel logPanel;
+  // The source shown under a frame, by the frame's line of the output
+  final Map<Element, Element> previews = new WeakHashMap<Element, Element>();
+
   public void init(Editor editor) {
     this.editor = editor;
   }
@@ -97,107 +91,32 @@ public class EspExceptionDecoder implements Tool, DocumentListener {
     return "ESP Exception Decoder";
   }
 
-  private void printLine(String line){
-    String s = prettyPrintGDBLine(line);
-    if (s != null) 
-      outputText += s +"\n";
-  }
-
-  private void printLogLine(String line, String color){
-    outputText += "<b><font color="+color+">"+line+"</font></b>\n";
-  }
+  // A decode run of the window, shown through the scheduler
+  private class UiDecode extends CrashDecoder.Decode {
+    final DecodeScheduler.Task task;
 
-  private void printError(String line){
-    printLogLine(line, "red");
-  }
-
-  // Original code from processing.app.helpers.ProcessUtils.exec()
-  // Need custom version to redirect STDERR to STDOUT for GDB processing
-  public static Process execRedirected(String[] command) throws IOException {
-    ProcessBuilder pb;
-
-    // No problems on linux and mac
-    if (!OSUtils.isWindows()) {
-      pb = new ProcessBuilder(command);
-    } else {
-      // Brutal hack to workaround windows command line parsing.
-      // http://stackoverflow.com/questions/5969724/java-runtime-exec-fails-to-escape-characters-properly
-      // http://msdn.microsoft.com/en-us/library/a1y7w461.aspx
-      // http://bugs.sun.com/view_bug.do?bug_id=6468220
-      // http://bugs.sun.com/view_bug.do?bug_id=6518827
-      String[] cmdLine = new String[command.length];
-      for (int i = 0; i < command.length; i++)
-        cmdLine[i] = command[i].replace("\"", "\\\"");
-      pb = new ProcessBuilder(cmdLine);
-      Map<String, String> env = pb.environment();
-      env.put("CYGWIN", "nodosfilewarning");
+    UiDecode(DecodeScheduler.Task task) {
+      super(task.input);
+      this.task = task;
+      task.setCancelHandler(new Runnable() {
+        public void run() {
+          cancel();
+        }
+      });
     }
-    pb.redirectErrorStream(true);
 
-    return pb.start();
-  }
+    synchronized void show() {
+      scheduler.showOutput(task, takeOutput());
+    }
 
-  private int listenOnProcess(String[] arguments){
-    try {
-      final Process p = execRedirected(arguments);
-      Thread thread = new Thread() {
-        public void run() {
-          try {
-            InputStreamReader reader = new InputStreamReader(p.getInputStream());
-            int c;
-            String line = "";
-            while ((c = reader.read()) != -1){
-              if((char)c == '\r')
-                continue;
-              if((char)c == '\n'){
-                printLine(line);
-                line = "";
-              } else {
-                line += (char)c;
-              }
-            }
-            printLine(line);
-            reader.close();
-
-            reader = new InputStreamReader(p.getErrorStream());
-            while ((c = reader.read()) != -1)
-                System.err.print((char) c);
-            reader.close();
-          } catch (Exception e){
-            printError("Run Exception: "+e.getMessage());
-          }
-        }
-      };
-      thread.start();
-      int res = p.waitFor();
-      thread.join();
-      if(res != 0){
-        printError("Decode Failed");
-      }
-      return res;
-    } catch (Exception e){
-      printError("Decode Exception: "+e.getMessage());
+    void status(String message, boolean error) {
+      scheduler.showStatus(task, message, error);
     }
-    return -1;
   }
 
-  private void sysExec(final String[] arguments){
-    Thread thread = new Thread() {
-      public void run() {
-        try {
-          if(listenOnProcess(arguments) != 0){
-            editor.statusError("Decode Failed");
-          } else {
-            editor.statusNotice("Decode Success");
-          }
-        } catch (Exception e){
-          editor.statusError("Decode Exception");
-          printError("Decode Exception: "+e.getMessage());
-        }
-        outputArea.setText(outputText);
-      }
-    };
-    thread.start();
+  // Kept for tools built against earlier versions of this class
+  public static Process execRedirected(String[] command) throws IOException {
+    return CrashDecoder.execRedirected(command);
   }
 
   private String getBuildFolderPath(Sketch s) {
@@ -242,6 +161,64 @@ public class EspExceptionDecoder implements Tool, DocumentListener {
   }
 
 
+  // The ELF of the open sketch, or null if it wasn't built. The IDE is
+  // asked for the build folder once per sketch; only when there is no ELF
+  // in it, and ask is set, is it asked again.
+  private File findSketchElf(boolean ask) {
+    Sketch sketch = editor.getSketch();
+    String key = sketch.getMainFilePath();
+    String folder;
+    synchronized (buildFolders) {
+      folder = buildFolders.get(key);
+    }
+    File found = (folder == null) ? null : findSketchElf(folder, sketch);
+    if (found == null && ask) {
+      folder = getBuildFolderPath(sketch);
+      synchronized (buildFolders) {
+        buildFolders.put(key, folder);
+      }
+      found = findSketchElf(folder, sketch);
+    }
+    return found;
+  }
+
+  private static File findSketchElf(String folder, Sketch sketch) {
+    File f = new File(folder, sketch.getName() + ".ino.elf");
+    if (f.isFile()) return f;
+    f = new File(folder, sketch.getName() + ".cpp.elf");
+    return f.isFile() ? f : null;
+  }
+
+  // Runs on the EDT when the window opens and then every ELF_WATCH_MILLIS.
+  // When the ELF is new or was rebuilt, load its symbols, open its cache
+  // and start gdb in the background, so the next decode finds them ready.
+  private void checkElf() {
+    File f = elf;
+    if (f == null) {
+      // Built since the window opened?
+      f = findSketchElf(false);
+      if (f == null) return;
+      elf = f;
+      decoder = new CrashDecoder(tool, f);
+    }
+    long modified = f.lastModified();
+    long length = f.length();
+    if (modified == 0 || (modified == elfModified && length == elfLength)) {
+      return;
+    }
+    elfModified = modified;
+    elfLength = length;
+    final CrashDecoder d = decoder;
+    if (d == null) return;
+    Thread t = new Thread("decoder-warmup " + f.getName()) {
+      public void run() {
+        d.warmUp();
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
   private long getIntPref(String name){
     String data = BaseNoGui.getBoardPreferences().get(name);
     if(data == null || data.contentEquals("")) return 0;
@@ -274,6 +251,57 @@ public class EspExceptionDecoder implements Tool, DocumentListener {
     }
   }
 
+  // Where gdb should be. The search is done once per platform and
+  // toolchain; the result is remembered for as long as the file is there.
+  private File findGdb(String tc, String tcgdb, String gdb) {
+    TargetPlatform platform = BaseNoGui.getTargetPlatform();
+    String tools = platform.getFolder() + "/tools/";
+    String key = tools + "|" + tc + "|" + gdb;
+    synchronized (toolchains) {
+      File found = toolchains.get(key);
+      if (found != null && found.isFile()) {
+        return found;
+      }
+    }
+
+    // Search for GDB
+    // First check if the GDB package is installed locally (v2.0.8+)
+    File tool = new File(tools + tcgdb + "/bin", gdb);
+    if (!tool.exists() || !tool.isFile()){
+      //System.err.println("tools/"+tcgdb+"/bin/"+gdb+" not found");
+      // Then check if the toolchain is installed locally
+      tool = new File(tools + tc + "/bin", gdb);
+      if (!tool.exists() || !tool.isFile()){
+        //System.err.println("tools/"+tc+"/bin/"+gdb+" not found");
+        // Then check if the GDB package is installed (v2.0.8+)
+        String gdbPath = PreferencesData.get("runtime.tools."+tcgdb+".path");
+        if(gdbPath == null || gdbPath.contentEquals("")){
+          //System.err.println("runtime.tools."+tcgdb+".path not found");
+          // Then check if the toolchain is installed
+          gdbPath = PreferencesData.get("runtime.tools."+tc+"-gcc.path");
+        }
+        if(gdbPath == null || gdbPath.contentEquals("")){
+          //System.err.println("runtime.tools."+tc+"-gcc.path not found");
+          // If still fails, offer the local toolchain folder
+          gdbPath = tools+tc;
+        }
+        System.err.println("gdbPath: "+gdbPath+"/bin/"+gdb);
+        tool = new File(gdbPath + "/bin", gdb);
+      } else {
+        System.err.println("gdbPath: "+tools+tc+"/bin/"+gdb);
+      }
+    } else {
+      System.err.println("gdbPath: "+tools+tcgdb+"/bin/"+gdb);
+    }
+    System.err.println();
+    if (tool.isFile()) {
+      synchronized (toolchains) {
+        toolchains.put(key, tool);
+      }
+    }
+    return tool;
+  }
+
   private void createAndUpload(){
     if(!PreferencesData.get("target_platform").contentEquals("esp8266") && !PreferencesData.get("target_platform").contentEquals("esp32") && !PreferencesData.get("target_platform").contentEquals("ESP31B")){
       System.err.println();
@@ -303,315 +331,313 @@ public class EspExceptionDecoder implements Tool, DocumentListener {
       }
     }
 
-    TargetPlatform platform = BaseNoGui.getTargetPlatform();
+    long start = DecodeStats.start();
     String tc = tarch+"-"+target+"-elf";
     String tcgdb = tarch+"-esp-elf-gdb";
-    String tools = platform.getFolder() + "/tools/";
 
     String gdb;
     if(PreferencesData.get("runtime.os").contentEquals("windows"))
       gdb = tc+"-gdb.exe";
     else
       gdb = tc+"-gdb";
+    tool = findGdb(tc, tcgdb, gdb);
 
-    // Search for GDB
-    // First check if the GDB package is installed locally (v2.0.8+)
-    tool = new File(tools + tcgdb + "/bin", gdb);
-    if (!tool.exists() || !tool.isFile()){
-      //System.err.println("tools/"+tcgdb+"/bin/"+gdb+" not found");
-      // Then check if the toolchain is installed locally
-      tool = new File(tools + tc + "/bin", gdb);
-      if (!tool.exists() || !tool.isFile()){
-        //System.err.println("tools/"+tc+"/bin/"+gdb+" not found");
-        // Then check if the GDB package is installed (v2.0.8+)
-        String gdbPath = PreferencesData.get("runtime.tools."+tcgdb+".path");
-        if(gdbPath == null || gdbPath.contentEquals("")){
-          //System.err.println("runtime.tools."+tcgdb+".path not found");
-          // Then check if the toolchain is installed
-          gdbPath = PreferencesData.get("runtime.tools."+tc+"-gcc.path");
-        }
-        if(gdbPath == null || gdbPath.contentEquals("")){
-          //System.err.println("runtime.tools."+tc+"-gcc.path not found");
-          // If still fails, offer the local toolchain folder
-          gdbPath = tools+tc;
-        }
-        System.err.println("gdbPath: "+gdbPath+"/bin/"+gdb);
-        tool = new File(gdbPath + "/bin", gdb);
+    if (!tool.exists() || !tool.isFile()) {
+      // The built-in symbolizer can still decode without gdb
+      System.err.println("WARNING: "+gdb+" not found, using the built-in symbolizer only");
+      editor.statusError("WARNING: "+gdb+" not found!");
+      tool = null;
+    }
+    DecodeStats.end(DecodeStats.TOOLCHAIN, start);
+    start = DecodeStats.start();
+
+    List<File> buildFolders = getBuildRegistryFolders();
+    if (buildFolders.isEmpty()) {
+      if (registry != null) registry.close();
+      registry = null;
+    } else if (registry == null || !registry.isFor(tool, buildFolders)) {
+      if (registry != null) registry.close();
+      registry = new BuildRegistry(buildFolders, tool, REGISTRY_POOL_SIZE);
+    }
+
+    // Without a sketch ELF every crash picks its build from the registry,
+    // if there is one
+    elf = findSketchElf(true);
+    if (elf == null && registry == null) {
+      // Time the search, not the user picking the file
+      DecodeStats.end(DecodeStats.ELF, start);
+      start = -1;
+      //lets give the user a chance to select the elf
+      final JFileChooser fc = new JFileChooser();
+      fc.addChoosableFileFilter(new ElfFilter());
+      fc.setAcceptAllFileFilterUsed(false);
+      int returnVal = fc.showDialog(editor, "Select ELF");
+      if (returnVal == JFileChooser.APPROVE_OPTION) {
+        elf = fc.getSelectedFile();
       } else {
-        System.err.println("gdbPath: "+tools+tc+"/bin/"+gdb);
+        editor.statusError("ERROR: elf was not found!");
+        System.err.println("Open command cancelled by user.");
+        return;
       }
-    } else {
-      System.err.println("gdbPath: "+tools+tcgdb+"/bin/"+gdb);
     }
-    System.err.println();
 
-    if (!tool.exists() || !tool.isFile()) {
-      System.err.println();
-      editor.statusError("ERROR: "+gdb+" not found!");
-      return;
+    if (start != -1) {
+      DecodeStats.end(DecodeStats.ELF, start);
     }
 
-    elf = new File(getBuildFolderPath(editor.getSketch()), editor.getSketch().getName() + ".ino.elf");
-    if (!elf.exists() || !elf.isFile()) {
-      elf = new File(getBuildFolderPath(editor.getSketch()), editor.getSketch().getName() + ".cpp.elf");
-      if (!elf.exists() || !elf.isFile()){
-        //lets give the user a chance to select the elf
-        final JFileChooser fc = new JFileChooser();
-        fc.addChoosableFileFilter(new ElfFilter());
-        fc.setAcceptAllFileFilterUsed(false);
-        int returnVal = fc.showDialog(editor, "Select ELF");
-        if (returnVal == JFileChooser.APPROVE_OPTION) {
-          elf = fc.getSelectedFile();
-        } else {
-          editor.statusError("ERROR: elf was not found!");
-          System.err.println("Open command cancelled by user.");
-          return;
-        }
-      }
+    // Keep what was loaded for the ELF while it stays the same
+    if (elf == null) {
+      decoder = null;
+    } else if (decoder == null || !decoder.isFor(tool, elf)) {
+      decoder = new CrashDecoder(tool, elf);
     }
+    // Load it while the window opens, and again whenever the sketch is built
+    elfModified = 0;
+    elfLength = 0;
+    checkElf();
+    if (elfWatcher != null) elfWatcher.stop();
+    elfWatcher = new javax.swing.Timer(ELF_WATCH_MILLIS, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        checkElf();
+      }
+    });
+    elfWatcher.start();
 
     JFrame.setDefaultLookAndFeelDecorated(true);
     frame = new JFrame("Exception Decoder");
     frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+    frame.addWindowListener(new WindowAdapter() {
+      public void windowClosed(WindowEvent e) {
+        scheduler.close();
+        logPanel.close();
+        diagnosticsTimer.stop();
+        elfWatcher.stop();
+      }
+    });
 
     inputArea = new JTextArea("Paste your stack trace here", 16, 60);
     inputArea.setLineWrap(true);
     inputArea.setWrapStyleWord(true);
     inputArea.getInputMap().put(KeyStroke.getKeyStroke("ENTER"), "commit");
     inputArea.getActionMap().put("commit", new CommitAction());
+    scheduler = new DecodeScheduler(inputArea, 300, new DecodeScheduler.Decoder() {
+      public void decode(DecodeScheduler.Task task) {
+        runParser(task);
+      }
+    }, new DecodeScheduler.Display() {
+      public void clearOutput() {
+        outputArea.setText("<html><body></body></html>");
+        previews.clear();
+      }
+      public void appendOutput(String html) {
+        appendHtml(html);
+      }
+      public void showStatus(String message, boolean error) {
+        if (error) editor.statusError(message);
+        else editor.statusNotice(message);
+      }
+    });
     inputArea.getDocument().addDocumentListener(this);
     frame.getContentPane().add(new JScrollPane(inputArea), BorderLayout.PAGE_START);
     
-    outputText = "";
     outputArea = new JTextPane();
     outputArea.setContentType("text/html");
     outputArea.setEditable(false);
     outputArea.setBackground(null);
     outputArea.setBorder(null);
     outputArea.putClientProperty(JEditorPane.HONOR_DISPLAY_PROPERTIES, true);
-    outputArea.setText(outputText);
+    outputArea.setText("<html><body></body></html>");
+    // Every output line is a <pre> of its own, see appendHtml()
+    ((HTMLDocument) outputArea.getDocument()).getStyleSheet().addRule("pre { margin-top: 0; margin-bottom: 0 }");
+    // A click on the file and line of a frame shows the source around it
+    // under the frame, another click folds it away
+    outputArea.addHyperlinkListener(new HyperlinkListener() {
+      public void hyperlinkUpdate(HyperlinkEvent e) {
+        if (e.getEventType() == HyperlinkEvent.EventType.ACTIVATED) {
+          toggleSource(e.getSourceElement(), e.getDescription());
+        }
+      }
+    });
     
     JScrollPane outputScrollPane = new JScrollPane(outputArea);
     outputScrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
     outputScrollPane.setPreferredSize(new Dimension(640, 200));
     outputScrollPane.setMinimumSize(new Dimension(10, 10));
     frame.getContentPane().add(outputScrollPane, BorderLayout.CENTER);
+    // A log file shows its crashes on the side, the one selected goes into
+    // the input like a paste of just that crash
+    logPanel = new LogFilePanel(new LogFilePanel.Listener() {
+      public void crashSelected(String text) {
+        inputArea.setText(text);
+        inputArea.setCaretPosition(0);
+        scheduler.decodeNow();
+      }
+    });
+    frame.getContentPane().add(logPanel, BorderLayout.LINE_START);
+    frame.getContentPane().add(createDiagnosticsPanel(logPanel.createOpenButton()), BorderLayout.PAGE_END);
     
     frame.pack();
     frame.setVisible(true);
   }
 
-  private String prettyPrintGDBLine(String line) {
-    String address = "", method = "", file = "", fileline = "", html = "";
-
-    if (!line.startsWith("0x")) {
-      return null;
-    }
-  
-    address = line.substring(0, line.indexOf(' '));
-    line = line.substring(line.indexOf(' ') + 1);
-
-    int atIndex = line.indexOf("is in ");
-    if(atIndex == -1) {
-      return null;
-    }
-    try {
-        method = line.substring(atIndex + 6, line.lastIndexOf('(') - 1);
-        fileline = line.substring(line.lastIndexOf('(') + 1, line.lastIndexOf(')'));
-        file = fileline.substring(0, fileline.lastIndexOf(':'));
-        line = fileline.substring(fileline.lastIndexOf(':') + 1);
-        if(file.length() > 0){
-          int lastfs = file.lastIndexOf('/');
-          int lastbs = file.lastIndexOf('\\');
-          int slash = (lastfs > lastbs)?lastfs:lastbs;
-          if(slash != -1){
-            String filename = file.substring(slash+1);
-            file = file.substring(0,slash+1) + "<b>" + filename + "</b>";
-          }
-        }
-        html = "<font color=green>" + address + ": </font>" +
-               "<b><font color=blue>" + method + "</font></b> at " +
-               file + " line <b>" + line + "</b>";
-    } catch (Exception e) {
-        // Something weird in the GDB output format, report what we can
-        html = "<font color=green>" + address + ": </font> " + line;
-    }
-
-    return html;
-  }
 
   public void run() {
     createAndUpload();
   }
 
-  private void parseException(){
-    String content = inputArea.getText();
-    Pattern p = Pattern.compile("Exception \\(([0-9]*)\\):");
-    Matcher m = p.matcher(content);
-    if(m.find()){
-      int exception = Integer.parseInt(m.group(1));
-      if(exception < 0 || exception > 29){
-        return;
+  // The stage timings and counters of DecodeStats, folded away until asked
+  // for and refreshed while open, next to the other buttons of the window
+  private JPanel createDiagnosticsPanel(JComponent... others) {
+    final JPanel panel = new JPanel(new BorderLayout());
+    final JTextArea text = new JTextArea(DecodeStats.STAGES.length + DecodeStats.COUNTERS.length + 2, 60);
+    text.setEditable(false);
+    text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, text.getFont().getSize()));
+    final JScrollPane scroll = new JScrollPane(text);
+    scroll.setVisible(false);
+    final JToggleButton toggle = new JToggleButton("Diagnostics");
+    diagnosticsTimer = new javax.swing.Timer(DIAGNOSTICS_REFRESH, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        text.setText(DecodeStats.get().toText());
       }
-      outputText += "<b><font color=red>Exception "+exception+": "+exceptions[exception]+"</font></b>\n";
-    }
+    });
+    toggle.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        boolean open = toggle.isSelected();
+        scroll.setVisible(open);
+        if (open) {
+          text.setText(DecodeStats.get().toText());
+          diagnosticsTimer.start();
+        } else {
+          diagnosticsTimer.stop();
+        }
+        panel.revalidate();
+      }
+    });
+    JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEADING));
+    buttons.add(toggle);
+    for (JComponent c : others) buttons.add(c);
+    panel.add(buttons, BorderLayout.PAGE_START);
+    panel.add(scroll, BorderLayout.CENTER);
+    return panel;
   }
 
-  // Strip out just the STACK lines or BACKTRACE line, and generate the reference log
-  private void parseStackOrBacktrace(String regexp, boolean multiLine, String stripAfter) {
-    String content = inputArea.getText();
-
-    Pattern strip;
-    if (multiLine) strip = Pattern.compile(regexp, Pattern.DOTALL);
-    else strip = Pattern.compile(regexp);
-    Matcher stripMatch = strip.matcher(content);
-    if (!stripMatch.find()) {
-      return; // Didn't find it in the text box.
+  // Add lines of html at the end of the output, only they get parsed and
+  // laid out, not the whole document. Each line goes into a <pre> of its
+  // own, as the parser doesn't know it's inside one when given a fragment.
+  private void appendHtml(String html) {
+    HTMLDocument doc = (HTMLDocument) outputArea.getDocument();
+    Element body = doc.getElement(doc.getDefaultRootElement(), StyleConstants.NameAttribute, HTML.Tag.BODY);
+    long renderStart = DecodeStats.start();
+    try {
+      doc.insertBeforeEnd(body, toPreLines(html));
+    } catch (Exception e) {
+      System.err.println("Output Exception: "+e.getMessage());
     }
+    DecodeStats.end(DecodeStats.RENDER, renderStart);
+  }
 
-    // Strip out just the interesting bits to make RexExp sane
-    content = content.substring(stripMatch.start(), stripMatch.end());
-
-    if (stripAfter != null) {
-      Pattern after = Pattern.compile(stripAfter);
-      Matcher afterMatch = after.matcher(content);
-      if (afterMatch.find()) {
-          content = content.substring(0, afterMatch.start());
-      }
+  private static String toPreLines(String html) {
+    StringBuilder sb = new StringBuilder(html.length() + 64);
+    int start = 0;
+    int end;
+    while ((end = html.indexOf('\n', start)) != -1) {
+      sb.append("<pre>").append(end > start ? html.substring(start, end) : " ").append("</pre>");
+      start = end + 1;
     }
+    return sb.toString();
+  }
 
-    // Anything looking like an instruction address, dump!
-    Pattern p = Pattern.compile("4[0-3](\\d|[a-f]|[A-F]){6}\\b");
-    int count = 0;
-    Matcher m = p.matcher(content);
-    while(m.find()) {
-      count ++;
-    }
-    if(count == 0){
+  // Show or fold the source under the output line of the link. The file is
+  // only read the first time, see SourceCache.
+  void toggleSource(Element link, String href) {
+    Element line = link;
+    while (line != null && !"pre".equals(line.getName())) line = line.getParentElement();
+    if (line == null || href == null) return;
+    HTMLDocument doc = (HTMLDocument) outputArea.getDocument();
+    Element preview = previews.remove(line);
+    if (preview != null) {
+      doc.removeElement(preview);
       return;
     }
-    String command[] = new String[7 + count*2];
-    int i = 0;
-    command[i++] = tool.getAbsolutePath();
-    command[i++] = "--batch";
-    command[i++] = elf.getAbsolutePath();
-    command[i++] = "-ex";
-    command[i++] = "set listsize 1";
-    m = p.matcher(content);
-    while(m.find()) {
-      command[i++] = "-ex";
-      command[i++] = "l *0x"+content.substring(m.start(), m.end());
-    }
-    command[i++] = "-ex";
-    command[i++] = "q";
-    System.out.println("\""+String.join("\" \"", command)+"\"");
-    outputText += "\n<i>Decoding stack results</i>\n";
-    sysExec(command);
-  }
-
-  // Heavyweight call GDB, run list on address, and return result if it succeeded
-  private String decodeFunctionAtAddress( String addr ) {
-    String command[] = new String[9];
-    command[0] = tool.getAbsolutePath();
-    command[1] = "--batch";
-    command[2] = elf.getAbsolutePath();
-    command[3] = "-ex";
-    command[4] = "set listsize 1";
-    command[5] = "-ex";
-    command[6] = "l *0x" + addr;
-    command[7] = "-ex";
-    command[8] = "q";
-    System.out.println("\""+String.join("\" \"", command)+"\"");
-
+    String html = CrashDecoder.sourcePreview(href);
+    if (html == null) return;
+    Element parent = line.getParentElement();
+    int index = parent.getElementIndex(line.getStartOffset());
     try {
-      final Process proc = execRedirected(command);
-      InputStreamReader reader = new InputStreamReader(proc.getInputStream());
-      int c;
-      String line = "";
-      while ((c = reader.read()) != -1){
-        if((char)c == '\r')
-          continue;
-        if((char)c == '\n' && line != ""){
-          reader.close();
-          return prettyPrintGDBLine(line);
-        } else {
-         line += (char)c;
-        }
-      }
-      reader.close();
+      doc.insertAfterEnd(line, "<div>" + toPreLines(html) + "</div>");
     } catch (Exception e) {
-      // Something went wrong
-      System.err.println("Function Decode Exception: "+e.getMessage());
+      System.err.println("Output Exception: "+e.getMessage());
+      return;
     }
-    return null;
+    previews.put(line, parent.getElement(index + 1));
   }
 
-  // Scan and report the last failed memory allocation attempt, if present on the ESP8266
-  private void parseAlloc() {
-    String content = inputArea.getText();
-    Pattern p = Pattern.compile("last failed alloc call: 4[0-3](\\d|[a-f]|[A-F]){6}\\((\\d)+\\)");
-    Matcher m = p.matcher(content);
-    if (m.find()) {
-      String fs = content.substring(m.start(), m.end());
-      Pattern p2 = Pattern.compile("4[0-3](\\d|[a-f]|[A-F]){6}\\b");
-      Matcher m2 = p2.matcher(fs);
-      if (m2.find()) {
-        String addr = fs.substring(m2.start(), m2.end());
-        Pattern p3 = Pattern.compile("\\((\\d)+\\)");
-        Matcher m3 = p3.matcher(fs);
-        if (m3.find()) {
-          String size = fs.substring(m3.start()+1, m3.end()-1);
-          String line = decodeFunctionAtAddress(addr);
-          if (line != null) {
-            outputText += "Memory allocation of " + size + " bytes failed at " + line + "\n";
-          }
-        }
+  // Runs on the scheduler's worker thread
+  private void runParser(DecodeScheduler.Task task){
+    UiDecode d = new UiDecode(task);
+    CrashDecoder c = selectDecoder(d);
+    if (c != null) {
+      try {
+        c.decode(d);
+      } finally {
+        c.release();
       }
     }
   }
 
-  // Filter out a register output given a regex (ESP8266/ESP32 differ in format)
-  private void parseRegister(String regName, String prettyName) {
-    String content = inputArea.getText();
-    Pattern p = Pattern.compile(regName + "(\\d|[a-f]|[A-F]){8}\\b");
-    Matcher m = p.matcher(content);
-    if (m.find()) {
-      String fs = content.substring(m.start(), m.end());
-      Pattern p2 = Pattern.compile("(\\d|[a-f]|[A-F]){8}\\b");
-      Matcher m2 = p2.matcher(fs);
-      if (m2.find()) {
-        String addr = fs.substring(m2.start(), m2.end());
-        String line = decodeFunctionAtAddress(addr);
-        if (line != null) {
-          outputText += prettyName + ": " + line + "\n";
-        } else {
-          outputText += prettyName + ": <font color=\"green\">0x" + addr + "</font>\n";
-        }
+  // The sketch's ELF, unless the crash's "ELF file SHA256:" line names
+  // another build of the registry. Without a sketch ELF the registry picks
+  // the build from the crash's addresses too. The decoder is acquired,
+  // release() it after the decode.
+  private CrashDecoder selectDecoder(UiDecode d) {
+    BuildRegistry r = registry;
+    CrashDecoder sketch = decoder;
+    if (r == null) {
+      return acquire(sketch);
+    }
+    long start = DecodeStats.start();
+    try {
+      r.refresh();
+    } catch (IOException e) {
+      System.err.println("Registry Exception: "+e.getMessage());
+    }
+    BuildRegistry.Build b = (sketch == null) ? r.match(d.content) : r.matchElfSha(d.content);
+    DecodeStats.end(DecodeStats.ELF, start);
+    if (b == null) {
+      if (sketch == null) {
+        d.printError("No firmware build matches this crash");
+        d.show();
       }
+      return acquire(sketch);
     }
+    if (sketch != null && b.elf.equals(sketch.elf.getAbsoluteFile())) {
+      return acquire(sketch);
+    }
+    d.statusNotice("Decoding with " + b.getName());
+    return r.getDecoder(b);
+  }
+
+  private static CrashDecoder acquire(CrashDecoder c) {
+    if (c != null) c.acquire();
+    return c;
   }
 
-  private void runParser(){
-    outputText = "<html><pre>\n";
-    // Main error cause
-    parseException();
-    // ESP8266 register format
-    parseRegister("epc1=0x", "<font color=\"red\">PC</font>");
-    parseRegister("excvaddr=0x", "<font color=\"red\">EXCVADDR</font>");
-    // ESP32 register format
-    parseRegister("PC\\s*:\\s*(0x)?", "<font color=\"red\">PC</font>");
-    parseRegister("EXCVADDR\\s*:\\s*(0x)?", "<font color=\"red\">EXCVADDR</font>");
-    // Last memory allocation failure
-    parseAlloc();
-    // The stack on ESP8266, multiline
-    parseStackOrBacktrace(">>>stack>>>(.)*", true, "<<<stack<<<");
-    // The backtrace on ESP32, one-line only
-    parseStackOrBacktrace("Backtrace:(.)*", false, null);
+  // Folders of firmware ELFs from the "exceptiondecoder.builds" preference,
+  // separated like a path
+  private static List<File> getBuildRegistryFolders() {
+    List<File> folders = new ArrayList<File>();
+    String pref = PreferencesData.get(BUILDS_PREFERENCE);
+    if (pref != null) {
+      for (String f : pref.split(File.pathSeparator)) {
+        if (f.trim().length() > 0) folders.add(new File(f.trim()));
+      }
+    }
+    return folders;
   }
 
   private class CommitAction extends AbstractAction {
     public void actionPerformed(ActionEvent ev) {
-      runParser();
+      scheduler.decodeNow();
     }
   }
 
@@ -622,6 +648,6 @@ public class EspExceptionDecoder implements Tool, DocumentListener {
   }
 
   public void insertUpdate(DocumentEvent ev) {
-    runParser();
+    scheduler.request();
   }
 }
@@ -0,0 +1,571 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+// A long running GDB process talking the machine interface (MI2).
+// The sessions of an ELF are kept and reused for every address lookup,
+// so the symbols are loaded only once instead of once per query. Single
+// lookups and small batches go to the first one; big batches are dealt
+// out to more, up to one per core and as many as the memory allows.
+class GdbSession {
+  // How long a query may wait for its answer, and a session may stay
+  // silent while it has queries, before it is taken as hung
+  private static final long QUERY_TIMEOUT = 30000;
+  // How often waitAll() looks whether a session hung
+  private static final long WAIT_STEP = 1000;
+  private static final int READ_BUFFER = 64 * 1024;
+  // A batch gets another worker for every this many addresses
+  static final int SHARD_SIZE = 32;
+  // What a gdb is taken to need: this much, plus the ELF's size times the factor
+  private static final long WORKER_MEMORY = 64L << 20;
+  private static final int WORKER_MEMORY_FACTOR = 4;
+  // The workers of one ELF take at most this share of the physical memory
+  private static final int MEMORY_SHARE = 4;
+  private static final Map<String, List<GdbSession>> sessions = new HashMap<String, List<GdbSession>>();
+  private static volatile int maxWorkers = Runtime.getRuntime().availableProcessors();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        closeAll();
+      }
+    });
+  }
+
+  // Called for every finished query, in the order gdb answers them
+  interface Listener {
+    void queryDone(Query query);
+  }
+
+  static class Query {
+    final int token;
+    final int index;
+    final String address;
+    // When it was queued
+    final long sent = System.currentTimeMillis();
+    private GdbSession session;
+    private final StringBuilder output = new StringBuilder();
+    private boolean done;
+    private boolean finished;
+    private boolean error;
+    private boolean answered;
+    private Listener listener;
+
+    Query(int token, int index, String address) {
+      this.token = token;
+      this.index = index;
+      this.address = address;
+    }
+
+    synchronized boolean isDone() {
+      return done;
+    }
+
+    synchronized boolean isError() {
+      return error;
+    }
+
+    // True if gdb itself replied, as opposed to the session going away
+    synchronized boolean isAnswered() {
+      return answered;
+    }
+
+    // The console output of the command, split into lines
+    synchronized String[] getLines() {
+      if (output.length() == 0) return new String[0];
+      return output.toString().split("\r?\n");
+    }
+
+    synchronized void waitDone(long timeout) throws InterruptedException {
+      long end = System.currentTimeMillis() + timeout;
+      while (!done) {
+        long left = end - System.currentTimeMillis();
+        if (left <= 0) return;
+        wait(left);
+      }
+    }
+
+    // Add the console output in the MI c-string starting at start
+    private synchronized void append(CharSequence record, int start) {
+      unescape(record, start, output);
+    }
+
+    // Fail it for whoever waits, without an answer. It stays queued, so
+    // gdb's answer still finds it and is dropped.
+    void abandon() {
+      complete(true, false);
+    }
+
+    private void complete(boolean failed, boolean reply) {
+      Listener l;
+      synchronized (this) {
+        if (finished) return;
+        finished = true;
+        error = failed;
+        answered = reply;
+        l = listener;
+      }
+      // The listener has the result before anyone waiting for it wakes up,
+      // and whatever it does, they do wake up
+      try {
+        if (l != null) l.queryDone(this);
+      } catch (RuntimeException e) {
+        System.err.println("GDB Listener Exception: "+e);
+      } finally {
+        synchronized (this) {
+          done = true;
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  private final File tool;
+  private final File elf;
+  private final long elfModified;
+  private final long elfLength;
+  private final Process process;
+  private final Writer writer;
+  private final LinkedHashMap<Integer, Query> pending = new LinkedHashMap<Integer, Query>();
+  private int nextToken = 1;
+  private volatile boolean alive = true;
+  // The last time gdb printed anything
+  private volatile long lastOutput = System.currentTimeMillis();
+
+  private GdbSession(File tool, File elf) throws IOException {
+    this.tool = tool;
+    this.elf = elf;
+    this.elfModified = elf.lastModified();
+    this.elfLength = elf.length();
+
+    String command[] = new String[5];
+    command[0] = tool.getAbsolutePath();
+    command[1] = "--interpreter=mi2";
+    command[2] = "-nx";
+    command[3] = "-q";
+    command[4] = elf.getAbsolutePath();
+    System.err.println("\""+String.join("\" \"", command)+"\"");
+
+    long start = DecodeStats.start();
+    process = CrashDecoder.execRedirected(command);
+    DecodeStats.end(DecodeStats.GDB_START, start);
+    DecodeStats.count(DecodeStats.GDB_PROCESSES);
+    final long loadStart = DecodeStats.start();
+    writer = new OutputStreamWriter(process.getOutputStream());
+
+    Thread thread = new Thread("gdb-mi " + elf.getName()) {
+      public void run() {
+        readOutput();
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+
+    // Anything gdb prints while loading the symbols is collected by this
+    // first query, so it does not end up in the output of a real lookup
+    Query setup = new Query(nextToken++, 0, null);
+    setup.listener = new Listener() {
+      public void queryDone(Query q) {
+        if (q.isAnswered()) DecodeStats.end(DecodeStats.GDB_LOAD, loadStart);
+      }
+    };
+    synchronized (pending) {
+      pending.put(setup.token, setup);
+    }
+    send(Arrays.asList("-gdb-set confirm off", "-gdb-set width 0", setup.token + "-gdb-set listsize 1"));
+  }
+
+  // Return the running session for this ELF, starting a new one if there is
+  // none yet, the previous one died or the ELF changed since it was loaded
+  static GdbSession get(File tool, File elf) throws IOException {
+    return getWorkers(tool, elf, 1).get(0);
+  }
+
+  // The first count sessions of this ELF, or as many as it may have,
+  // starting the missing ones. They load their symbols at the same time.
+  static List<GdbSession> getWorkers(File tool, File elf, int count) throws IOException {
+    String key = tool.getAbsolutePath() + "|" + elf.getAbsolutePath();
+    count = Math.max(1, Math.min(count, getMaxWorkers(elf)));
+    synchronized (sessions) {
+      List<GdbSession> workers = sessions.get(key);
+      if (workers == null) {
+        workers = new ArrayList<GdbSession>();
+        sessions.put(key, workers);
+      }
+      for (int i = 0; i < count; i++) {
+        GdbSession s = i < workers.size() ? workers.get(i) : null;
+        if (s != null && s.isCurrent()) {
+          continue;
+        }
+        if (s != null) {
+          s.close();
+        }
+        s = new GdbSession(tool, elf);
+        if (i < workers.size()) workers.set(i, s);
+        else workers.add(s);
+      }
+      return new ArrayList<GdbSession>(workers.subList(0, count));
+    }
+  }
+
+  // Stop the sessions of this ELF, if any are running
+  static void close(File tool, File elf) {
+    String key = tool.getAbsolutePath() + "|" + elf.getAbsolutePath();
+    synchronized (sessions) {
+      List<GdbSession> workers = sessions.remove(key);
+      if (workers != null) {
+        for (GdbSession s : workers) {
+          s.close();
+        }
+      }
+    }
+  }
+
+  static void closeAll() {
+    synchronized (sessions) {
+      for (List<GdbSession> workers : sessions.values()) {
+        for (GdbSession s : workers) {
+          s.close();
+        }
+      }
+      sessions.clear();
+    }
+  }
+
+  // At most this many sessions per ELF, the cores by default
+  static void setMaxWorkers(int workers) {
+    maxWorkers = Math.max(1, workers);
+  }
+
+  // How many sessions the ELF may have: one per core, as long as they fit
+  // in their share of the memory
+  static int getMaxWorkers(File elf) {
+    int workers = maxWorkers;
+    long memory = getPhysicalMemory();
+    if (memory > 0) {
+      long each = WORKER_MEMORY + elf.length() * WORKER_MEMORY_FACTOR;
+      workers = (int) Math.min(workers, memory / MEMORY_SHARE / each);
+    }
+    return Math.max(1, workers);
+  }
+
+  // Sessions worth using for a batch of addresses
+  static int workersFor(int addresses) {
+    return (addresses + SHARD_SIZE - 1) / SHARD_SIZE;
+  }
+
+  private static long getPhysicalMemory() {
+    java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+    }
+    return 0;
+  }
+
+  boolean isCurrent() {
+    return alive && elf.lastModified() == elfModified && elf.length() == elfLength;
+  }
+
+  // Run "list *0x<addr>" for a single address and wait for the answer
+  Query list(String address) {
+    Query q = listAll(Collections.singletonList(address), null).get(0);
+    try {
+      waitAll(Collections.singletonList(q));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return q;
+  }
+
+  // Queue "list *0x<addr>" for every address at once. gdb works through them
+  // one after another and the listener is told about each as it completes.
+  List<Query> listAll(List<String> addresses, Listener listener) {
+    int[] indexes = new int[addresses.size()];
+    for (int i = 0; i < indexes.length; i++) indexes[i] = i;
+    return queue(addresses, indexes, listener);
+  }
+
+  // Deal the addresses out to the workers in turn, so each works on every
+  // n-th one and the first frames are answered first. The queries come
+  // back in the order of the addresses, Query.index is the position.
+  static List<Query> listAll(List<GdbSession> workers, List<String> addresses, Listener listener) {
+    int n = Math.max(1, Math.min(workers.size(), addresses.size()));
+    Query[] all = new Query[addresses.size()];
+    for (int w = 0; w < n; w++) {
+      List<String> shard = new ArrayList<String>();
+      int[] indexes = new int[(addresses.size() - w + n - 1) / n];
+      for (int i = w; i < addresses.size(); i += n) {
+        indexes[shard.size()] = i;
+        shard.add(addresses.get(i));
+      }
+      for (Query q : workers.get(w).queue(shard, indexes, listener)) {
+        all[q.index] = q;
+      }
+    }
+    return Arrays.asList(all);
+  }
+
+  private List<Query> queue(List<String> addresses, int[] indexes, Listener listener) {
+    List<Query> queries = new ArrayList<Query>(addresses.size());
+    List<String> commands = new ArrayList<String>(addresses.size());
+    boolean sent;
+    // Several decodes may share the session, keep gdb's order of the
+    // commands the same as the order of the pending queries
+    synchronized (writer) {
+      synchronized (pending) {
+        for (int i = 0; i < addresses.size(); i++) {
+          Query q = new Query(nextToken++, indexes[i], addresses.get(i));
+          q.session = this;
+          q.listener = listener;
+          queries.add(q);
+          if (alive) {
+            pending.put(q.token, q);
+            commands.add(listCommand(q.token, addresses.get(i)));
+          }
+        }
+      }
+      sent = alive && send(commands);
+    }
+    DecodeStats.count(DecodeStats.GDB_QUERIES, commands.size());
+    if (!sent) {
+      for (Query q : queries) {
+        fail(q);
+      }
+    }
+    return queries;
+  }
+
+  // The MI command asking where the address is, answered with the token
+  static String listCommand(int token, String address) {
+    return token + "-interpreter-exec console \"list *0x" + address + "\"";
+  }
+
+  // Wait until every query has been answered or timed out. A session that
+  // printed nothing for the timeout while it had queries is taken as hung
+  // and killed, which fails its queries; the next lookup starts a fresh
+  // one. A session that is only busy, with the queries of other decodes
+  // sharing it say, is left alone: just the queries waited for here fail
+  // once they are queued for longer than the timeout.
+  static void waitAll(List<Query> queries) throws InterruptedException {
+    for (Query q : queries) {
+      while (!q.isDone()) {
+        long now = System.currentTimeMillis();
+        GdbSession s = q.session;
+        if (s != null && s.isHung(now)) {
+          System.err.println("GDB Timeout: " + s.elf.getName());
+          s.close();
+        } else if (now - q.sent >= QUERY_TIMEOUT) {
+          q.abandon();
+        } else {
+          q.waitDone(Math.min(WAIT_STEP, QUERY_TIMEOUT - (now - q.sent)));
+        }
+      }
+    }
+  }
+
+  // Silent for the timeout since its oldest query was sent, or since it
+  // last printed something if that was later
+  private boolean isHung(long now) {
+    if (!alive || now - lastOutput < QUERY_TIMEOUT) return false;
+    Query oldest = head();
+    return oldest != null && now - oldest.sent >= QUERY_TIMEOUT;
+  }
+
+  void close() {
+    if (!alive) return;
+    send(Collections.singletonList("-gdb-exit"));
+    alive = false;
+    process.destroy();
+    failPending();
+  }
+
+  private boolean send(List<String> commands) {
+    try {
+      synchronized (writer) {
+        for (String c : commands) {
+          writer.write(c);
+          writer.write('\n');
+        }
+        writer.flush();
+      }
+      return true;
+    } catch (IOException e) {
+      System.err.println("GDB Write Exception: "+e.getMessage());
+      alive = false;
+      return false;
+    }
+  }
+
+  // Read gdb's output in large blocks and cut it into records in place.
+  // The bytes of a line and the record built from them are reused, so a
+  // record costs no allocation unless it has to be kept.
+  private void readOutput() {
+    ReadableByteChannel in = Channels.newChannel(process.getInputStream());
+    ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER);
+    byte[] line = new byte[256];
+    int length = 0;
+    boolean ascii = true;
+    StringBuilder record = new StringBuilder(256);
+    Charset charset = Charset.defaultCharset();
+    try {
+      while (in.read(buffer) != -1) {
+        lastOutput = System.currentTimeMillis();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          byte b = buffer.get();
+          if (b != '\n') {
+            if (length == line.length) line = Arrays.copyOf(line, length * 2);
+            line[length++] = b;
+            ascii &= b >= 0;
+            continue;
+          }
+          if (length > 0 && line[length - 1] == '\r') length--;
+          record.setLength(0);
+          if (ascii) {
+            for (int i = 0; i < length; i++) record.append((char) line[i]);
+          } else {
+            record.append(new String(line, 0, length, charset));
+          }
+          try {
+            handleRecord(record);
+          } catch (RuntimeException e) {
+            // One bad record must not stop the reading, or the session
+            // would take queries nobody answers
+            System.err.println("GDB Output Exception: "+e);
+          }
+          length = 0;
+          ascii = true;
+        }
+        buffer.clear();
+      }
+      in.close();
+    } catch (IOException e) {
+      if (alive) System.err.println("GDB Read Exception: "+e.getMessage());
+    }
+    alive = false;
+    failPending();
+  }
+
+  private void handleRecord(CharSequence line) {
+    if (line.length() == 0 || line.charAt(0) == '(') {
+      return; // the "(gdb)" prompt
+    }
+    if (line.charAt(0) == '~') {
+      // Console stream output belongs to the command gdb is running now
+      Query q = head();
+      if (q != null) {
+        q.append(line, 1);
+      }
+      return;
+    }
+    int i = 0;
+    int token = 0;
+    while (i < line.length() && i < 9 && Character.isDigit(line.charAt(i))) {
+      token = token * 10 + (line.charAt(i) - '0');
+      i++;
+    }
+    if (i == 0 || i >= line.length() || line.charAt(i) != '^') {
+      return; // async, log or target output
+    }
+    Query q;
+    synchronized (pending) {
+      q = pending.remove(token);
+    }
+    if (q != null) {
+      q.complete(startsWith(line, i, "^error"), true);
+    }
+  }
+
+  private static boolean startsWith(CharSequence s, int at, String prefix) {
+    if (at + prefix.length() > s.length()) return false;
+    for (int k = 0; k < prefix.length(); k++) {
+      if (s.charAt(at + k) != prefix.charAt(k)) return false;
+    }
+    return true;
+  }
+
+  private Query head() {
+    synchronized (pending) {
+      Iterator<Query> it = pending.values().iterator();
+      return it.hasNext() ? it.next() : null;
+    }
+  }
+
+  private void fail(Query q) {
+    synchronized (pending) {
+      pending.remove(q.token);
+    }
+    q.complete(true, false);
+  }
+
+  private void failPending() {
+    List<Query> left;
+    synchronized (pending) {
+      left = new ArrayList<Query>(pending.values());
+      pending.clear();
+    }
+    for (Query q : left) {
+      q.complete(true, false);
+    }
+  }
+
+  // Decode an MI c-string starting at the opening quote into sb
+  static void unescape(CharSequence s, int start, StringBuilder sb) {
+    if (start >= s.length() || s.charAt(start) != '"') {
+      sb.append(s, Math.min(start, s.length()), s.length());
+      return;
+    }
+    for (int i = start + 1; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"') break;
+      if (c != '\\' || i + 1 >= s.length()) {
+        sb.append(c);
+        continue;
+      }
+      c = s.charAt(++i);
+      switch (c) {
+        case 'n': sb.append('\n'); break;
+        case 't': sb.append('\t'); break;
+        case 'r': sb.append('\r'); break;
+        case 'e': sb.append('\033'); break;
+        default:
+          if (c >= '0' && c <= '7') {
+            int v = 0, n = 0;
+            while (n < 3 && i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '7') {
+              v = v * 8 + (s.charAt(i++) - '0');
+              n++;
+            }
+            i--;
+            sb.append((char) v);
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.List;
+import javax.swing.*;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+
+// "Open log file..." of the window: a serial capture too big to paste is
+// scanned by a LogScanner in the background, with progress and a way to
+// cancel, and its crashes are listed. Only the one selected is read from
+// the file and handed on to be decoded.
+@SuppressWarnings("serial")
+class LogFilePanel extends JPanel {
+  private static final int PROGRESS_REFRESH = 100;
+  private static final int LIST_WIDTH = 360;
+
+  interface Listener {
+    // On the EDT, with the text of the crash selected
+    void crashSelected(String text);
+  }
+
+  private final Listener listener;
+  private final JLabel label = new JLabel();
+  private final JProgressBar progress = new JProgressBar(0, 1000);
+  private final JButton cancel = new JButton("Cancel");
+  private final CrashListModel model = new CrashListModel();
+  private final JList<LogScanner.Crash> list = new JList<LogScanner.Crash>(model);
+  private final javax.swing.Timer progressTimer;
+  // The file being scanned or shown, only used on the EDT
+  private LogScanner scanner;
+
+  // The crashes found, their titles are read as they get shown
+  @SuppressWarnings("serial")
+  private class CrashListModel extends AbstractListModel<LogScanner.Crash> {
+    private List<LogScanner.Crash> crashes = Collections.emptyList();
+
+    void set(List<LogScanner.Crash> crashes) {
+      int old = this.crashes.size();
+      this.crashes = crashes;
+      if (old > 0) fireIntervalRemoved(this, 0, old - 1);
+      if (!crashes.isEmpty()) fireIntervalAdded(this, 0, crashes.size() - 1);
+    }
+
+    public int getSize() {
+      return crashes.size();
+    }
+
+    public LogScanner.Crash getElementAt(int index) {
+      return crashes.get(index);
+    }
+  }
+
+  LogFilePanel(Listener listener) {
+    super(new BorderLayout());
+    this.listener = listener;
+    progress.setStringPainted(true);
+    cancel.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        if (scanner != null) scanner.cancel();
+      }
+    });
+    progressTimer = new javax.swing.Timer(PROGRESS_REFRESH, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        LogScanner s = scanner;
+        if (s != null && s.getSize() > 0) progress.setValue((int) (s.getScanned() * 1000 / s.getSize()));
+      }
+    });
+
+    // Fixed cell sizes, so the list doesn't render every crash to lay out
+    list.setFixedCellWidth(LIST_WIDTH);
+    list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() + 2);
+    list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+    list.setCellRenderer(new DefaultListCellRenderer() {
+      public Component getListCellRendererComponent(JList<?> l, Object value, int index, boolean selected, boolean focus) {
+        LogScanner.Crash c = (LogScanner.Crash) value;
+        String text = (scanner == null) ? "" : "line " + c.line + ": " + scanner.getTitle(c);
+        return super.getListCellRendererComponent(l, text, index, selected, focus);
+      }
+    });
+    list.addListSelectionListener(new ListSelectionListener() {
+      public void valueChanged(ListSelectionEvent e) {
+        LogScanner.Crash c = list.getSelectedValue();
+        if (e.getValueIsAdjusting() || c == null || scanner == null) return;
+        LogFilePanel.this.listener.crashSelected(scanner.getText(c));
+      }
+    });
+
+    JPanel status = new JPanel(new BorderLayout());
+    status.add(label, BorderLayout.PAGE_START);
+    status.add(progress, BorderLayout.CENTER);
+    status.add(cancel, BorderLayout.LINE_END);
+    add(status, BorderLayout.PAGE_START);
+    add(new JScrollPane(list), BorderLayout.CENTER);
+    setVisible(false);
+  }
+
+  JButton createOpenButton() {
+    JButton open = new JButton("Open log file...");
+    open.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        JFileChooser fc = new JFileChooser();
+        if (fc.showOpenDialog(SwingUtilities.getWindowAncestor(LogFilePanel.this)) == JFileChooser.APPROVE_OPTION) {
+          open(fc.getSelectedFile());
+        }
+      }
+    });
+    return open;
+  }
+
+  void open(File file) {
+    close();
+    final LogScanner s;
+    try {
+      s = new LogScanner(file);
+    } catch (IOException e) {
+      label.setText("Can't open " + file.getName() + ": " + e.getMessage());
+      setVisible(true);
+      revalidate();
+      return;
+    }
+    scanner = s;
+    label.setText("Scanning " + file.getName() + " (" + (s.getSize() >> 20) + " MB)");
+    progress.setValue(0);
+    progress.setVisible(true);
+    cancel.setVisible(true);
+    setVisible(true);
+    revalidate();
+    progressTimer.start();
+    Thread t = new Thread("log-scan " + file.getName()) {
+      public void run() {
+        List<LogScanner.Crash> found = null;
+        String error = null;
+        try {
+          found = s.scan();
+        } catch (IOException e) {
+          error = e.getMessage();
+        }
+        final List<LogScanner.Crash> crashes = found;
+        final String message = error;
+        SwingUtilities.invokeLater(new Runnable() {
+          public void run() {
+            scanned(s, crashes, message);
+          }
+        });
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void scanned(LogScanner s, List<LogScanner.Crash> crashes, String error) {
+    // Another file was opened since
+    if (s != scanner) return;
+    progressTimer.stop();
+    progress.setVisible(false);
+    cancel.setVisible(false);
+    String name = s.file.getName();
+    if (error != null) {
+      label.setText("Can't read " + name + ": " + error);
+    } else if (crashes == null) {
+      label.setText("Scan of " + name + " cancelled");
+    } else {
+      model.set(crashes);
+      label.setText(crashes.size() + (crashes.size() == 1 ? " crash in " : " crashes in ") + name);
+      if (!crashes.isEmpty()) list.setSelectedIndex(0);
+    }
+  }
+
+  // Stop scanning and let go of the file
+  void close() {
+    progressTimer.stop();
+    progress.setVisible(false);
+    cancel.setVisible(false);
+    model.set(Collections.<LogScanner.Crash>emptyList());
+    if (scanner != null) {
+      scanner.cancel();
+      scanner.close();
+      scanner = null;
+    }
+  }
+}
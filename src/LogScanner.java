@@ -0,0 +1,384 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Finds the crashes of a serial capture of any size without reading it
+// into memory. The file is mapped chunk by chunk and the chunks are
+// searched in parallel for the lines that open or close a crash; then one
+// pass over those lines, in file order, puts the blocks together the way
+// LogTail does, so a crash crossing a chunk boundary comes out whole. Only
+// the offsets of the crashes are kept, their text is read when asked for.
+class LogScanner {
+  static final int CHUNK_SIZE = 8 << 20;
+  // Longest crash block, like LogTail's 4096 lines of a typical length
+  static final int MAX_BLOCK_BYTES = 256 * 1024;
+  static final int TITLE_LENGTH = 120;
+
+  // What a line has
+  private static final int EXCEPTION = 1;
+  private static final int STACK_BEGIN = 2;
+  private static final int STACK_END = 4;
+  private static final int BACKTRACE = 8;
+  private static final int ALLOC = 16;
+  private static final int STACK_MEMORY = 32;
+  private static final byte[][] MARKERS = {
+    bytes(CrashLogTokenizer.EXCEPTION), bytes(CrashLogTokenizer.PANIC), bytes(CrashLogTokenizer.STACK_BEGIN),
+    bytes(CrashLogTokenizer.STACK_END), bytes(CrashLogTokenizer.BACKTRACE), bytes(CrashLogTokenizer.ALLOC),
+    bytes(CrashLogTokenizer.STACK_MEMORY)
+  };
+  private static final int[] MARKER_FLAGS = { EXCEPTION, EXCEPTION, STACK_BEGIN, STACK_END, BACKTRACE, ALLOC, STACK_MEMORY };
+
+  // A crash block: bytes offset to end of the file, starting on the given line
+  static class Crash {
+    final long offset;
+    final long end;
+    final int line;
+    // Its first line, read on first use
+    String title;
+
+    Crash(long offset, long end, int line) {
+      this.offset = offset;
+      this.end = end;
+      this.line = line;
+    }
+  }
+
+  // The marker lines of a chunk, and how many lines start in it
+  private static class Chunk {
+    long[] starts = new long[64];
+    long[] ends = new long[64];
+    int[] lines = new int[64];
+    int[] flags = new int[64];
+    int count;
+    int lineCount;
+
+    void add(long start, long end, int line, int f) {
+      if (count == starts.length) {
+        starts = Arrays.copyOf(starts, count * 2);
+        ends = Arrays.copyOf(ends, count * 2);
+        lines = Arrays.copyOf(lines, count * 2);
+        flags = Arrays.copyOf(flags, count * 2);
+      }
+      starts[count] = start;
+      ends[count] = end;
+      lines[count] = line;
+      flags[count] = f;
+      count++;
+    }
+  }
+
+  final File file;
+  private final FileChannel channel;
+  private final long size;
+  private final AtomicLong scanned = new AtomicLong();
+  private volatile boolean cancelled;
+
+  LogScanner(File file) throws IOException {
+    this.file = file;
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    size = channel.size();
+  }
+
+  long getSize() {
+    return size;
+  }
+
+  // Bytes searched so far, for the progress
+  long getScanned() {
+    return scanned.get();
+  }
+
+  void cancel() {
+    cancelled = true;
+  }
+
+  boolean isCancelled() {
+    return cancelled;
+  }
+
+  void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      System.err.println("Log Exception: "+e.getMessage());
+    }
+  }
+
+  // All crashes in the file, in order, or null if cancelled
+  List<Crash> scan() throws IOException {
+    int chunks = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    int threads = Math.max(1, Math.min(chunks, Runtime.getRuntime().availableProcessors()));
+    ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "log-scan " + file.getName());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    try {
+      List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+      for (int i = 0; i < chunks; i++) {
+        final long start = (long) i * CHUNK_SIZE;
+        final long end = Math.min(size, start + CHUNK_SIZE);
+        futures.add(pool.submit(new Callable<Chunk>() {
+          public Chunk call() throws IOException {
+            return scanChunk(start, end);
+          }
+        }));
+      }
+      List<Chunk> found = new ArrayList<Chunk>();
+      for (Future<Chunk> f : futures) {
+        Chunk c = f.get();
+        if (c == null || cancelled) return null;
+        found.add(c);
+      }
+      return merge(found);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException(cause);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  // The lines starting in [start, end) that have a marker. The last one
+  // may run past the end, so a little more than the chunk is mapped.
+  private Chunk scanChunk(long start, long end) throws IOException {
+    Chunk c = new Chunk();
+    long mapStart = (start == 0) ? 0 : start - 1;
+    long mapEnd = Math.min(size, end + LogTail.MAX_LINE);
+    if (mapEnd <= mapStart) return c;
+    MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+    int i = (int) (start - mapStart);
+    int limit = (int) (end - mapStart);
+    if (start > 0 && b.get(0) != '\n') {
+      // The rest of a line of the chunk before
+      while (i < limit && b.get(i) != '\n') i++;
+      i++;
+    }
+    int reported = 0;
+    while (i < limit) {
+      int e = i;
+      while (e < b.limit() && b.get(e) != '\n') e++;
+      int f = classify(b, i, Math.min(e, i + LogTail.MAX_LINE));
+      if (f != 0) c.add(mapStart + i, mapStart + e, c.lineCount, f);
+      c.lineCount++;
+      i = e + 1;
+      if ((c.lineCount & 0xfff) == 0) {
+        if (cancelled) return null;
+        int done = Math.min(i, limit);
+        scanned.addAndGet(done - reported);
+        reported = done;
+      }
+    }
+    scanned.addAndGet(Math.max(0, limit - reported));
+    return c;
+  }
+
+  private static int classify(ByteBuffer b, int start, int end) {
+    int f = 0;
+    for (int m = 0; m < MARKERS.length; m++) {
+      if ((f & MARKER_FLAGS[m]) == 0 && indexOf(b, start, end, MARKERS[m]) != -1) f |= MARKER_FLAGS[m];
+    }
+    return f;
+  }
+
+  private static int indexOf(ByteBuffer b, int start, int end, byte[] s) {
+    int last = end - s.length;
+    byte first = s[0];
+    for (int i = start; i <= last; i++) {
+      if (b.get(i) != first) continue;
+      int k = 1;
+      while (k < s.length && b.get(i + k) == s[k]) k++;
+      if (k == s.length) return i;
+    }
+    return -1;
+  }
+
+  // LogTail.line() over the marker lines only: a crash starts with an
+  // exception, a stack, a backtrace or a failed alloc, and ends with the
+  // backtrace, the stack (plus a failed alloc a few blank lines below),
+  // the last row of the RISC-V stack memory, before the next exception, or
+  // when it gets too long. The backtrace of the other core of an ESP32
+  // right after one belongs to the same crash, unless the chip restarted
+  // in between.
+  private List<Crash> merge(List<Chunk> chunks) {
+    List<Crash> crashes = new ArrayList<Crash>();
+    // The last crash if it ended with a backtrace and nothing came since
+    boolean afterBacktrace = false;
+    long blockStart = -1;
+    int blockLine = 0;
+    boolean inStack = false;
+    long stackEnd = -1;
+    int lineBase = 0;
+    for (Chunk c : chunks) {
+      for (int k = 0; k < c.count; k++) {
+        long s = c.starts[k];
+        long e = c.ends[k];
+        int f = c.flags[k];
+        if (afterBacktrace && f == BACKTRACE) {
+          Crash last = crashes.get(crashes.size() - 1);
+          if (s - last.offset <= MAX_BLOCK_BYTES && !hasReboot(last.end, s)) {
+            crashes.set(crashes.size() - 1, new Crash(last.offset, e, last.line));
+            continue;
+          }
+        }
+        afterBacktrace = false;
+        if (stackEnd != -1) {
+          // Past the end of the stack, only the failed alloc may follow
+          boolean alloc = (f & ALLOC) != 0 && isBlank(stackEnd, s);
+          crashes.add(new Crash(blockStart, alloc ? e : stackEnd, blockLine));
+          blockStart = -1;
+          stackEnd = -1;
+          if (alloc) continue;
+        }
+        if (blockStart != -1 && s - blockStart > MAX_BLOCK_BYTES) {
+          crashes.add(new Crash(blockStart, lineEnd(blockStart + MAX_BLOCK_BYTES), blockLine));
+          blockStart = -1;
+        }
+        if ((f & EXCEPTION) != 0 && blockStart != -1 && !inStack) {
+          // A new crash before the last one got to its stack
+          crashes.add(new Crash(blockStart, s, blockLine));
+          blockStart = -1;
+        }
+        if (blockStart == -1) {
+          blockStart = s;
+          blockLine = lineBase + c.lines[k] + 1;
+          inStack = false;
+        }
+        if ((f & STACK_BEGIN) != 0) {
+          inStack = true;
+        } else if (!inStack && (f & STACK_MEMORY) != 0) {
+          crashes.add(new Crash(blockStart, dumpEnd(e, blockStart + MAX_BLOCK_BYTES), blockLine));
+          blockStart = -1;
+          continue;
+        }
+        if (inStack && (f & STACK_END) != 0) {
+          inStack = false;
+          stackEnd = e;
+        } else if (!inStack && (f & BACKTRACE) != 0) {
+          crashes.add(new Crash(blockStart, e, blockLine));
+          blockStart = -1;
+          afterBacktrace = true;
+        }
+      }
+      lineBase += c.lineCount;
+    }
+    if (stackEnd != -1) {
+      crashes.add(new Crash(blockStart, stackEnd, blockLine));
+    } else if (blockStart != -1) {
+      crashes.add(new Crash(blockStart, lineEnd(Math.min(size, blockStart + MAX_BLOCK_BYTES)), blockLine));
+    }
+    return crashes;
+  }
+
+  // Whether only up to LogTail.TRAILER_LINES blank lines lie between the
+  // end of one line and the start of another
+  private boolean isBlank(long from, long to) {
+    if (to - from > LogTail.MAX_LINE) return false;
+    ByteBuffer b = read(from, (int) (to - from));
+    int newlines = 0;
+    while (b.hasRemaining()) {
+      byte c = b.get();
+      if (c == '\n') newlines++;
+      else if (c != ' ' && c != '\t' && c != '\r') return false;
+    }
+    return newlines - 1 <= LogTail.TRAILER_LINES;
+  }
+
+  // Whether the chip restarted between the offsets
+  private boolean hasReboot(long from, long to) {
+    return LogTail.isReboot(decode(read(from, (int) (to - from))));
+  }
+
+  // The end of the last "address: words" row following the line ending at
+  // the offset, or the offset if none does
+  private long dumpEnd(long offset, long limit) {
+    long end = offset;
+    while (end < size && end < limit) {
+      long next = lineEnd(end + 1);
+      String row = decode(read(end + 1, (int) (next - end - 1)));
+      if (!CrashLogTokenizer.isDumpRow(row, 0, row.length())) break;
+      end = next;
+    }
+    return end;
+  }
+
+  // The end of the line the offset is in
+  private long lineEnd(long offset) {
+    if (offset >= size) return size;
+    ByteBuffer b = read(offset, LogTail.MAX_LINE);
+    while (b.hasRemaining()) {
+      if (b.get() == '\n') return offset + b.position() - 1;
+    }
+    return offset + b.position();
+  }
+
+  private ByteBuffer read(long offset, int length) {
+    ByteBuffer b = ByteBuffer.allocate((int) Math.max(0, Math.min(length, size - offset)));
+    try {
+      while (b.hasRemaining()) {
+        if (channel.read(b, offset + b.position()) < 0) break;
+      }
+    } catch (IOException e) {
+      System.err.println("Log Exception: "+e.getMessage());
+    }
+    b.flip();
+    return b;
+  }
+
+  // The first line of the crash
+  String getTitle(Crash c) {
+    if (c.title == null) {
+      String s = decode(read(c.offset, (int) Math.min(TITLE_LENGTH, c.end - c.offset)));
+      int nl = s.indexOf('\n');
+      c.title = (nl == -1 ? s : s.substring(0, nl)).trim();
+    }
+    return c.title;
+  }
+
+  String getText(Crash c) {
+    return decode(read(c.offset, (int) (c.end - c.offset)));
+  }
+
+  // Serial output is bytes, read like LogTail does
+  private static String decode(ByteBuffer b) {
+    char[] chars = new char[b.remaining()];
+    for (int i = 0; i < chars.length; i++) chars[i] = (char) (b.get() & 0xff);
+    return new String(chars);
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,249 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Follows a growing serial log and hands every crash block to the listener
+// once it is complete. Only the line being read and the block being
+// collected are kept, never the file, and both are bounded.
+class LogTail {
+  static final int MAX_LINE = 4096;
+  private static final int MAX_BLOCK_LINES = 4096;
+  // Lines after <<<stack<<< that may still hold the failed alloc
+  static final int TRAILER_LINES = 3;
+  // What the chip prints when it restarts, the end of any crash before
+  static final String[] REBOOT = { "Rebooting...", "rst:", "rst cause:" };
+  // A block nothing was added to for this long is taken as complete
+  private static final long IDLE_MILLIS = 2000;
+
+  interface Listener {
+    // A crash starting at the given byte offset of the file
+    void crashBlock(String block, long offset);
+  }
+
+  private final Path path;
+  private final Listener listener;
+  private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+  private FileChannel channel;
+  private long position;
+
+  private final StringBuilder line = new StringBuilder();
+  private long lineStart;
+
+  private StringBuilder block;
+  private long blockOffset;
+  private int blockLines;
+  private boolean inStack;
+  private boolean inDump;
+  // Past a backtrace, where the other core's registers and backtrace may follow
+  private boolean afterBacktrace;
+  private int trailer = -1;
+  private long lastActivity;
+
+  // Starts at the end of the file unless fromStart is set
+  LogTail(Path path, boolean fromStart, Listener listener) throws IOException {
+    this.path = path;
+    this.listener = listener;
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    if (!fromStart) {
+      position = channel.size();
+      lineStart = position;
+    }
+  }
+
+  // Without a file, for split()
+  private LogTail(Listener listener) {
+    this.path = null;
+    this.listener = listener;
+  }
+
+  // The crash blocks of a whole log held in memory, cut by the same rules
+  static List<String> split(CharSequence text) {
+    final List<String> blocks = new ArrayList<String>();
+    LogTail t = new LogTail(new Listener() {
+      public void crashBlock(String block, long offset) {
+        blocks.add(block);
+      }
+    });
+    int start = 0;
+    for (int i = 0; i <= text.length(); i++) {
+      if (i < text.length() && text.charAt(i) != '\n') continue;
+      int end = i;
+      if (end > start && text.charAt(end - 1) == '\r') end--;
+      if (i < text.length() || end > start) {
+        t.lineStart = start;
+        t.line(text.subSequence(start, Math.min(end, start + MAX_LINE)).toString());
+      }
+      start = i + 1;
+    }
+    if (t.block != null) t.flush();
+    return blocks;
+  }
+
+  // Poll the file until the thread is interrupted
+  void run(long pollMillis) throws IOException {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        if (!poll()) {
+          Thread.sleep(pollMillis);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      channel.close();
+    }
+  }
+
+  // Read what was appended since the last call. Returns false if there
+  // was nothing new.
+  boolean poll() throws IOException {
+    if (channel.size() < position) {
+      // Truncated or rotated, start over with the new content
+      channel.close();
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+      position = 0;
+      lineStart = 0;
+      line.setLength(0);
+    }
+    buffer.clear();
+    int n = channel.read(buffer, position);
+    if (n <= 0) {
+      if (block != null && System.currentTimeMillis() - lastActivity > IDLE_MILLIS) {
+        flush();
+      }
+      return false;
+    }
+    long base = position;
+    position += n;
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      char c = (char) (buffer.get() & 0xff);
+      if (c == '\n') {
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\r') line.setLength(end - 1);
+        line(line.toString());
+        line.setLength(0);
+        lineStart = base + buffer.position();
+      } else if (line.length() < MAX_LINE) {
+        line.append(c);
+      }
+    }
+    lastActivity = System.currentTimeMillis();
+    return true;
+  }
+
+  private void line(String s) {
+    if (block != null && afterBacktrace) {
+      // A panic of a dual-core ESP32 dumps both cores, one after the other;
+      // it is one crash until the next one or a restart
+      if (isReboot(s) || s.contains(CrashLogTokenizer.EXCEPTION) || s.contains(CrashLogTokenizer.PANIC) ||
+          s.contains(CrashLogTokenizer.STACK_BEGIN) || s.contains(CrashLogTokenizer.STACK_MEMORY) ||
+          s.contains(CrashLogTokenizer.ALLOC) || blockLines >= MAX_BLOCK_LINES) {
+        flush();
+      } else {
+        if (s.contains(CrashLogTokenizer.BACKTRACE) || s.contains(CrashLogTokenizer.REGISTER_DUMP) ||
+            s.contains(BuildRegistry.ELF_SHA) || CrashLogTokenizer.isRegisterRow(s, 0, s.length())) {
+          add(s);
+        }
+        return;
+      }
+    }
+    if (block != null && inDump) {
+      // The RISC-V stack memory ends the crash with its last row
+      if (CrashLogTokenizer.isDumpRow(s, 0, s.length()) && blockLines < MAX_BLOCK_LINES) {
+        add(s);
+        return;
+      }
+      flush();
+    }
+    if (block != null && trailer >= 0) {
+      // Past the end of the stack, only the failed alloc may follow
+      if (s.contains(CrashLogTokenizer.ALLOC)) {
+        add(s);
+        flush();
+        return;
+      }
+      if (s.trim().length() == 0 && trailer-- > 0) {
+        return;
+      }
+      flush();
+    }
+
+    boolean exception = s.contains(CrashLogTokenizer.EXCEPTION) || s.contains(CrashLogTokenizer.PANIC);
+    if (exception && block != null && !inStack) {
+      // A new crash before the last one got to its stack
+      flush();
+    }
+    if (block == null) {
+      if (!exception && !s.contains(CrashLogTokenizer.STACK_BEGIN) && !s.contains(CrashLogTokenizer.BACKTRACE) &&
+          !s.contains(CrashLogTokenizer.ALLOC) && !s.contains(CrashLogTokenizer.STACK_MEMORY)) {
+        return;
+      }
+      block = new StringBuilder();
+      blockOffset = lineStart;
+      blockLines = 0;
+      inStack = false;
+      trailer = -1;
+    }
+    add(s);
+
+    if (s.contains(CrashLogTokenizer.STACK_BEGIN)) {
+      inStack = true;
+    } else if (!inStack && s.contains(CrashLogTokenizer.STACK_MEMORY)) {
+      inDump = true;
+      return;
+    }
+    if (inStack && s.contains(CrashLogTokenizer.STACK_END)) {
+      inStack = false;
+      trailer = TRAILER_LINES;
+    } else if (!inStack && s.contains(CrashLogTokenizer.BACKTRACE)) {
+      afterBacktrace = true;
+    } else if (blockLines >= MAX_BLOCK_LINES) {
+      flush();
+    }
+  }
+
+  static boolean isReboot(CharSequence s) {
+    String line = s.toString();
+    for (String r : REBOOT) {
+      if (line.contains(r)) return true;
+    }
+    return false;
+  }
+
+  private void add(String s) {
+    block.append(s).append('\n');
+    blockLines++;
+  }
+
+  private void flush() {
+    String text = block.toString();
+    block = null;
+    inStack = false;
+    inDump = false;
+    afterBacktrace = false;
+    trailer = -1;
+    listener.crashBlock(text, blockOffset);
+  }
+}
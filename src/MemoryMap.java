@@ -0,0 +1,186 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.util.*;
+import java.util.List;
+
+// What a data address points at, worked out without gdb: the variable
+// around it from the ELF's data symbols, the section it falls in, and the
+// region of the chip's memory map, like "counter+4 (.bss, DRAM)". Built
+// once per ELF, every lookup is a binary search.
+class MemoryMap {
+  // Anything below this is taken as a null pointer dereference
+  static final long NULL_PAGE = 0x1000;
+  static final String DRAM = "DRAM";
+  static final String ROM = "ROM";
+  static final String IRAM = "IRAM";
+  static final String FLASH = "flash";
+
+  // Start and end (exclusive) of the regions of every chip, sorted and
+  // disjoint, and their names
+  private static final long[][] ESP8266 = {
+    { 0x3ff00000L, 0x3ff00100L },
+    { 0x3ffe8000L, 0x40000000L },
+    { 0x40000000L, 0x40010000L },
+    { 0x40100000L, 0x40110000L },
+    { 0x40200000L, 0x40300000L },
+    { 0x60000000L, 0x60001000L },
+    { 0x60001000L, 0x60002000L },
+  };
+  private static final String[] ESP8266_NAMES = {
+    "peripherals", DRAM, ROM, IRAM, FLASH, "peripherals", "RTC memory"
+  };
+  private static final long[][] ESP32 = {
+    { 0x3f400000L, 0x3f800000L },
+    { 0x3f800000L, 0x3fc00000L },
+    { 0x3ff00000L, 0x3ff80000L },
+    { 0x3ff80000L, 0x3ff82000L },
+    { 0x3ff90000L, 0x3ffa0000L },
+    { 0x3ffae000L, 0x40000000L },
+    { 0x40000000L, 0x40070000L },
+    { 0x40070000L, 0x400a0000L },
+    { 0x400c0000L, 0x400c2000L },
+    { 0x400c2000L, 0x40c00000L },
+    { 0x50000000L, 0x50002000L },
+    { 0x60000000L, 0x60020000L },
+  };
+  private static final String[] ESP32_NAMES = {
+    "flash (data)", "PSRAM", "peripherals", "RTC fast memory", "ROM (data)", DRAM,
+    ROM, IRAM, "RTC fast memory", FLASH, "RTC slow memory", "peripherals"
+  };
+  // ESP32-C3, the other RISC-V chips share little more than the flash
+  private static final long[][] ESP32C3 = {
+    { 0x3c000000L, 0x3c800000L },
+    { 0x3fc80000L, 0x3fce0000L },
+    { 0x3ff00000L, 0x3ff20000L },
+    { 0x40000000L, 0x40060000L },
+    { 0x4037c000L, 0x403e0000L },
+    { 0x42000000L, 0x42800000L },
+    { 0x50000000L, 0x50002000L },
+    { 0x60000000L, 0x600d1000L },
+  };
+  private static final String[] ESP32C3_NAMES = {
+    "flash (data)", DRAM, "ROM (data)", ROM, IRAM, FLASH, "RTC fast memory", "peripherals"
+  };
+
+  private final ElfFile elf;
+  // The allocated sections, sorted by address
+  private final long[] sectionStart;
+  private final long[] sectionEnd;
+  // The highest end of the sections up to each, where the search back ends
+  private final long[] sectionReach;
+  private final String[] sectionName;
+  private final long[] regionStart;
+  private final long[] regionEnd;
+  private final String[] regionName;
+
+  MemoryMap(ElfFile elf) {
+    this.elf = elf;
+    List<ElfFile.Section> sections = new ArrayList<ElfFile.Section>();
+    for (ElfFile.Section s : elf.getSections()) {
+      if ((s.flags & ElfFile.SHF_ALLOC) != 0 && s.size > 0 && s.name != null) sections.add(s);
+    }
+    Collections.sort(sections, new Comparator<ElfFile.Section>() {
+      public int compare(ElfFile.Section a, ElfFile.Section b) {
+        return Long.compare(a.addr, b.addr);
+      }
+    });
+    sectionStart = new long[sections.size()];
+    sectionEnd = new long[sections.size()];
+    sectionReach = new long[sections.size()];
+    sectionName = new String[sections.size()];
+    for (int i = 0; i < sections.size(); i++) {
+      ElfFile.Section s = sections.get(i);
+      sectionStart[i] = s.addr;
+      sectionEnd[i] = s.addr + s.size;
+      sectionReach[i] = Math.max(sectionEnd[i], i > 0 ? sectionReach[i - 1] : 0);
+      sectionName[i] = s.name;
+    }
+
+    // The ESP8266 runs its code from .irom0.text, the ESP32 from .flash.text
+    long[][] regions = new long[0][];
+    String[] names = new String[0];
+    if (elf.machine == ElfFile.EM_RISCV) {
+      regions = ESP32C3;
+      names = ESP32C3_NAMES;
+    } else if (elf.machine == ElfFile.EM_XTENSA) {
+      boolean esp8266 = elf.getSection(".irom0.text") != null;
+      regions = esp8266 ? ESP8266 : ESP32;
+      names = esp8266 ? ESP8266_NAMES : ESP32_NAMES;
+    }
+    regionStart = new long[regions.length];
+    regionEnd = new long[regions.length];
+    regionName = names;
+    for (int i = 0; i < regions.length; i++) {
+      regionStart[i] = regions[i][0];
+      regionEnd[i] = regions[i][1];
+    }
+  }
+
+  // What the address points at, or null if nothing is known about it
+  String describe(long address) {
+    if (address < NULL_PAGE) {
+      return address == 0 ? "NULL" : "NULL+" + address;
+    }
+    String section = getSection(address);
+    String region = getRegion(address);
+    String where;
+    if (section != null && region != null) {
+      where = section + ", " + region;
+    } else if (section != null) {
+      where = section;
+    } else if (DRAM.equals(region)) {
+      // Past the variables of the program only the heap and the stacks are
+      where = DRAM + ", heap or stack";
+    } else {
+      where = region;
+    }
+    int o = elf.findObject(address);
+    if (o == -1) {
+      return where;
+    }
+    String name = elf.getObjectName(o);
+    long offset = address - elf.getObjectStart(o);
+    if (offset > 0) name += "+" + offset;
+    return where == null ? name : name + " (" + where + ")";
+  }
+
+  // Whether the address is where the program keeps data: not its code,
+  // the ROM or nowhere
+  boolean isData(long address) {
+    if (address < NULL_PAGE || elf.isExecutable(address)) return false;
+    if (elf.findObject(address) != -1 || getSection(address) != null) return true;
+    String region = getRegion(address);
+    return region != null && !region.equals(ROM) && !region.equals(IRAM) && !region.equals(FLASH);
+  }
+
+  String getSection(long address) {
+    int i = ElfFile.floor(sectionStart, sectionStart.length, address);
+    // A section may follow one it lies within, like .noinit in .bss
+    for (; i >= 0 && address < sectionReach[i]; i--) {
+      if (address < sectionEnd[i]) return sectionName[i];
+    }
+    return null;
+  }
+
+  String getRegion(long address) {
+    int i = ElfFile.floor(regionStart, regionStart.length, address);
+    if (i >= 0 && address < regionEnd[i]) return regionName[i];
+    return null;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.List;
+
+// The ESP32-C3/C6/H2 panic handler prints no backtrace, just the raw stack
+// memory, where code addresses are mostly stale function pointers and
+// leftovers. A word is kept as a return address only if the instruction
+// before it is a call that links ra: jal/jalr ra, or c.jal/c.jalr.
+class RiscvStack {
+  private static final int OP_JAL = 0x6f;
+  private static final int OP_JALR = 0x67;
+  private static final int RD_RA = 1;
+
+  // The words of the dump that are return addresses, in stack order
+  static List<Long> returnAddresses(ElfFile elf, List<Long> words) {
+    List<Long> found = new ArrayList<Long>();
+    for (Long w : words) {
+      if (isReturnAddress(elf, w)) found.add(w);
+    }
+    return found;
+  }
+
+  // Whether a call ends right before the address. If the ELF has no code
+  // there to look at, any code address can be one.
+  static boolean isReturnAddress(ElfFile elf, long address) {
+    if ((address & 1) != 0) return false;
+    ByteBuffer b = elf.getBytesAt(address - 4, 4);
+    if (b == null || b.remaining() < 4) return true;
+    int insn = b.getInt(0);
+    int opcode = insn & 0x7f;
+    int rd = (insn >> 7) & 0x1f;
+    if ((opcode == OP_JAL || opcode == OP_JALR) && rd == RD_RA) return true;
+    // The compressed ones are the upper half of the same four bytes
+    int half = (insn >>> 16) & 0xffff;
+    // c.jalr rs1 (rs1 != 0)
+    if ((half & 0xf07f) == 0x9002 && (half & 0x0f80) != 0) return true;
+    // c.jal, RV32 only
+    return (half & 0xe003) == 0x2001;
+  }
+}
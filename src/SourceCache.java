@@ -0,0 +1,137 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.List;
+
+// The source files the frames point into, for showing the lines around
+// them. Each file is memory-mapped once and the offsets of its lines
+// indexed, so dozens of frames in the same header cost one mapping. The
+// files used least recently are let go once the mappings add up to more
+// than MAX_MAPPED bytes; the buffers are unmapped when collected.
+class SourceCache {
+  static final long MAX_MAPPED = 64L * 1024 * 1024;
+  // Bigger files aren't shown at all
+  static final long MAX_FILE = 16L * 1024 * 1024;
+
+  private static SourceCache instance;
+
+  private static class Source {
+    final long modified;
+    final long length;
+    final MappedByteBuffer data;
+    // Where every line starts, plus the end of the file
+    final int[] lines;
+
+    Source(long modified, long length, MappedByteBuffer data, int[] lines) {
+      this.modified = modified;
+      this.length = length;
+      this.data = data;
+      this.lines = lines;
+    }
+  }
+
+  private final LinkedHashMap<String, Source> sources = new LinkedHashMap<String, Source>(16, 0.75f, true);
+  private long mapped;
+
+  static synchronized SourceCache get() {
+    if (instance == null) instance = new SourceCache();
+    return instance;
+  }
+
+  // Lines first to last (from 1, clamped to the file) of the file, or null
+  // if it can't be read
+  List<String> getLines(String path, int first, int last) {
+    Source s;
+    try {
+      s = open(new File(path));
+    } catch (IOException e) {
+      return null;
+    }
+    if (s == null) return null;
+    int count = s.lines.length - 1;
+    first = Math.max(1, first);
+    last = Math.min(count, last);
+    List<String> result = new ArrayList<String>();
+    for (int n = first; n <= last; n++) {
+      int start = s.lines[n - 1];
+      int end = s.lines[n];
+      while (end > start && (s.data.get(end - 1) == '\n' || s.data.get(end - 1) == '\r')) end--;
+      byte[] b = new byte[end - start];
+      for (int i = 0; i < b.length; i++) b[i] = s.data.get(start + i);
+      result.add(new String(b, StandardCharsets.UTF_8));
+    }
+    return result;
+  }
+
+  private synchronized Source open(File file) throws IOException {
+    String key = file.getAbsolutePath();
+    Source s = sources.get(key);
+    if (s != null && s.modified == file.lastModified() && s.length == file.length()) {
+      return s;
+    }
+    if (s != null) {
+      sources.remove(key);
+      mapped -= s.length;
+    }
+    if (!file.isFile() || file.length() > MAX_FILE) {
+      return null;
+    }
+    long modified = file.lastModified();
+    MappedByteBuffer data;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel ch = raf.getChannel();
+      data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+    } finally {
+      raf.close();
+    }
+    s = new Source(modified, data.limit(), data, index(data));
+    sources.put(key, s);
+    mapped += s.length;
+    Iterator<Source> it = sources.values().iterator();
+    while (mapped > MAX_MAPPED && sources.size() > 1) {
+      mapped -= it.next().length;
+      it.remove();
+    }
+    return s;
+  }
+
+  private static int[] index(MappedByteBuffer data) {
+    int[] lines = new int[1024];
+    int n = 0;
+    lines[n++] = 0;
+    int limit = data.limit();
+    for (int i = 0; i < limit; i++) {
+      if (data.get(i) != '\n') continue;
+      if (n == lines.length) lines = Arrays.copyOf(lines, n * 2);
+      lines[n++] = i + 1;
+    }
+    if (lines[n - 1] != limit) {
+      if (n == lines.length) lines = Arrays.copyOf(lines, n + 1);
+      lines[n++] = limit;
+    }
+    return Arrays.copyOf(lines, n);
+  }
+}
@@ -0,0 +1,73 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+
+// What an address resolved to. Function, file and line may each be
+// missing when the ELF doesn't have the information.
+class SourceLocation {
+  final long address;
+  final String function;
+  final String file;
+  final int line;
+
+  SourceLocation(long address, String function, String file, int line) {
+    this.address = address;
+    this.function = function;
+    this.file = file;
+    this.line = line;
+  }
+
+  boolean hasLine() {
+    return file != null && line > 0;
+  }
+
+  String getAddressString() {
+    return String.format("0x%08x", address);
+  }
+
+  // Nothing is known about the address, used to remember failed lookups
+  boolean isUnknown() {
+    return function == null && !hasLine();
+  }
+
+  // Parse the first line of gdb's "list *0x..." answer, which looks like
+  // "0x40201234 is in loop() (/path/to/sketch.ino:12)."
+  // Returns null if the line is not in that format.
+  static SourceLocation parseGDBLine(String line) {
+    if (!line.startsWith("0x")) {
+      return null;
+    }
+    int space = line.indexOf(' ');
+    int atIndex = line.indexOf(" is in ");
+    int open = line.lastIndexOf('(');
+    int colon = line.lastIndexOf(':');
+    int close = line.lastIndexOf(')');
+    if (space == -1 || atIndex != space || open < atIndex + 7 || colon < open || close < colon) {
+      return null;
+    }
+    try {
+      long address = Long.parseLong(line.substring(2, space), 16);
+      String method = line.substring(atIndex + 7, open - 1);
+      String file = line.substring(open + 1, colon);
+      int number = Integer.parseInt(line.substring(colon + 1, close));
+      return new SourceLocation(address, method, file, number);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
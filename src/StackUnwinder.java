@@ -0,0 +1,136 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.List;
+
+// Walks the raw stack dump of an ESP8266 crash frame by frame, starting
+// from the PC and the stack pointer. Under the CALL0 ABI a function moves
+// a1 down by its frame size and, unless it is a leaf, saves a0 (its return
+// address) in the frame. The layout of each function comes from the call
+// frame information, or for code without any from the prologue, the
+// "addi a1, a1, -N" and "s32i a0, a1, M" it starts with.
+class StackUnwinder {
+  static final int REG_SP = 1; // a1
+  static final int MAX_FRAMES = 64;
+  // How far into a function the prologue is looked for
+  static final int PROLOGUE_BYTES = 48;
+  // Frame size, address after the stack adjustment, where a0 was saved
+  // (from the adjusted sp) and the address after that
+  private static final long[] NO_PROLOGUE = { 0, 0, 0, -1 };
+
+  private final ElfFile elf;
+  private final DwarfFrame cfi;
+  private final Map<Long, long[]> prologues = new HashMap<Long, long[]>();
+
+  StackUnwinder(ElfFile elf) {
+    this.elf = elf;
+    cfi = new DwarfFrame(elf);
+  }
+
+  // The return addresses of the callers, innermost first. Empty if not even
+  // the first step works out, like a crash in a leaf function or in ROM.
+  List<Long> unwind(long pc, long sp, Map<Long, Long> stack) {
+    List<Long> callers = new ArrayList<Long>();
+    long at = pc;
+    while (callers.size() < MAX_FRAMES) {
+      DwarfFrame.Frame f = getFrame(at);
+      if (f == null || f.cfaRegister != REG_SP || f.raRule != DwarfFrame.RA_OFFSET) break;
+      long cfa = sp + f.cfaOffset;
+      Long ra = stack.get(cfa + f.raOffset);
+      if (ra == null || !CrashDecoder.isCodeAddress(elf, ra) || cfa < sp || (cfa == sp && ra == pc)) break;
+      callers.add(ra);
+      pc = ra;
+      sp = cfa;
+      // The call before the return address can be the last instruction
+      // of the function, so look up the call itself
+      at = ra - 1;
+    }
+    return callers;
+  }
+
+  // The layout of the frame at the address, or null if unknown
+  DwarfFrame.Frame getFrame(long address) {
+    DwarfFrame.Frame f = cfi.find(address);
+    return f != null ? f : prologueFrame(address);
+  }
+
+  private DwarfFrame.Frame prologueFrame(long address) {
+    int sym = elf.findFunction(address);
+    if (sym == -1) return null;
+    long start = elf.getFunctionStart(sym);
+    long[] p;
+    synchronized (prologues) {
+      p = prologues.get(start);
+      if (p == null) {
+        p = readPrologue(start, elf.getFunctionSize(sym));
+        prologues.put(start, p);
+      }
+    }
+    DwarfFrame.Frame f = new DwarfFrame.Frame();
+    f.cfaRegister = REG_SP;
+    f.cfaOffset = address >= p[1] ? p[0] : 0;
+    if (p[3] != -1 && address >= p[3]) {
+      f.raRule = DwarfFrame.RA_OFFSET;
+      f.raOffset = p[2] - f.cfaOffset;
+    }
+    return f;
+  }
+
+  private long[] readPrologue(long start, long size) {
+    int length = (int) Math.min(PROLOGUE_BYTES, size > 0 ? size : PROLOGUE_BYTES);
+    ByteBuffer code = elf.getBytesAt(start, length);
+    if (code == null || elf.order() != ByteOrder.LITTLE_ENDIAN) return NO_PROLOGUE;
+    long frame = 0, adjusted = -1, saveOffset = 0, saved = -1;
+    int i = 0;
+    while (i + 2 <= code.limit() && saved == -1) {
+      int b0 = code.get(i) & 0xff;
+      int b1 = code.get(i + 1) & 0xff;
+      int op0 = b0 & 0x0f, t = b0 >> 4, s = b1 & 0x0f, r = b1 >> 4;
+      if (op0 >= 8) {
+        // Narrow instructions: s32i.n a0, a1, r * 4
+        if (op0 == 9 && t == 0 && s == 1 && adjusted != -1) {
+          saveOffset = r * 4;
+          saved = start + i + 2;
+        }
+        i += 2;
+        continue;
+      }
+      if (i + 3 > code.limit()) break;
+      int imm8 = code.get(i + 2);
+      if (op0 == 2 && t == 1 && s == 1 && r == 0xc) {
+        // addi a1, a1, imm8
+        frame -= imm8;
+        adjusted = start + i + 3;
+      } else if (op0 == 2 && t == 1 && s == 1 && r == 0xd) {
+        // addmi a1, a1, imm8 * 256
+        frame -= imm8 * 256;
+        adjusted = start + i + 3;
+      } else if (op0 == 2 && t == 0 && s == 1 && r == 6 && adjusted != -1) {
+        // s32i a0, a1, imm8 * 4
+        saveOffset = (imm8 & 0xff) * 4;
+        saved = start + i + 3;
+      }
+      i += 3;
+    }
+    if (frame <= 0) return NO_PROLOGUE;
+    return new long[] { frame, adjusted, saveOffset, saved };
+  }
+}
@@ -0,0 +1,306 @@
+/*
+  Copyright (c) 2015 Hristo Gochkov (ficeto at ficeto dot com)
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+package com.ficeto.esp;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.List;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+// Everything the built-in symbolizer knows about an ELF, written once to
+// a file next to it (sketch.ino.elf.symbols) and memory-mapped by the
+// next decodes, which then answer from it without reading any DWARF.
+// The file is little-endian whatever the machine, so a CI can build it
+// with the firmware and ship the two together:
+//
+//   0   "ESYM", version
+//   8   SHA-256 of the ELF, 32 bytes
+//   40  counts: debug info functions, symbols, line rows, files, string bytes
+//   64  debug info functions  { low, high, name }, by address
+//       symbol table functions { start, size, name }, by address
+//       line rows { address, file, line }, by address, file -1 ends a sequence
+//       files { name }
+//       strings, UTF-8, each ending in a zero byte
+//
+// Addresses and sizes are 32 bit, names are offsets into the strings or
+// -1 for none.
+class SymbolIndex {
+  static final String SUFFIX = ".symbols";
+  static final int MAGIC = 0x4d595345; // "ESYM"
+  static final int VERSION = 1;
+  private static final int HEADER = 64;
+  private static final int RECORD = 12;
+
+  final String hash;
+  private final ByteBuffer data;
+  private final int functions;
+  private final int symbols;
+  private final int rows;
+  private final int files;
+  private final int functionsAt;
+  private final int symbolsAt;
+  private final int rowsAt;
+  private final int filesAt;
+  private final int stringsAt;
+
+  private SymbolIndex(ByteBuffer data) throws IOException {
+    this.data = data;
+    data.order(ByteOrder.LITTLE_ENDIAN);
+    if (data.limit() < HEADER || data.getInt(0) != MAGIC) {
+      throw new IOException("not a symbol index");
+    }
+    if (data.getInt(4) != VERSION) {
+      throw new IOException("symbol index version " + data.getInt(4));
+    }
+    byte[] sha = new byte[32];
+    for (int i = 0; i < sha.length; i++) sha[i] = data.get(8 + i);
+    hash = Hex.encodeHexString(sha);
+    functions = data.getInt(40);
+    symbols = data.getInt(44);
+    rows = data.getInt(48);
+    files = data.getInt(52);
+    int strings = data.getInt(56);
+    functionsAt = HEADER;
+    symbolsAt = functionsAt + functions * RECORD;
+    rowsAt = symbolsAt + symbols * RECORD;
+    filesAt = rowsAt + rows * RECORD;
+    stringsAt = filesAt + files * 4;
+    if (functions < 0 || symbols < 0 || rows < 0 || files < 0 || strings < 0
+        || (long) stringsAt + strings != data.limit()) {
+      throw new IOException("truncated symbol index");
+    }
+  }
+
+  static File fileFor(File elf) {
+    return new File(elf.getPath() + SUFFIX);
+  }
+
+  // The index next to the ELF if it was made from an ELF with this hash,
+  // or null if there is none, it is stale or it can't be read
+  static SymbolIndex open(File elf, String hash) {
+    File file = fileFor(elf);
+    if (!file.isFile()) return null;
+    try {
+      SymbolIndex index = map(file);
+      return index.hash.equals(hash) ? index : null;
+    } catch (IOException e) {
+      System.err.println("Symbol Index Exception: "+e.getMessage());
+      return null;
+    }
+  }
+
+  static SymbolIndex map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel ch = raf.getChannel();
+      MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      return new SymbolIndex(map);
+    } finally {
+      raf.close();
+    }
+  }
+
+  // Where the address is, the same answer ElfSymbolizer.lookup() gives, or
+  // null if nothing is known about it
+  SourceLocation lookup(long address) {
+    String function = findFunction(address);
+    if (function == null) function = findSymbol(address);
+    int row = floor(rowsAt, rows, address);
+    if (row >= 0) {
+      int file = data.getInt(rowsAt + row * RECORD + 4);
+      if (file >= 0 && file < files) {
+        String name = string(data.getInt(filesAt + file * 4));
+        return new SourceLocation(address, function, name, data.getInt(rowsAt + row * RECORD + 8));
+      }
+    }
+    return function == null ? null : new SourceLocation(address, function, null, 0);
+  }
+
+  // Same walk as DwarfInfo.findFunction()
+  private String findFunction(long address) {
+    int i = floor(functionsAt, functions, address);
+    while (i >= 0 && word(functionsAt + i * RECORD) <= address) {
+      int o = functionsAt + i * RECORD;
+      if (address < word(o + 4)) return string(data.getInt(o + 8));
+      if (i == 0 || word(o - RECORD) != word(o)) break;
+      i--;
+    }
+    return null;
+  }
+
+  // Same walk as ElfFile.findFunction()
+  private String findSymbol(long address) {
+    int i = floor(symbolsAt, symbols, address);
+    while (i >= 0) {
+      int o = symbolsAt + i * RECORD;
+      if (address < word(o) + Math.max(1, word(o + 4))) return string(data.getInt(o + 8));
+      if (i == 0 || word(o - RECORD) != word(o)) break;
+      i--;
+    }
+    return null;
+  }
+
+  // Last of the count records at base whose address is <= key, or -1
+  private int floor(int base, int count, long key) {
+    int lo = 0, hi = count - 1, found = -1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (word(base + mid * RECORD) <= key) {
+        found = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  private long word(int offset) {
+    return data.getInt(offset) & 0xffffffffL;
+  }
+
+  private String string(int offset) {
+    if (offset < 0) return null;
+    int start = stringsAt + offset;
+    int end = start;
+    while (end < data.limit() && data.get(end) != 0) end++;
+    byte[] b = new byte[end - start];
+    for (int i = 0; i < b.length; i++) b[i] = data.get(start + i);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  // Write the index of the ELF next to it, unless one for the same
+  // content is there already. Returns the index file.
+  static File write(ElfSymbolizer sym, String hash) throws IOException {
+    File file = fileFor(sym.file);
+    if (file.isFile()) {
+      try {
+        if (map(file).hash.equals(hash)) return file;
+      } catch (IOException e) {
+        // Unreadable, write it again
+      }
+    }
+    DwarfInfo info = sym.getInfo();
+    DwarfLineTable lines = sym.getLines();
+    ElfFile elf = sym.getElf();
+    Strings strings = new Strings();
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOut out = new DataOut(body);
+    for (int i = 0; i < info.getFunctionCount(); i++) {
+      out.address(info.getFunctionLow(i));
+      out.address(info.getFunctionHigh(i));
+      out.writeInt(strings.add(info.getFunctionName(i)));
+    }
+    for (int i = 0; i < elf.getFunctionCount(); i++) {
+      out.address(elf.getFunctionStart(i));
+      out.address(elf.getFunctionSize(i));
+      out.writeInt(strings.add(elf.getFunctionName(i)));
+    }
+    for (int i = 0; i < lines.getRowCount(); i++) {
+      out.address(lines.getRowAddress(i));
+      out.writeInt(lines.getRowFile(i));
+      out.writeInt(lines.getRowLine(i));
+    }
+    List<String> files = lines.getFiles();
+    for (String f : files) {
+      out.writeInt(strings.add(f));
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC).putInt(VERSION);
+    try {
+      header.put(Hex.decodeHex(hash.toCharArray()));
+    } catch (Exception e) {
+      throw new IOException("bad hash " + hash);
+    }
+    header.putInt(info.getFunctionCount()).putInt(elf.getFunctionCount()).putInt(lines.getRowCount());
+    header.putInt(files.size()).putInt(strings.bytes.size());
+
+    // Written aside and moved in place, so a decode never maps half a file
+    File temp = new File(file.getPath() + ".tmp");
+    OutputStream os = new BufferedOutputStream(new FileOutputStream(temp));
+    try {
+      os.write(header.array());
+      body.writeTo(os);
+      strings.bytes.writeTo(os);
+    } finally {
+      os.close();
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    return file;
+  }
+
+  // Write the index of the ELF, hashing it first
+  static File write(ElfSymbolizer sym) throws IOException {
+    InputStream in = new FileInputStream(sym.file);
+    try {
+      return write(sym, DigestUtils.sha256Hex(in));
+    } finally {
+      in.close();
+    }
+  }
+
+  // The string pool, every string once
+  private static class Strings {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final Map<String, Integer> offsets = new HashMap<String, Integer>();
+
+    int add(String s) {
+      if (s == null) return -1;
+      Integer o = offsets.get(s);
+      if (o == null) {
+        o = bytes.size();
+        offsets.put(s, o);
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        bytes.write(b, 0, b.length);
+        bytes.write(0);
+      }
+      return o;
+    }
+  }
+
+  // Little-endian ints, which DataOutputStream doesn't do
+  private static class DataOut {
+    final OutputStream out;
+
+    DataOut(OutputStream out) {
+      this.out = out;
+    }
+
+    void writeInt(int v) throws IOException {
+      out.write(v);
+      out.write(v >>> 8);
+      out.write(v >>> 16);
+      out.write(v >>> 24);
+    }
+
+    void address(long v) throws IOException {
+      if (v < 0 || v > 0xffffffffL) {
+        throw new IOException(String.format("address 0x%x doesn't fit a symbol index", v));
+      }
+      writeInt((int) v);
+    }
+  }
+}